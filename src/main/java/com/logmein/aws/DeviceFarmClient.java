@@ -1,18 +1,26 @@
 package com.logmein.aws;
 
-import java.time.Instant;
 import java.util.List;
-import java.util.stream.Collectors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.services.devicefarm.AWSDeviceFarm;
 import com.amazonaws.services.devicefarm.AWSDeviceFarmClientBuilder;
 import com.amazonaws.services.devicefarm.model.CreateRemoteAccessSessionRequest;
-import com.amazonaws.services.devicefarm.model.CreateRemoteAccessSessionResult;
-import com.amazonaws.services.devicefarm.model.Device;
 import com.amazonaws.services.devicefarm.model.DeviceInstance;
 import com.amazonaws.services.devicefarm.model.GetRemoteAccessSessionRequest;
 import com.amazonaws.services.devicefarm.model.GetRemoteAccessSessionResult;
@@ -20,14 +28,25 @@
 import com.amazonaws.services.devicefarm.model.ListDevicesResult;
 import com.amazonaws.services.devicefarm.model.RemoteAccessSession;
 import com.amazonaws.services.devicefarm.model.StopRemoteAccessSessionRequest;
-import com.amazonaws.util.CollectionUtils;
-import com.logmein.aws.utils.DateTimeUtils;
+import com.logmein.aws.device.DeviceAllocator;
+import com.logmein.aws.device.DeviceCatalog;
+import com.logmein.aws.device.DeviceAvailabilityWatcher;
+import com.logmein.aws.device.DeviceQuery;
+import com.logmein.aws.device.DeviceReservation;
+import com.logmein.aws.utils.DaemonThreadFactory;
+import com.logmein.aws.utils.PollingStrategy;
 
 /**
- * AWS Device farm client for starting and stopping Direct Device Access sessions.
+ * AWS Device farm client for starting and stopping Direct Device Access sessions. Close it once
+ * done to stop its threads.
  * @author ashwink
  */
-public class DeviceFarmClient {
+public class DeviceFarmClient implements AutoCloseable {
+
+    /**
+     * Max number of tunnels prepared or started at the same time.
+     */
+    public static final int TUNNEL_STARTER_THREADS = 8;
 
     private Logger logger = LoggerFactory.getLogger(DeviceFarmClient.class);
 
@@ -35,6 +54,46 @@ public class DeviceFarmClient {
 
     private AWSDirectory awsDirectory;
 
+    private DeviceFarmRequestScheduler requestScheduler = new DeviceFarmRequestScheduler();
+
+    private DeviceCatalog deviceCatalog;
+
+    private DeviceAvailabilityWatcher availabilityWatcher;
+
+    private DeviceAllocator deviceAllocator;
+
+    private RemoteAccessSessionTracker sessionTracker;
+
+    /**
+     * Drives the asynchronous operations, nothing sleeps on it.
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Starts the tunnels of the asynchronously created sessions.
+     */
+    private ExecutorService tunnelStarter;
+
+    /**
+     * Restarts the tunnels that go down, null if they are not monitored.
+     */
+    private TunnelHealthMonitor tunnelHealthMonitor;
+
+    /**
+     * Delay after which a hedge is fired, 0 if hedging is disabled.
+     */
+    private long hedgeDelayInSeconds;
+
+    /**
+     * Number of hedges fired.
+     */
+    private final AtomicLong hedgesFired = new AtomicLong();
+
+    /**
+     * Number of hedges that won.
+     */
+    private final AtomicLong hedgesWon = new AtomicLong();
+
     /**
      * @param credentialsProvider {@link AWSCredentialsProvider}.
      */
@@ -47,8 +106,104 @@ public DeviceFarmClient(AWSCredentialsProvider credentialsProvider) {
      * @param directory {@link AWSDirectory}.
      */
     public DeviceFarmClient(AWSCredentialsProvider credentialsProvider, AWSDirectory directory) {
-        farm = AWSDeviceFarmClientBuilder.standard().withCredentials(credentialsProvider).build();
-        awsDirectory = new AWSDirectory();
+        // throttled calls are retried by the request scheduler only.
+        this(AWSDeviceFarmClientBuilder.standard().withCredentials(credentialsProvider)
+                .withClientConfiguration(new ClientConfiguration().withRetryPolicy(
+                        DeviceFarmRequestScheduler.sdkRetryPolicy())).build(), directory);
+    }
+
+    /**
+     * @param deviceFarm {@link AWSDeviceFarm}.
+     * @param directory {@link AWSDirectory}.
+     */
+    DeviceFarmClient(AWSDeviceFarm deviceFarm, AWSDirectory directory) {
+        farm = deviceFarm;
+        awsDirectory = directory;
+        deviceCatalog = new DeviceCatalog(this::listDevices);
+        availabilityWatcher = new DeviceAvailabilityWatcher(deviceCatalog);
+        deviceAllocator = new DeviceAllocator(deviceCatalog, availabilityWatcher);
+        // the tracker rate limits its calls itself, without sleeping on its thread.
+        sessionTracker = new RemoteAccessSessionTracker(farm::listRemoteAccessSessions,
+                arn -> farm.getRemoteAccessSession(new GetRemoteAccessSessionRequest().withArn(arn))
+                        .getRemoteAccessSession()).requestScheduler(requestScheduler);
+        scheduler = Executors.newScheduledThreadPool(2, new DaemonThreadFactory(
+                "device-farm-client"));
+        tunnelStarter = Executors.newFixedThreadPool(TUNNEL_STARTER_THREADS,
+                new DaemonThreadFactory("device-farm-tunnel-starter"));
+    }
+
+    /**
+     * @param scheduler {@link DeviceFarmRequestScheduler} all the calls to Device Farm go through.
+     *            Clients using the same account should share one.
+     * @return {@link DeviceFarmClient}.
+     */
+    public DeviceFarmClient requestScheduler(DeviceFarmRequestScheduler scheduler) {
+        requestScheduler = scheduler;
+        sessionTracker.requestScheduler(scheduler);
+        return this;
+    }
+
+    /**
+     * @return {@link DeviceFarmRequestScheduler} all the calls to Device Farm go through.
+     */
+    public DeviceFarmRequestScheduler getRequestScheduler() {
+        return requestScheduler;
+    }
+
+    /**
+     * @param strategy {@link PollingStrategy} used while waiting for a remote access session to be
+     *            RUNNING. By default the status is checked after 0.5 seconds, then the delay
+     *            doubles up to 5 seconds.
+     * @return {@link DeviceFarmClient}.
+     */
+    public DeviceFarmClient sessionPollingStrategy(PollingStrategy strategy) {
+        sessionTracker.pollingStrategy(strategy);
+        return this;
+    }
+
+    /**
+     * Enable hedging for the sessions created from a {@link DeviceQuery}: when a session is still
+     * not ready after the delay, a second one is started on another matching instance. The first
+     * one to be RUNNING with its tunnel up is kept, the other one is stopped.
+     * @param delayInSeconds delay after which the second session is started, 0 to disable
+     *            hedging. By default hedging is disabled.
+     * @return {@link DeviceFarmClient}.
+     */
+    public DeviceFarmClient hedgeAfterSeconds(long delayInSeconds) {
+        hedgeDelayInSeconds = delayInSeconds;
+        return this;
+    }
+
+    /**
+     * @return number of hedges fired so far.
+     */
+    public long getHedgesFired() {
+        return hedgesFired.get();
+    }
+
+    /**
+     * @return number of hedges that were ready before the session they hedged.
+     */
+    public long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /**
+     * @param monitor {@link TunnelHealthMonitor} watching the tunnels of the sessions created from
+     *            now on, null to stop monitoring them. By default the tunnels are not monitored.
+     * @return {@link DeviceFarmClient}.
+     */
+    public DeviceFarmClient tunnelHealthMonitor(TunnelHealthMonitor monitor) {
+        tunnelHealthMonitor = monitor;
+        return this;
+    }
+
+    /**
+     * @return {@link RemoteAccessSessionTracker} waiting for the remote access sessions to be
+     *         RUNNING.
+     */
+    public RemoteAccessSessionTracker getSessionTracker() {
+        return sessionTracker;
     }
 
     /**
@@ -57,47 +212,266 @@ public DeviceFarmClient(AWSCredentialsProvider credentialsProvider, AWSDirectory
      */
     public DirectDeviceSession createDirectDeviceAccessSession(
             DirectDeviceAccessCapabilities capabilities) {
-        RemoteAccessSession remoteAccessSession = createRemoteAccessSession(capabilities);
-        DeviceFarmTunnel tunnel = new DeviceFarmTunnel(remoteAccessSession.getHostAddress());
-        tunnel.start(new AWSDirectory());
-
-        DirectDeviceSession session = new DirectDeviceSession(remoteAccessSession, tunnel);
-        return session;
+        // the tunnel does not need the host to be prepared, do it while the session starts.
+        CompletableFuture<DeviceFarmTunnel> preparing = prepareTunnelAsync();
+        RemoteAccessSession remoteAccessSession;
+        try {
+            remoteAccessSession = createRemoteAccessSession(capabilities);
+        } catch (RuntimeException e) {
+            discardTunnel(preparing);
+            throw e;
+        }
+        return startDirectDeviceSession(remoteAccessSession, preparing);
     }
 
     /**
-     * @param waitInSeconds Max time to wait for a device to be available in seconds.
-     * @return {@link DeviceInstance}.
+     * Non blocking variant of
+     * {@link #createDirectDeviceAccessSession(DirectDeviceAccessCapabilities)}. The session status
+     * is polled by scheduled tasks instead of a sleeping thread. Cancelling the future stops the
+     * remote access session if it was already requested.
+     * @param capabilities {@link DirectDeviceAccessCapabilities}.
+     * @return future completed with the {@link DirectDeviceSession}.
      */
-    public DeviceInstance getAndroidPhone(long waitInSeconds) {
-        ListDevicesResult listDeviceResult = listDevices();
-
-        //@formatter:off
-        List<Device> devices = listDeviceResult.getDevices().stream().filter(device -> (
-                device.getFleetType().equalsIgnoreCase("PRIVATE") &&
-                        device.getFormFactor().equalsIgnoreCase("PHONE") &&
-                        device.getPlatform().equalsIgnoreCase("ANDROID"))
-        ).collect(Collectors.toList());
-        // @formatter:on
-
-        Instant timeOut = Instant.now().plusSeconds(waitInSeconds);
-
-        while (Instant.now().isBefore(timeOut)) {
-            for (Device device : devices) {
-                List<DeviceInstance> instances = device.getInstances();
-                if (CollectionUtils.isNullOrEmpty(instances)) {
-                    continue;
+    public CompletableFuture<DirectDeviceSession> createDirectDeviceAccessSessionAsync(
+            DirectDeviceAccessCapabilities capabilities) {
+        CompletableFuture<DirectDeviceSession> future = new CompletableFuture<>();
+        CompletableFuture<DeviceFarmTunnel> preparing = prepareTunnelAsync();
+        CompletableFuture<RemoteAccessSession> creating = requestRemoteAccessSessionAsync(
+                capabilities);
+        future.whenComplete((session, th) -> {
+            if (future.isCancelled()) {
+                // skips the call if it is still waiting for its permit.
+                creating.cancel(false);
+            }
+        });
+        creating.whenComplete((created, e) -> {
+            if (e != null) {
+                discardTunnel(preparing);
+                future.completeExceptionally(e);
+                return;
+            }
+            if (future.isDone()) {
+                stopRemoteAccessSessionQuietly(created);
+                discardTunnel(preparing);
+                return;
+            }
+            CompletableFuture<RemoteAccessSession> running = whenRunning(capabilities, created);
+            future.whenComplete((session, th) -> {
+                if (future.isCancelled() && running.cancel(false)) {
+                    stopRemoteAccessSessionQuietly(created);
+                    discardTunnel(preparing);
                 }
-                for (DeviceInstance instance : instances) {
-                    if (instance.getStatus().equalsIgnoreCase("AVAILABLE")) {
-                        return instance;
+            });
+            running.whenComplete((session, th) -> {
+                if (th != null) {
+                    if (!running.isCancelled()) {
+                        // timed out or ended, the cancel path stops it otherwise.
+                        stopRemoteAccessSessionQuietly(created);
                     }
+                    discardTunnel(preparing);
+                    future.completeExceptionally(th);
+                } else {
+                    startDirectDeviceSessionAsync(session, preparing, future);
                 }
+            });
+        });
+        return future;
+    }
+
+    /**
+     * Create a session on an AVAILABLE device instance matching the query, hedged if enabled, see
+     * {@link #hedgeAfterSeconds(long)}. The timeout of the capabilities applies to getting a
+     * device and to the session being RUNNING.
+     * @param query {@link DeviceQuery} the device instance should match.
+     * @param capabilities {@link DirectDeviceAccessCapabilities}, the device instance is ignored.
+     * @return {@link DirectDeviceSession}.
+     */
+    public DirectDeviceSession createDirectDeviceAccessSession(DeviceQuery query,
+            DirectDeviceAccessCapabilities capabilities) {
+        CompletableFuture<DirectDeviceSession> future = createDirectDeviceAccessSessionAsync(query,
+                capabilities);
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new DeviceFarmException("Interrupted while creating a session on a device"
+                    + " matching " + query, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof DeviceFarmException) {
+                throw (DeviceFarmException) e.getCause();
             }
-            DateTimeUtils.sleep(5000);
+            throw new DeviceFarmException("Failed to create a session on a device matching "
+                    + query, e.getCause());
+        }
+    }
+
+    /**
+     * Non blocking variant of
+     * {@link #createDirectDeviceAccessSession(DeviceQuery, DirectDeviceAccessCapabilities)}.
+     * Cancelling the future stops every session it started.
+     * @param query {@link DeviceQuery} the device instance should match.
+     * @param capabilities {@link DirectDeviceAccessCapabilities}, the device instance is ignored.
+     * @return future completed with the {@link DirectDeviceSession}.
+     */
+    public CompletableFuture<DirectDeviceSession> createDirectDeviceAccessSessionAsync(
+            DeviceQuery query, DirectDeviceAccessCapabilities capabilities) {
+        if (hedgeDelayInSeconds <= 0) {
+            return acquireDirectDeviceSession(query, capabilities);
+        }
+        return new HedgedSessionAcquisition(() -> acquireDirectDeviceSession(query, capabilities),
+                this::stopDirectDeviceAccessSessionQuietly, hedgesFired, hedgesWon).start(
+                        scheduler, TimeUnit.SECONDS.toMillis(hedgeDelayInSeconds));
+    }
+
+    /**
+     * Provision several direct device access sessions concurrently. Each session is created and its
+     * tunnel started independently, so one failure does not affect the others. Sessions that were
+     * provisioned successfully are never stopped by the batch, the caller owns them.
+     * @param capabilitiesList {@link DirectDeviceAccessCapabilities} for each session.
+     * @param parallelism max number of sessions provisioned at the same time.
+     * @return {@link DirectDeviceSessionBatch} handing out the results as they become ready.
+     */
+    public DirectDeviceSessionBatch createDirectDeviceAccessSessions(
+            List<DirectDeviceAccessCapabilities> capabilitiesList, int parallelism) {
+        return new DirectDeviceSessionBatch(capabilitiesList, parallelism,
+                this::createDirectDeviceAccessSession);
+    }
+
+    /**
+     * @param waitInSeconds Max time to wait for a device to be available in seconds.
+     * @return {@link DeviceInstance}.
+     */
+    public DeviceInstance getAndroidPhone(long waitInSeconds) {
+        return getDevice(DeviceQuery.androidPhone(), waitInSeconds);
+    }
+
+    /**
+     * @param query {@link DeviceQuery} the device instance should match.
+     * @param waitInSeconds Max time to wait for a device to be available in seconds.
+     * @return an AVAILABLE {@link DeviceInstance} matching the query, reserved for the caller.
+     */
+    public DeviceInstance getDevice(DeviceQuery query, long waitInSeconds) {
+        return reserveDevice(query, 0, waitInSeconds).getInstance();
+    }
+
+    /**
+     * Reserve an AVAILABLE device instance matching the query. Concurrent callers never get the
+     * same instance; when none is available they are served by priority, then in arrival order.
+     * The reservation ends once a session is started on the instance, see
+     * {@link DeviceReservation}.
+     * @param query {@link DeviceQuery} the device instance should match.
+     * @param priority priority of the request, higher first.
+     * @param waitInSeconds Max time to wait for a device to be available in seconds.
+     * @return {@link DeviceReservation}.
+     */
+    public DeviceReservation reserveDevice(DeviceQuery query, int priority, long waitInSeconds) {
+        CompletableFuture<DeviceReservation> future = deviceAllocator.allocate(query, priority);
+        try {
+            return future.get(waitInSeconds, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            abandon(future);
+            throw new DeviceFarmException("Unable to get a device matching " + query
+                    + " within given timeout of " + waitInSeconds
+                    + " seconds. Instances matching: \n" + deviceCatalog.getSnapshot().getIndex()
+                            .find(query).toString(), e);
+        } catch (InterruptedException e) {
+            abandon(future);
+            Thread.currentThread().interrupt();
+            throw new DeviceFarmException("Interrupted while waiting for a device matching "
+                    + query, e);
+        } catch (ExecutionException e) {
+            throw new DeviceFarmException("Failed to get a device matching " + query, e
+                    .getCause());
         }
-        throw new DeviceFarmException("Unable to get an Android device within given timeout of "
-                + waitInSeconds + " seconds. Devices returned: \n" + devices.toString());
+    }
+
+    /**
+     * Leave the queue of the {@link DeviceAllocator}, or hand the device over to the next
+     * requester if it was granted in the meantime.
+     * @param reservation the reservation nobody waits for any more.
+     */
+    private static void abandon(CompletableFuture<DeviceReservation> reservation) {
+        if (!reservation.cancel(false)) {
+            reservation.thenAccept(DeviceReservation::release);
+        }
+    }
+
+    /**
+     * Non blocking variant of {@link #getDevice(DeviceQuery, long)}. Cancelling the future leaves
+     * the queue of the {@link DeviceAllocator}.
+     * @param query {@link DeviceQuery} the device instance should match.
+     * @param waitInSeconds Max time to wait for a device to be available in seconds.
+     * @return future completed with an AVAILABLE {@link DeviceInstance} matching the query,
+     *         reserved for the caller.
+     */
+    public CompletableFuture<DeviceInstance> getDeviceAsync(DeviceQuery query,
+            long waitInSeconds) {
+        CompletableFuture<DeviceReservation> reservation = reserveDeviceAsync(query, 0,
+                waitInSeconds);
+        CompletableFuture<DeviceInstance> future = reservation.thenApply(
+                DeviceReservation::getInstance);
+        future.whenComplete((instance, th) -> {
+            if (future.isCancelled()) {
+                abandon(reservation);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Non blocking variant of {@link #reserveDevice(DeviceQuery, int, long)}. Cancelling the
+     * future leaves the queue of the {@link DeviceAllocator}.
+     * @param query {@link DeviceQuery} the device instance should match.
+     * @param priority priority of the request, higher first.
+     * @param waitInSeconds Max time to wait for a device to be available in seconds.
+     * @return future completed with the {@link DeviceReservation}.
+     */
+    public CompletableFuture<DeviceReservation> reserveDeviceAsync(DeviceQuery query,
+            int priority, long waitInSeconds) {
+        CompletableFuture<DeviceReservation> future = deviceAllocator.allocate(query, priority);
+        ScheduledFuture<?> timeout = scheduler.schedule(() -> future.completeExceptionally(
+                new DeviceFarmException("Unable to get a device matching " + query
+                        + " within given timeout of " + waitInSeconds + " seconds.")),
+                waitInSeconds, TimeUnit.SECONDS);
+        future.whenComplete((reservation, th) -> timeout.cancel(false));
+        return future;
+    }
+
+    /**
+     * @return {@link DeviceAllocator} handing out the device instances to concurrent requesters.
+     */
+    public DeviceAllocator getDeviceAllocator() {
+        return deviceAllocator;
+    }
+
+    /**
+     * @return {@link DeviceAvailabilityWatcher} publishing the status changes of the device
+     *         instances.
+     */
+    public DeviceAvailabilityWatcher getAvailabilityWatcher() {
+        return availabilityWatcher;
+    }
+
+    /**
+     * @return {@link DeviceCatalog} caching the devices of Device Farm.
+     */
+    public DeviceCatalog getDeviceCatalog() {
+        return deviceCatalog;
+    }
+
+    /**
+     * Stop the threads of the client: the scheduler, the tunnel starters, the session tracker, the
+     * availability watcher and the device catalog refresh. The sessions already created are left
+     * as they are, the operations still in progress may never complete.
+     */
+    @Override
+    public void close() {
+        sessionTracker.close();
+        availabilityWatcher.close();
+        deviceCatalog.close();
+        scheduler.shutdownNow();
+        tunnelStarter.shutdownNow();
     }
 
     /**
@@ -105,10 +479,38 @@ public DeviceInstance getAndroidPhone(long waitInSeconds) {
      * @return {@link RemoteAccessSession}
      */
     public RemoteAccessSession stopDirectDeviceAccessSession(DirectDeviceSession session) {
+        unwatchTunnel(session);
         session.getTunnel().stopTunnel();
         return stopRemoteAccessSession(session.getRemoteAccessSession());
     }
 
+    /**
+     * Non blocking variant of {@link #stopDirectDeviceAccessSession(DirectDeviceSession)}.
+     * @param session {@link DirectDeviceSession}.
+     * @return future completed with the {@link RemoteAccessSession}.
+     */
+    public CompletableFuture<RemoteAccessSession> stopDirectDeviceAccessSessionAsync(
+            DirectDeviceSession session) {
+        unwatchTunnel(session);
+        // stopping the tunnel blocks, keep it off the scheduler.
+        return CompletableFuture.runAsync(() -> session.getTunnel().stopTunnel(), tunnelStarter)
+                .thenCompose(stopped -> stopRemoteAccessSessionAsync(session
+                        .getRemoteAccessSession()));
+    }
+
+    /**
+     * @param arn ARN of the remote access session.
+     * @return the current state of the {@link RemoteAccessSession}.
+     */
+    public RemoteAccessSession getRemoteAccessSession(String arn) {
+        GetRemoteAccessSessionRequest request = new GetRemoteAccessSessionRequest();
+        request.setArn(arn);
+        GetRemoteAccessSessionResult result = requestScheduler.call(
+                DeviceFarmRequestScheduler.GET_REMOTE_ACCESS_SESSION, () -> farm
+                        .getRemoteAccessSession(request));
+        return result.getRemoteAccessSession();
+    }
+
     /**
      * @param capabilities {@link DirectDeviceAccessCapabilities}.
      * @return {@link RemoteAccessSession}.
@@ -116,50 +518,284 @@ public RemoteAccessSession stopDirectDeviceAccessSession(DirectDeviceSession ses
     private RemoteAccessSession createRemoteAccessSession(
             final DirectDeviceAccessCapabilities capabilities) {
 
+        RemoteAccessSession session = requestRemoteAccessSession(capabilities);
+        CompletableFuture<RemoteAccessSession> running = sessionTracker.whenRunning(capabilities
+                .getProjectArn(), session.getArn());
+        try {
+            return running.get(capabilities.getTimeOutInSeconds(), TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            stopRemoteAccessSessionQuietly(session);
+            throw sessionTimeout(capabilities);
+        } catch (InterruptedException e) {
+            stopRemoteAccessSessionQuietly(session);
+            Thread.currentThread().interrupt();
+            throw new DeviceFarmException("Interrupted while waiting for RemoteAccessSession "
+                    + session.getArn(), e);
+        } catch (ExecutionException e) {
+            stopRemoteAccessSessionQuietly(session);
+            throw new DeviceFarmException("RemoteAccessSession " + session.getArn()
+                    + " did not start.", e.getCause());
+        } finally {
+            // stops tracking the session if still waiting.
+            running.cancel(false);
+        }
+    }
+
+    /**
+     * Ask Device Farm for a remote access session, without waiting for it to be RUNNING.
+     * @param capabilities {@link DirectDeviceAccessCapabilities}.
+     * @return the created {@link RemoteAccessSession}.
+     */
+    private RemoteAccessSession requestRemoteAccessSession(
+            final DirectDeviceAccessCapabilities capabilities) {
+        CreateRemoteAccessSessionRequest request = createRemoteAccessSessionRequest(capabilities);
+        try {
+            return requestScheduler.call(DeviceFarmRequestScheduler.CREATE_REMOTE_ACCESS_SESSION,
+                    () -> farm.createRemoteAccessSession(request)).getRemoteAccessSession();
+        } catch (RuntimeException e) {
+            // hand the instance over to the next requester.
+            deviceAllocator.release(request.getInstanceArn());
+            throw e;
+        }
+    }
+
+    /**
+     * Non blocking variant of {@link #requestRemoteAccessSession(DirectDeviceAccessCapabilities)},
+     * the call waits for its permit on the scheduler without sleeping.
+     * @param capabilities {@link DirectDeviceAccessCapabilities}.
+     * @return future completed with the created {@link RemoteAccessSession}.
+     */
+    private CompletableFuture<RemoteAccessSession> requestRemoteAccessSessionAsync(
+            final DirectDeviceAccessCapabilities capabilities) {
+        CreateRemoteAccessSessionRequest request = createRemoteAccessSessionRequest(capabilities);
+        CompletableFuture<RemoteAccessSession> created = requestScheduler.callAsync(
+                DeviceFarmRequestScheduler.CREATE_REMOTE_ACCESS_SESSION, () -> farm
+                        .createRemoteAccessSession(request).getRemoteAccessSession(), scheduler);
+        created.whenComplete((session, th) -> {
+            if (th != null) {
+                // hand the instance over to the next requester.
+                deviceAllocator.release(request.getInstanceArn());
+            }
+        });
+        return created;
+    }
+
+    /**
+     * @param capabilities {@link DirectDeviceAccessCapabilities}.
+     * @return {@link CreateRemoteAccessSessionRequest} for the capabilities.
+     */
+    private CreateRemoteAccessSessionRequest createRemoteAccessSessionRequest(
+            final DirectDeviceAccessCapabilities capabilities) {
         CreateRemoteAccessSessionRequest request = new CreateRemoteAccessSessionRequest();
         request.setProjectArn(capabilities.getProjectArn());
         request.setDeviceArn(capabilities.getDeviceInstance().getDeviceArn());
+        // target the reserved instance, not just any instance of the same device.
+        request.setInstanceArn(capabilities.getDeviceInstance().getArn());
         request.setSshPublicKey(awsDirectory.getPublicKeyContents());
         request.setRemoteDebugEnabled(true);
         request.setName(capabilities.getName());
+        return request;
+    }
 
-        CreateRemoteAccessSessionResult result = farm.createRemoteAccessSession(request);
-        RemoteAccessSession session = result.getRemoteAccessSession();
+    /**
+     * @param capabilities {@link DirectDeviceAccessCapabilities}.
+     * @param created the created {@link RemoteAccessSession}.
+     * @return future completed with the RUNNING session, failed after the timeout of the
+     *         capabilities.
+     */
+    private CompletableFuture<RemoteAccessSession> whenRunning(
+            DirectDeviceAccessCapabilities capabilities, RemoteAccessSession created) {
+        CompletableFuture<RemoteAccessSession> running = sessionTracker.whenRunning(capabilities
+                .getProjectArn(), created.getArn());
+        ScheduledFuture<?> timeout = scheduler.schedule(() -> running.completeExceptionally(
+                sessionTimeout(capabilities)), capabilities.getTimeOutInSeconds(),
+                TimeUnit.SECONDS);
+        running.whenComplete((session, th) -> timeout.cancel(false));
+        return running;
+    }
 
-        GetRemoteAccessSessionRequest remoteAccessSessionReq = new GetRemoteAccessSessionRequest();
-        remoteAccessSessionReq.setArn(session.getArn());
+    /**
+     * Get a device matching the query, then create a session on it.
+     * @param query {@link DeviceQuery} the device instance should match.
+     * @param capabilities {@link DirectDeviceAccessCapabilities}, the device instance is ignored.
+     * @return future completed with the {@link DirectDeviceSession}. Cancelling it gives the
+     *         device back or stops the session.
+     */
+    private CompletableFuture<DirectDeviceSession> acquireDirectDeviceSession(DeviceQuery query,
+            DirectDeviceAccessCapabilities capabilities) {
+        CompletableFuture<DirectDeviceSession> future = new CompletableFuture<>();
+        CompletableFuture<DeviceInstance> device = getDeviceAsync(query, capabilities
+                .getTimeOutInSeconds());
+        AtomicReference<CompletableFuture<DirectDeviceSession>> creating =
+                new AtomicReference<>();
+        device.whenComplete((instance, th) -> {
+            if (th != null) {
+                future.completeExceptionally(th);
+                return;
+            }
+            CompletableFuture<DirectDeviceSession> session = createDirectDeviceAccessSessionAsync(
+                    capabilities.copy().deviceInstance(instance));
+            creating.set(session);
+            if (future.isCancelled()) {
+                session.cancel(false);
+            }
+            session.whenComplete((started, e) -> {
+                if (e != null) {
+                    future.completeExceptionally(e);
+                } else if (!future.complete(started)) {
+                    stopDirectDeviceAccessSessionQuietly(started);
+                }
+            });
+        });
+        future.whenComplete((started, th) -> {
+            if (future.isCancelled()) {
+                device.cancel(false);
+                CompletableFuture<DirectDeviceSession> session = creating.get();
+                if (session != null) {
+                    session.cancel(false);
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Start the tunnel of a RUNNING session without blocking the caller.
+     * @param running {@link RemoteAccessSession} in RUNNING state.
+     * @param preparing the tunnel being prepared.
+     * @param future completed with the {@link DirectDeviceSession}.
+     */
+    private void startDirectDeviceSessionAsync(RemoteAccessSession running,
+            CompletableFuture<DeviceFarmTunnel> preparing,
+            CompletableFuture<DirectDeviceSession> future) {
+        // starting the tunnel blocks, keep it off the scheduler. Waiting for the tunnel to be
+        // prepared first keeps the bounded pool from being filled with threads waiting on it.
+        preparing.handle((tunnel, th) -> th).thenRunAsync(() -> {
+            if (future.isDone()) {
+                stopRemoteAccessSessionQuietly(running);
+                discardTunnel(preparing);
+                return;
+            }
+            try {
+                DirectDeviceSession started = startDirectDeviceSession(running, preparing);
+                if (!future.complete(started)) {
+                    stopDirectDeviceAccessSessionQuietly(started);
+                }
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        }, tunnelStarter).whenComplete((started, th) -> {
+            if (th != null) {
+                // the client was closed.
+                stopRemoteAccessSessionQuietly(running);
+                discardTunnel(preparing);
+                future.completeExceptionally(th);
+            }
+        });
+    }
 
-        GetRemoteAccessSessionResult remoteAccessSessionResult = null;
-        Instant sessionTimeout = Instant.now().plusSeconds(capabilities.getTimeOutInSeconds());
+    /**
+     * Start the tunnel of a RUNNING session, stopping the session if the tunnel fails to start.
+     * @param remoteAccessSession {@link RemoteAccessSession} in RUNNING state.
+     * @param preparing the tunnel being prepared.
+     * @return {@link DirectDeviceSession}.
+     */
+    private DirectDeviceSession startDirectDeviceSession(RemoteAccessSession remoteAccessSession,
+            CompletableFuture<DeviceFarmTunnel> preparing) {
+        DeviceFarmTunnel tunnel;
+        try {
+            tunnel = startTunnel(awaitTunnel(preparing), remoteAccessSession);
+        } catch (RuntimeException e) {
+            // do not leave a running session behind that nobody can use.
+            stopRemoteAccessSessionQuietly(remoteAccessSession);
+            discardTunnel(preparing);
+            throw e;
+        }
 
-        while (sessionTimeout.isAfter(Instant.now())) {
-            remoteAccessSessionResult = farm.getRemoteAccessSession(remoteAccessSessionReq);
+        DirectDeviceSession session = new DirectDeviceSession(remoteAccessSession, tunnel);
+        TunnelHealthMonitor monitor = tunnelHealthMonitor;
+        if (monitor != null) {
+            monitor.watch(session);
+        }
+        return session;
+    }
 
-            session = remoteAccessSessionResult.getRemoteAccessSession();
-            logger.debug("Status: {}, Session arn: {}, ", session.getStatus(),
-                    remoteAccessSessionReq);
+    /**
+     * @return the tunnel being prepared on the tunnel pool.
+     */
+    private CompletableFuture<DeviceFarmTunnel> prepareTunnelAsync() {
+        return CompletableFuture.supplyAsync(this::prepareTunnel, tunnelStarter);
+    }
 
-            if ("RUNNING".equalsIgnoreCase(session.getStatus())) {
-                return session;
+    /**
+     * @param preparing the tunnel being prepared.
+     * @return the prepared {@link DeviceFarmTunnel}.
+     */
+    private static DeviceFarmTunnel awaitTunnel(CompletableFuture<DeviceFarmTunnel> preparing) {
+        try {
+            return preparing.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
             }
-            DateTimeUtils.sleep(2000);
-        }
-        // one more check
-        if ("RUNNING".equalsIgnoreCase(session.getStatus())) {
-            return session;
+            throw new DeviceFarmException("Failed to prepare the tunnel.", e.getCause());
         }
-        throw new DeviceFarmException(
+    }
+
+    /**
+     * Delete the tunnel being prepared once it is ready, as it will never be started.
+     * @param preparing the tunnel being prepared.
+     */
+    private static void discardTunnel(CompletableFuture<DeviceFarmTunnel> preparing) {
+        preparing.thenAccept(DeviceFarmTunnel::discard);
+    }
+
+    /**
+     * @param capabilities {@link DirectDeviceAccessCapabilities}.
+     * @return {@link DeviceFarmException} for a session not RUNNING in time.
+     */
+    private static DeviceFarmException sessionTimeout(
+            DirectDeviceAccessCapabilities capabilities) {
+        return new DeviceFarmException(
                 "RemoteAccessSession did not start within the given timeout of " + capabilities
                         .getTimeOutInSeconds() + " seconds.");
+    }
 
+    /**
+     * Prepare a tunnel whose host is not known yet, see {@link DeviceFarmTunnel#prepare()}. The
+     * tunnel is discarded if it fails to be prepared.
+     * @return the prepared {@link DeviceFarmTunnel}.
+     */
+    protected DeviceFarmTunnel prepareTunnel() {
+        DeviceFarmTunnel tunnel = new DeviceFarmTunnel();
+        try {
+            tunnel.prepare();
+        } catch (RuntimeException e) {
+            tunnel.discard();
+            throw e;
+        }
+        return tunnel;
+    }
+
+    /**
+     * Start the prepared tunnel to the host of the given running session.
+     * @param tunnel the prepared {@link DeviceFarmTunnel}.
+     * @param remoteAccessSession {@link RemoteAccessSession} in RUNNING state.
+     * @return the started {@link DeviceFarmTunnel}.
+     */
+    protected DeviceFarmTunnel startTunnel(DeviceFarmTunnel tunnel,
+            RemoteAccessSession remoteAccessSession) {
+        tunnel.hostAddress(remoteAccessSession.getHostAddress()).start(awsDirectory);
+        return tunnel;
     }
 
     /**
+     * @param request {@link ListDevicesRequest}.
      * @return {@link ListDevicesResult}.
      */
-    private ListDevicesResult listDevices() {
-        ListDevicesRequest request = new ListDevicesRequest();
-        return farm.listDevices(request);
+    private ListDevicesResult listDevices(ListDevicesRequest request) {
+        return requestScheduler.call(DeviceFarmRequestScheduler.LIST_DEVICES, () -> farm
+                .listDevices(request));
     }
 
     /**
@@ -170,7 +806,60 @@ private RemoteAccessSession stopRemoteAccessSession(RemoteAccessSession session)
         StopRemoteAccessSessionRequest request = new StopRemoteAccessSessionRequest();
         request.setArn(session.getArn());
 
-        return farm.stopRemoteAccessSession(request).getRemoteAccessSession();
+        return requestScheduler.call(DeviceFarmRequestScheduler.STOP_REMOTE_ACCESS_SESSION,
+                () -> farm.stopRemoteAccessSession(request)).getRemoteAccessSession();
+    }
+
+    /**
+     * Stop the tunnel and the session ignoring all errors.
+     * @param session {@link DirectDeviceSession}
+     */
+    private void stopDirectDeviceAccessSessionQuietly(DirectDeviceSession session) {
+        unwatchTunnel(session);
+        try {
+            session.getTunnel().stopTunnel();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to stop tunnel of session: {}", session.getRemoteAccessSession()
+                    .getArn(), e);
+        }
+        stopRemoteAccessSessionQuietly(session.getRemoteAccessSession());
+    }
+
+    /**
+     * @param session {@link DirectDeviceSession} about to be stopped.
+     */
+    private void unwatchTunnel(DirectDeviceSession session) {
+        TunnelHealthMonitor monitor = tunnelHealthMonitor;
+        if (monitor != null) {
+            monitor.unwatch(session);
+        }
+    }
+
+    /**
+     * @param session {@link RemoteAccessSession}
+     * @return future completed with the stopped {@link RemoteAccessSession}, the call waits for
+     *         its permit on the scheduler without sleeping.
+     */
+    private CompletableFuture<RemoteAccessSession> stopRemoteAccessSessionAsync(
+            RemoteAccessSession session) {
+        StopRemoteAccessSessionRequest request = new StopRemoteAccessSessionRequest();
+        request.setArn(session.getArn());
+
+        return requestScheduler.callAsync(DeviceFarmRequestScheduler.STOP_REMOTE_ACCESS_SESSION,
+                () -> farm.stopRemoteAccessSession(request).getRemoteAccessSession(), scheduler);
+    }
+
+    /**
+     * Stop the session in the background ignoring all errors. It is called from the callbacks of
+     * the asynchronous operations, which must not wait for a permit.
+     * @param session {@link RemoteAccessSession}
+     */
+    private void stopRemoteAccessSessionQuietly(RemoteAccessSession session) {
+        stopRemoteAccessSessionAsync(session).whenComplete((stopped, e) -> {
+            if (e != null) {
+                logger.warn("Failed to stop remote access session: {}", session.getArn(), e);
+            }
+        });
     }
 
 }
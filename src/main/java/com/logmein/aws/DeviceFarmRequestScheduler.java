@@ -0,0 +1,451 @@
+package com.logmein.aws;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.SdkBaseException;
+import com.amazonaws.retry.PredefinedRetryPolicies;
+import com.amazonaws.retry.RetryPolicy;
+import com.amazonaws.retry.RetryUtils;
+import com.logmein.aws.utils.PollingStrategy;
+
+/**
+ * Coordinates the calls made to Device Farm so that bursts from many threads stay under the API
+ * limits. Every operation has its own token bucket: a call takes a permit, waiting in arrival
+ * order when the bucket is empty. When Device Farm still throttles a call, the bucket of the
+ * operation is paused and emptied for a backoff delay, and the call is retried.
+ * {@link #call(String, Supplier)} sleeps on the caller's thread until its permit is available,
+ * {@link #callAsync(String, Supplier, ScheduledExecutorService)} reserves the permit and schedules
+ * the call for then instead, for the threads that must not sleep. The SDK client
+ * should not retry throttled calls itself, see {@link #sdkRetryPolicy()}.
+ * <p>
+ * A scheduler can be shared between several {@link DeviceFarmClient}s using the same account, see
+ * {@link DeviceFarmClient#requestScheduler(DeviceFarmRequestScheduler)}.
+ */
+public class DeviceFarmRequestScheduler {
+
+    public static final String CREATE_REMOTE_ACCESS_SESSION = "CreateRemoteAccessSession";
+
+    public static final String GET_REMOTE_ACCESS_SESSION = "GetRemoteAccessSession";
+
+    public static final String LIST_DEVICES = "ListDevices";
+
+    public static final String LIST_REMOTE_ACCESS_SESSIONS = "ListRemoteAccessSessions";
+
+    public static final String STOP_REMOTE_ACCESS_SESSION = "StopRemoteAccessSession";
+
+    /**
+     * Token bucket of an operation.
+     */
+    static class TokenBucket {
+
+        /**
+         * Permits added per second.
+         */
+        private final double permitsPerSecond;
+
+        /**
+         * Max permits stored while idle.
+         */
+        private final double burst;
+
+        /**
+         * Stored permits, negative when callers are already waiting for future permits.
+         */
+        private double permits;
+
+        /**
+         * Time permits were last added, from {@link System#nanoTime()}.
+         */
+        private long lastRefill = System.nanoTime();
+
+        /**
+         * Constructor.
+         * @param rate permits added per second.
+         * @param burstSize max permits stored while idle.
+         */
+        TokenBucket(final double rate, final int burstSize) {
+            if (rate <= 0 || burstSize < 1) {
+                throw new IllegalArgumentException("Rate and burst must be positive: " + rate
+                        + ", " + burstSize);
+            }
+            permitsPerSecond = rate;
+            burst = burstSize;
+            permits = burstSize;
+        }
+
+        /**
+         * Take the next permit.
+         * @return time to wait in nanoseconds before the permit may be used.
+         */
+        synchronized long reserve() {
+            long now = System.nanoTime();
+            refill(now);
+            permits -= 1;
+            if (permits >= 0) {
+                return 0;
+            }
+            return (long) (-permits / permitsPerSecond * TimeUnit.SECONDS.toNanos(1));
+        }
+
+        /**
+         * Drop the stored permits and hand out no new one for a while: the next callers wait
+         * behind the pause, then get permits at the normal rate again.
+         * @param nanos pause in nanoseconds.
+         */
+        synchronized void pause(long nanos) {
+            refill(System.nanoTime());
+            permits = Math.min(permits, 0) - nanos * permitsPerSecond / TimeUnit.SECONDS.toNanos(
+                    1);
+        }
+
+        /**
+         * @param now current time, from {@link System#nanoTime()}.
+         */
+        private void refill(long now) {
+            double elapsed = (double) (now - lastRefill) / TimeUnit.SECONDS.toNanos(1);
+            permits = Math.min(burst, permits + elapsed * permitsPerSecond);
+            lastRefill = now;
+        }
+    }
+
+    /**
+     * Bucket and counters of an operation.
+     */
+    private static class Operation {
+
+        /**
+         * Name of the operation.
+         */
+        private final String name;
+
+        /**
+         * {@link TokenBucket}.
+         */
+        private final TokenBucket bucket;
+
+        /**
+         * Calls made, retries included.
+         */
+        private final AtomicLong calls = new AtomicLong();
+
+        /**
+         * Calls rejected because of throttling.
+         */
+        private final AtomicLong throttled = new AtomicLong();
+
+        /**
+         * Requests waiting for a permit.
+         */
+        private final AtomicLong queueDepth = new AtomicLong();
+
+        /**
+         * Highest number of requests waiting for a permit.
+         */
+        private final AtomicLong maxQueueDepth = new AtomicLong();
+
+        /**
+         * Longest wait for a permit in milliseconds.
+         */
+        private final AtomicLong maxWaitMillis = new AtomicLong();
+
+        /**
+         * Sum of the waits for a permit in milliseconds.
+         */
+        private final AtomicLong totalWaitMillis = new AtomicLong();
+
+        /**
+         * @param operationName name of the operation.
+         * @param tokenBucket {@link TokenBucket}.
+         */
+        Operation(final String operationName, final TokenBucket tokenBucket) {
+            name = operationName;
+            bucket = tokenBucket;
+        }
+
+        /**
+         * @return {@link DeviceFarmRequestStats}.
+         */
+        DeviceFarmRequestStats getStats() {
+            return new DeviceFarmRequestStats(name, calls.get(), throttled.get(), queueDepth
+                    .get(), maxQueueDepth.get(), maxWaitMillis.get(), totalWaitMillis.get());
+        }
+    }
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(DeviceFarmRequestScheduler.class);
+
+    /**
+     * Operations by name.
+     */
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+
+    /**
+     * Permits per second of the operations without a specific rate.
+     */
+    private double defaultPermitsPerSecond = 5;
+
+    /**
+     * Burst of the operations without a specific rate.
+     */
+    private int defaultBurst = 10;
+
+    /**
+     * Delays used after throttled calls.
+     */
+    private PollingStrategy backoff = PollingStrategy.exponential(500, 10000);
+
+    /**
+     * Max number of retries of a throttled call.
+     */
+    private int maxRetries = 5;
+
+    /**
+     * @param permitsPerSecond calls per second allowed for the operations without a specific
+     *            rate. By default this is 5.
+     * @param burst calls allowed at once after an idle period. By default this is 10.
+     * @return {@link DeviceFarmRequestScheduler}.
+     */
+    public DeviceFarmRequestScheduler defaultRate(double permitsPerSecond, int burst) {
+        defaultPermitsPerSecond = permitsPerSecond;
+        defaultBurst = burst;
+        return this;
+    }
+
+    /**
+     * @param operation name of the operation, e.g. {@link #LIST_DEVICES}.
+     * @param permitsPerSecond calls per second allowed.
+     * @param burst calls allowed at once after an idle period.
+     * @return {@link DeviceFarmRequestScheduler}.
+     */
+    public DeviceFarmRequestScheduler rate(String operation, double permitsPerSecond, int burst) {
+        operations.put(operation, new Operation(operation, new TokenBucket(permitsPerSecond,
+                burst)));
+        return this;
+    }
+
+    /**
+     * @param strategy {@link PollingStrategy} giving the delays after throttled calls. By default
+     *            the first delay is 0.5 seconds, then it doubles up to 10 seconds.
+     * @return {@link DeviceFarmRequestScheduler}.
+     */
+    public DeviceFarmRequestScheduler backoff(PollingStrategy strategy) {
+        backoff = strategy;
+        return this;
+    }
+
+    /**
+     * @param retries max number of retries of a throttled call. By default this is 5.
+     * @return {@link DeviceFarmRequestScheduler}.
+     */
+    public DeviceFarmRequestScheduler maxRetries(int retries) {
+        maxRetries = retries;
+        return this;
+    }
+
+    /**
+     * Make a call once a permit of the operation is available, retrying it while it is throttled.
+     * @param operation name of the operation, e.g. {@link #LIST_DEVICES}.
+     * @param request the call to Device Farm.
+     * @param <T> result type.
+     * @return the result of the call.
+     * @throws DeviceFarmException if interrupted while waiting.
+     */
+    public <T> T call(String operation, Supplier<T> request) {
+        Operation op = getOperation(operation);
+        PollingStrategy.Poll poll = backoff.start(null);
+        for (int attempt = 0;; attempt++) {
+            acquire(op);
+            try {
+                return request.get();
+            } catch (AmazonServiceException e) {
+                if (!pauseToRetry(op, e, attempt, poll)) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Non blocking variant of {@link #call(String, Supplier)}: the permit is reserved right away
+     * and the call is scheduled for the time the permit is available, nothing sleeps.
+     * @param operation name of the operation, e.g. {@link #LIST_DEVICES}.
+     * @param request the call to Device Farm.
+     * @param executor runs the call, and its retries, once their permit is available.
+     * @param <T> result type.
+     * @return future completed with the result of the call. Cancelling it before the call is made
+     *         skips the call.
+     */
+    public <T> CompletableFuture<T> callAsync(String operation, Supplier<T> request,
+            ScheduledExecutorService executor) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        schedule(getOperation(operation), request, executor, future, backoff.start(null), 0);
+        return future;
+    }
+
+    /**
+     * @return {@link RetryPolicy} for the SDK client whose calls go through a scheduler: the
+     *         default policy, except that throttled calls are left to the scheduler instead of
+     *         being retried by the SDK as well.
+     */
+    public static RetryPolicy sdkRetryPolicy() {
+        return new RetryPolicy((request, exception, retries) -> !(exception instanceof
+                AmazonServiceException && isThrottling((AmazonServiceException) exception))
+                && PredefinedRetryPolicies.DEFAULT_RETRY_CONDITION.shouldRetry(request,
+                        exception, retries), PredefinedRetryPolicies.DEFAULT_BACKOFF_STRATEGY,
+                PredefinedRetryPolicies.DEFAULT_MAX_ERROR_RETRY, true);
+    }
+
+    /**
+     * @param operation name of the operation.
+     * @return {@link DeviceFarmRequestStats} of the operation.
+     */
+    public DeviceFarmRequestStats getStats(String operation) {
+        return getOperation(operation).getStats();
+    }
+
+    /**
+     * @return {@link DeviceFarmRequestStats} of every operation called so far, by name.
+     */
+    public Map<String, DeviceFarmRequestStats> getStats() {
+        Map<String, DeviceFarmRequestStats> stats = new TreeMap<>();
+        for (Operation op : operations.values()) {
+            stats.put(op.name, op.getStats());
+        }
+        return stats;
+    }
+
+    /**
+     * @param operation name of the operation.
+     * @return the {@link Operation}, created with the default rate if needed.
+     */
+    private Operation getOperation(String operation) {
+        return operations.computeIfAbsent(operation, name -> new Operation(name,
+                new TokenBucket(defaultPermitsPerSecond, defaultBurst)));
+    }
+
+    /**
+     * Wait for a permit of the operation.
+     * @param op {@link Operation}.
+     */
+    private void acquire(Operation op) {
+        long wait = reserve(op);
+        try {
+            if (wait > 0) {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            recordCall(op, wait);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeviceFarmException("Interrupted while waiting to call " + op.name, e);
+        } finally {
+            op.queueDepth.decrementAndGet();
+        }
+    }
+
+    /**
+     * Reserve a permit of the operation, then make the call on the executor once it is available.
+     * @param op {@link Operation}.
+     * @param request the call to Device Farm.
+     * @param executor runs the call.
+     * @param future completed with the result of the call.
+     * @param poll backoff of the call.
+     * @param attempt number of the attempt, from 0.
+     * @param <T> result type.
+     */
+    private <T> void schedule(Operation op, Supplier<T> request, ScheduledExecutorService executor,
+            CompletableFuture<T> future, PollingStrategy.Poll poll, int attempt) {
+        long wait = reserve(op);
+        Runnable task = () -> {
+            op.queueDepth.decrementAndGet();
+            if (future.isDone()) {
+                return;
+            }
+            recordCall(op, wait);
+            try {
+                future.complete(request.get());
+            } catch (AmazonServiceException e) {
+                if (pauseToRetry(op, e, attempt, poll)) {
+                    schedule(op, request, executor, future, poll, attempt + 1);
+                } else {
+                    future.completeExceptionally(e);
+                }
+            } catch (RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        };
+        try {
+            executor.schedule(task, wait, TimeUnit.NANOSECONDS);
+        } catch (RejectedExecutionException e) {
+            op.queueDepth.decrementAndGet();
+            future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * Take the next permit of the operation, counting the caller as queued until the call is made.
+     * @param op {@link Operation}.
+     * @return time to wait in nanoseconds before the permit may be used.
+     */
+    private static long reserve(Operation op) {
+        long depth = op.queueDepth.incrementAndGet();
+        op.maxQueueDepth.accumulateAndGet(depth, Math::max);
+        return op.bucket.reserve();
+    }
+
+    /**
+     * @param op {@link Operation}.
+     * @param wait time waited for the permit in nanoseconds.
+     */
+    private static void recordCall(Operation op, long wait) {
+        long waitMillis = TimeUnit.NANOSECONDS.toMillis(wait);
+        op.maxWaitMillis.accumulateAndGet(waitMillis, Math::max);
+        op.totalWaitMillis.addAndGet(waitMillis);
+        op.calls.incrementAndGet();
+    }
+
+    /**
+     * Pause the operation after a throttled call, unless the call should not be retried.
+     * @param op {@link Operation}.
+     * @param e error of the call.
+     * @param attempt number of the attempt, from 0.
+     * @param poll backoff of the call.
+     * @return true if the call should be retried, else false.
+     */
+    private boolean pauseToRetry(Operation op, AmazonServiceException e, int attempt,
+            PollingStrategy.Poll poll) {
+        if (!isThrottling(e)) {
+            return false;
+        }
+        op.throttled.incrementAndGet();
+        if (attempt >= maxRetries) {
+            return false;
+        }
+        long delay = poll.nextDelayInMilliseconds();
+        logger.debug("{} throttled, pausing it for {} ms", op.name, delay);
+        op.bucket.pause(TimeUnit.MILLISECONDS.toNanos(delay));
+        return true;
+    }
+
+    /**
+     * @param e {@link AmazonServiceException}.
+     * @return true if the call was rejected because of throttling.
+     */
+    private static boolean isThrottling(AmazonServiceException e) {
+        return RetryUtils.isThrottlingException((SdkBaseException) e) || e.getStatusCode() == 429;
+    }
+
+}
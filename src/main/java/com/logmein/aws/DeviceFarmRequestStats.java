@@ -0,0 +1,140 @@
+package com.logmein.aws;
+
+/**
+ * Counters of one Device Farm operation of a {@link DeviceFarmRequestScheduler}, captured at a
+ * point in time.
+ */
+public class DeviceFarmRequestStats {
+
+    /**
+     * Name of the operation.
+     */
+    private final String operation;
+
+    /**
+     * Calls made to Device Farm, retries included.
+     */
+    private final long calls;
+
+    /**
+     * Calls rejected by Device Farm because of throttling.
+     */
+    private final long throttled;
+
+    /**
+     * Requests currently waiting for a permit.
+     */
+    private final long queueDepth;
+
+    /**
+     * Highest number of requests that waited for a permit at the same time.
+     */
+    private final long maxQueueDepth;
+
+    /**
+     * Longest wait for a permit in milliseconds.
+     */
+    private final long maxWaitMillis;
+
+    /**
+     * Sum of the waits for a permit in milliseconds.
+     */
+    private final long totalWaitMillis;
+
+    /**
+     * Constructor.
+     * @param operationName name of the operation.
+     * @param callCount calls made to Device Farm, retries included.
+     * @param throttledCount calls rejected by Device Farm because of throttling.
+     * @param depth requests currently waiting for a permit.
+     * @param maxDepth highest number of requests that waited for a permit at the same time.
+     * @param maxMillis longest wait for a permit in milliseconds.
+     * @param totalMillis sum of the waits for a permit in milliseconds.
+     */
+    DeviceFarmRequestStats(final String operationName, final long callCount,
+            final long throttledCount, final long depth, final long maxDepth,
+            final long maxMillis, final long totalMillis) {
+        operation = operationName;
+        calls = callCount;
+        throttled = throttledCount;
+        queueDepth = depth;
+        maxQueueDepth = maxDepth;
+        maxWaitMillis = maxMillis;
+        totalWaitMillis = totalMillis;
+    }
+
+    /**
+     * @return name of the operation.
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return calls made to Device Farm, retries included.
+     */
+    public long getCalls() {
+        return calls;
+    }
+
+    /**
+     * @return calls rejected by Device Farm because of throttling.
+     */
+    public long getThrottled() {
+        return throttled;
+    }
+
+    /**
+     * @return requests currently waiting for a permit.
+     */
+    public long getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return highest number of requests that waited for a permit at the same time.
+     */
+    public long getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    /**
+     * @return longest wait for a permit in milliseconds.
+     */
+    public long getMaxWaitMillis() {
+        return maxWaitMillis;
+    }
+
+    /**
+     * @return average wait for a permit in milliseconds.
+     */
+    public long getAverageWaitMillis() {
+        if (calls == 0) {
+            return 0;
+        }
+        return totalWaitMillis / calls;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("{");
+        str.append("Operation: ");
+        str.append(operation);
+        str.append(", Calls: ");
+        str.append(calls);
+        str.append(", Throttled: ");
+        str.append(throttled);
+        str.append(", QueueDepth: ");
+        str.append(queueDepth);
+        str.append(", MaxQueueDepth: ");
+        str.append(maxQueueDepth);
+        str.append(", MaxWaitMillis: ");
+        str.append(maxWaitMillis);
+        str.append(", AverageWaitMillis: ");
+        str.append(getAverageWaitMillis());
+        str.append("}");
+        return str.toString();
+    }
+
+}
@@ -1,12 +1,13 @@
 package com.logmein.aws;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.time.Instant;
+import java.nio.file.Files;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.io.FileUtils;
@@ -15,11 +16,7 @@
 import org.slf4j.LoggerFactory;
 
 import com.logmein.aws.executor.Executor;
-import com.logmein.aws.executor.ExecutorResult;
-import com.logmein.aws.utils.DateTimeUtils;
-
-import net.lingala.zip4j.core.ZipFile;
-import net.lingala.zip4j.exception.ZipException;
+import com.logmein.aws.executor.ProcessEngine;
 
 /**
  * Class for starting and stopping tunnel required for setting up a direct device access session.
@@ -29,18 +26,46 @@ public class DeviceFarmTunnel {
 
     public static final String TUNNEL_FILE_NAME = "aws-device-farm-tunnel";
 
-    private static final int BYTES = 1024;
-
     private static final String ERROR_MSG = "tunnel cannot be created";
 
     private static final String SUCCESS_MSG = "Use `ctrl + c` to stop the daemon";
 
+    /**
+     * Max time to wait for the tunnel to report being started.
+     */
+    private static final long START_TIMEOUT_IN_SECONDS = 40;
+
+    /**
+     * Number of recent lines of the tunnel output kept in memory.
+     */
+    private static final int OUTPUT_CAPTURE_LINES = 200;
+
+    /**
+     * Max size of the files the older tunnel output is moved to.
+     */
+    private static final long OUTPUT_SPILL_BYTES = 1024 * 1024;
+
     public static final String TUNNEL_ROOT_DIR = "DirectDeviceAccessTunnels";
 
+    /**
+     * Directory, under {@link #TUNNEL_ROOT_DIR}, of the extracted tunnel executables.
+     */
+    public static final String TUNNEL_CACHE_DIR = "cache";
+
+    /**
+     * Directory, under {@link #TUNNEL_ROOT_DIR}, of the lock files of the allocated local ports.
+     */
+    public static final String TUNNEL_PORTS_DIR = "ports";
+
+    /**
+     * {@link TunnelBinaryCache} shared by every tunnel, created on first use.
+     */
+    private static TunnelBinaryCache tunnelCache;
+
     /**
      * @return the root directory where the tunnel files are saved.
      */
-    private static synchronized File getRootTunnelDir() {
+    static synchronized File getRootTunnelDir() {
         String userHome = System.getProperty("user.home");
         File root = new File(userHome, TUNNEL_ROOT_DIR);
         if (!root.exists()) {
@@ -52,6 +77,16 @@ private static synchronized File getRootTunnelDir() {
 
     }
 
+    /**
+     * @return the {@link TunnelBinaryCache} shared by every tunnel.
+     */
+    private static synchronized TunnelBinaryCache getTunnelCache() {
+        if (tunnelCache == null) {
+            tunnelCache = new TunnelBinaryCache(new File(getRootTunnelDir(), TUNNEL_CACHE_DIR));
+        }
+        return tunnelCache;
+    }
+
     /**
      * Logger.
      */
@@ -65,10 +100,20 @@ private static synchronized File getRootTunnelDir() {
     /**
      * {@link Executor}.
      */
-    private Executor executor;
+    private volatile Executor executor;
 
     private File location;
 
+    /**
+     * Whether the tunnel was stopped or discarded by its owner.
+     */
+    private volatile boolean stopped;
+
+    /**
+     * Tunnel executable, null until prepared.
+     */
+    private File preparedTunnelFile;
+
     /**
      * Constructor.
      * @param hostIp the rmeote host to which the tunnel is being created.
@@ -76,7 +121,25 @@ private static synchronized File getRootTunnelDir() {
     public DeviceFarmTunnel(final String hostIp) {
         ipAddress = hostIp;
         location = createTunnelDirectory();
-        addShutDownHookToStopTunnelAndDeleteFile();
+        TunnelRegistry.getInstance().register(this);
+    }
+
+    /**
+     * Constructor for a tunnel prepared before the host is known, see {@link #prepare()}. The host
+     * must be set with {@link #hostAddress(String)} before starting the tunnel.
+     */
+    public DeviceFarmTunnel() {
+        location = createUniqueTunnelDirectory();
+        TunnelRegistry.getInstance().register(this);
+    }
+
+    /**
+     * @param hostIp the remote host to which the tunnel is being created.
+     * @return {@link DeviceFarmTunnel}.
+     */
+    public DeviceFarmTunnel hostAddress(String hostIp) {
+        ipAddress = hostIp;
+        return this;
     }
 
     /**
@@ -87,11 +150,28 @@ public File getLocation() {
     }
 
     /**
-     * Start the tunnel.
+     * Resolve the tunnel executable, so that {@link #start(AWSDirectory)} only has to launch it.
+     * This does not need the host and can run while waiting for the session. Calling this more
+     * than once has no effect.
+     * @return the tunnel executable.
+     */
+    public synchronized File prepare() {
+        if (preparedTunnelFile == null) {
+            preparedTunnelFile = getTunnel();
+        }
+        return preparedTunnelFile;
+    }
+
+    /**
+     * Start the tunnel. Starting a tunnel again restarts it to the same host.
      * @param dir {@link AWSDirectory}.
+     * @throws DeviceFarmException if the tunnel was stopped or discarded, or fails to start.
      */
     public void start(AWSDirectory dir) {
-        File tunnelFile = getTunnel();
+        if (ipAddress == null) {
+            throw new DeviceFarmException("The host of the tunnel is not set.");
+        }
+        File tunnelFile = prepare();
         logger.debug("Tunnel file: {}", tunnelFile.getAbsolutePath());
 
         // start the tunnel.
@@ -100,55 +180,103 @@ public void start(AWSDirectory dir) {
         command.addArgument(dir.getPrivateKey().getAbsolutePath());
         command.addArgument(ipAddress);
 
-        executor = new Executor(command).runInBackground(true).timeout(0);
-        executor.execute();
-        executor.waitUntilOutputOrErrorStreamIsNotEmpty(10000);
-
-        ExecutorResult result = null;
-        Instant timeout = Instant.now().plusSeconds(30);
-        while (timeout.isAfter(Instant.now())) {
-            result = executor.getResult();
-            logger.debug("Output stream: " + result.getOutputStream());
-            logger.debug("Error stream: " + result.getErrorStream());
-
-            if (result.getOutputStream().toString().contains(SUCCESS_MSG)) {
-                break;
+        Executor started;
+        CompletableFuture<String> marker;
+        // launched under the lock of stopTunnel, so a stopped tunnel never gets a new process.
+        synchronized (this) {
+            if (stopped) {
+                throw new DeviceFarmException("The tunnel was stopped, it cannot be started.");
             }
-            if (result.getErrorStream().toString().contains(ERROR_MSG) || result.getOutputStream()
-                    .toString().contains(ERROR_MSG)) {
-                throw new DeviceFarmException("Failed to create tunnel to AWS.\n" + executor
-                        .getCommandAndResultForLogging());
+            if (executor != null) {
+                // restart, the previous process may be stuck rather than gone.
+                executor.stopSilently();
             }
-            DateTimeUtils.sleep(500);
+            started = new Executor(command).runInBackground(true).timeout(0).engine(
+                    ProcessEngine.getShared()).captureLimit(OUTPUT_CAPTURE_LINES).spillTo(
+                            location, OUTPUT_SPILL_BYTES);
+            // both markers are matched on each line as it is printed.
+            marker = started.whenLine(line -> line.contains(SUCCESS_MSG) || line.contains(
+                    ERROR_MSG));
+            executor = started;
+            started.execute();
+        }
+
+        String line;
+        try {
+            line = marker.get(START_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException e) {
+            marker.cancel(false);
+            logger.warn("Tunnel did not report being started within {} seconds.",
+                    START_TIMEOUT_IN_SECONDS);
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DeviceFarmException("Interrupted while starting the tunnel.", e);
+        } catch (ExecutionException e) {
+            throw new DeviceFarmException("Failed to create tunnel to AWS.\n" + started
+                    .getCommandAndResultForLogging(), e.getCause());
+        }
+        logger.debug("Tunnel output: {}", line);
+        if (line.contains(ERROR_MSG)) {
+            throw new DeviceFarmException("Failed to create tunnel to AWS.\n" + started
+                    .getCommandAndResultForLogging());
+        }
+    }
+
+    /**
+     * @return true if the tunnel process has been started and is still running, else false.
+     */
+    public boolean isRunning() {
+        return executor != null && executor.isRunning();
+    }
+
+    /**
+     * @return future completed once the running tunnel process ends or reports an error, already
+     *         completed if the tunnel is not started.
+     */
+    public CompletableFuture<Void> whenDown() {
+        Executor current = executor;
+        CompletableFuture<Void> down = new CompletableFuture<>();
+        if (current == null) {
+            down.complete(null);
+            return down;
         }
+        current.whenEnded().whenComplete((exitValue, th) -> down.complete(null));
+        current.whenLine(line -> line.contains(ERROR_MSG)).thenRun(() -> down.complete(null));
+        return down;
+    }
+
+    /**
+     * @return true if the tunnel was stopped or discarded by its owner, else false.
+     */
+    public boolean isStopped() {
+        return stopped;
     }
 
     /**
      * Stop the tunnel.
      */
-    public void stopTunnel() {
+    public synchronized void stopTunnel() {
+        stopped = true;
         if (executor == null) {
             logger.warn("Tunnel was not started, so nothing to stop.");
         } else {
             executor.stopSilently();
         }
         FileUtils.deleteQuietly(location);
+        TunnelRegistry.getInstance().deregister(this);
     }
 
     /**
-     * Shutdown hook to stop the tunnel and delete the folder.
+     * Delete the files of a tunnel that was prepared but will never be started.
      */
-    private void addShutDownHookToStopTunnelAndDeleteFile() {
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            /**
-             * @see java.lang.Thread#run()
-             */
-            @Override
-            public void run() {
-                stopTunnel();
-
-            }
-        });
+    public synchronized void discard() {
+        stopped = true;
+        if (executor != null) {
+            executor.stopSilently();
+        }
+        FileUtils.deleteQuietly(location);
+        TunnelRegistry.getInstance().deregister(this);
     }
 
     /**
@@ -168,26 +296,23 @@ private File createTunnelDirectory() {
     }
 
     /**
-     * Unzips the file to the given directory.
-     * @param zipFilePath absolute path to the zip file.
-     * @param directoryToExtractTo the directory where the file is to be extracted to.
+     * @return {@link File} new folder where the tunnel file is saved, for a tunnel whose host is
+     *         not known yet.
      */
-    private void unzip(final String zipFilePath, final String directoryToExtractTo) {
+    private File createUniqueTunnelDirectory() {
         try {
-            ZipFile zipFile = new ZipFile(zipFilePath);
-            zipFile.extractAll(directoryToExtractTo);
-        } catch (ZipException e) {
-            StringBuilder str = new StringBuilder();
-            str.append("Failed to unzip the file: ");
-            str.append(zipFilePath);
-            str.append(" to: ");
-            str.append(directoryToExtractTo);
-            throw new DeviceFarmException(str.toString(), e);
+            File tunnelDir = Files.createTempDirectory(getRootTunnelDir().toPath(), "tunnel-")
+                    .toFile();
+            logger.debug("Created tunnel dir at: {}", tunnelDir.getAbsolutePath());
+            return tunnelDir;
+        } catch (IOException e) {
+            throw new DeviceFarmException("Failed to create dir for tunnel file in: "
+                    + getRootTunnelDir().getAbsolutePath(), e);
         }
     }
 
     /**
-     * @return The tunnel file.
+     * @return The tunnel file, shared by every tunnel through the {@link TunnelBinaryCache}.
      */
     protected File getTunnel() {
         String resourceFilePath = "";
@@ -200,8 +325,18 @@ protected File getTunnel() {
             throw new DeviceFarmException("Unsupported OS for direct device access.");
         }
 
-        File tunnelZipFile = new File(location, resourceFilePath);
+        String resource = resourceFilePath;
+        File tunnelFile = getTunnelCache().get(resource, () -> openTunnelResource(resource),
+                TUNNEL_FILE_NAME);
+        logger.debug("Cached tunnel file: {}", tunnelFile.getAbsolutePath());
+        return tunnelFile;
+    }
 
+    /**
+     * @param resourceFilePath name of the tunnel zip.
+     * @return {@link InputStream} of the tunnel zip.
+     */
+    private static InputStream openTunnelResource(String resourceFilePath) {
         InputStream is = null;
         ClassLoader loader = Thread.currentThread().getContextClassLoader();
         if (loader == null) {
@@ -223,41 +358,7 @@ protected File getTunnel() {
         if (is == null) {
             throw new DeviceFarmException("Unable to get the tunnel file.");
         }
-
-        OutputStream out;
-        try {
-            out = new FileOutputStream(tunnelZipFile);
-        } catch (FileNotFoundException e) {
-            throw new DeviceFarmException("Unable to get the tunnel file.", e);
-        }
-
-        byte[] buf = new byte[BYTES];
-        int len = -1;
-        try {
-            while ((len = is.read(buf)) > 0) {
-                out.write(buf, 0, len);
-            }
-        } catch (IOException e) {
-            throw new DeviceFarmException("Unable to get the tunnel file.", e);
-        } finally {
-            try {
-                out.close();
-            } catch (IOException e) {
-                throw new DeviceFarmException("Unable to get the tunnel file.", e);
-            }
-            try {
-                is.close();
-            } catch (IOException e) {
-                throw new DeviceFarmException("Unable to get the tunnel file.", e);
-            }
-        }
-
-        // unzip the file
-        unzip(tunnelZipFile.getAbsolutePath(), tunnelZipFile.getParentFile().getAbsolutePath());
-
-        File tunnelFile = new File(tunnelZipFile.getParentFile(), TUNNEL_FILE_NAME);
-        tunnelFile.setExecutable(true);
-        return tunnelFile;
+        return is;
     }
 
 }
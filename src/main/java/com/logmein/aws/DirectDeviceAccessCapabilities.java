@@ -24,6 +24,15 @@ public DirectDeviceAccessCapabilities() {
         capabilities = new HashMap<>();
     }
 
+    /**
+     * @return a copy of these capabilities, e.g. for starting the same session on another device.
+     */
+    public DirectDeviceAccessCapabilities copy() {
+        DirectDeviceAccessCapabilities copy = new DirectDeviceAccessCapabilities();
+        copy.capabilities.putAll(capabilities);
+        return copy;
+    }
+
     public DirectDeviceAccessCapabilities deviceInstance(DeviceInstance instance) {
         capabilities.put(CapabilityType.DEVICE_INSTANCE, instance);
         return this;
@@ -11,6 +11,11 @@ public class DirectDeviceSession {
 
     private DeviceFarmTunnel deviceFarmTunnel;
 
+    /**
+     * {@link TunnelRelay} the session is bound to, null if it is not relayed.
+     */
+    private volatile TunnelRelay tunnelRelay;
+
     public DirectDeviceSession(RemoteAccessSession session, DeviceFarmTunnel tunnel) {
         remoteAccessSession = session;
         deviceFarmTunnel = tunnel;
@@ -30,6 +35,22 @@ public DeviceFarmTunnel getTunnel() {
         return deviceFarmTunnel;
     }
 
+    /**
+     * @param relay {@link TunnelRelay} the session is bound to, null if it is not relayed.
+     */
+    void relay(TunnelRelay relay) {
+        tunnelRelay = relay;
+    }
+
+    /**
+     * @return {@link TunnelStats} of the local port of the session, null if it is not relayed by
+     *         a {@link TunnelRelay}.
+     */
+    public TunnelStats getTunnelStats() {
+        TunnelRelay relay = tunnelRelay;
+        return relay == null ? null : relay.getStats(this);
+    }
+
     @Override
     public String toString() {
         StringBuilder str = new StringBuilder();
@@ -0,0 +1,241 @@
+package com.logmein.aws;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logmein.aws.utils.DaemonThreadFactory;
+
+/**
+ * A batch of {@link DirectDeviceSession}s provisioned concurrently on a bounded pool. Results are
+ * handed out in completion order through {@link #next()}, so callers can start using a session as
+ * soon as it is ready. A failure to provision one session does not affect the others.
+ */
+public class DirectDeviceSessionBatch {
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(DirectDeviceSessionBatch.class);
+
+    /**
+     * Results in completion order, not yet handed out by {@link #next()}.
+     */
+    private final BlockingQueue<DirectDeviceSessionResult> completed = new LinkedBlockingQueue<>();
+
+    /**
+     * Results in the order of the capabilities given to the batch.
+     */
+    private final DirectDeviceSessionResult[] results;
+
+    /**
+     * Count down for the sessions still being provisioned.
+     */
+    private final CountDownLatch pending;
+
+    /**
+     * Pool provisioning the sessions.
+     */
+    private final ExecutorService pool;
+
+    /**
+     * Number of results handed out by {@link #next()}.
+     */
+    private int consumed;
+
+    /**
+     * Set once the batch is cancelled.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Constructor. Starts provisioning right away.
+     * @param capabilitiesList {@link DirectDeviceAccessCapabilities} for each session.
+     * @param parallelism max number of sessions provisioned at the same time.
+     * @param provisioner function creating a single session.
+     */
+    DirectDeviceSessionBatch(final List<DirectDeviceAccessCapabilities> capabilitiesList,
+            final int parallelism,
+            final Function<DirectDeviceAccessCapabilities, DirectDeviceSession> provisioner) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism should be at least 1, but was "
+                    + parallelism);
+        }
+        results = new DirectDeviceSessionResult[capabilitiesList.size()];
+        pending = new CountDownLatch(capabilitiesList.size());
+        pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, capabilitiesList
+                .size())), new DaemonThreadFactory("direct-device-session-batch"));
+
+        for (int i = 0; i < capabilitiesList.size(); i++) {
+            final int index = i;
+            final DirectDeviceAccessCapabilities caps = capabilitiesList.get(i);
+            pool.execute(() -> provision(index, caps, provisioner));
+        }
+        // already submitted tasks still run, the threads go away once they are done.
+        pool.shutdown();
+    }
+
+    /**
+     * @return total number of sessions in this batch.
+     */
+    public int size() {
+        return results.length;
+    }
+
+    /**
+     * @return true if there are results not yet handed out by {@link #next()}.
+     */
+    public synchronized boolean hasNext() {
+        return consumed < results.length;
+    }
+
+    /**
+     * Wait for the next session to be provisioned or fail, in completion order.
+     * @return {@link DirectDeviceSessionResult}.
+     * @throws NoSuchElementException if all results have already been handed out.
+     * @throws DeviceFarmException if interrupted while waiting.
+     */
+    public DirectDeviceSessionResult next() {
+        DirectDeviceSessionResult result = next(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        if (result == null) {
+            throw new DeviceFarmException("Interrupted while waiting for the next session.");
+        }
+        return result;
+    }
+
+    /**
+     * Wait up to the given timeout for the next session to be provisioned or fail, in completion
+     * order.
+     * @param timeout max time to wait.
+     * @param unit {@link TimeUnit} of the timeout.
+     * @return {@link DirectDeviceSessionResult}, or null if none completed within the timeout.
+     * @throws NoSuchElementException if all results have already been handed out.
+     */
+    public DirectDeviceSessionResult next(final long timeout, final TimeUnit unit) {
+        synchronized (this) {
+            if (consumed >= results.length) {
+                throw new NoSuchElementException("All " + results.length
+                        + " results have already been returned.");
+            }
+        }
+        DirectDeviceSessionResult result = null;
+        try {
+            result = completed.poll(timeout, unit);
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted", e);
+            Thread.currentThread().interrupt();
+        }
+        if (result != null) {
+            synchronized (this) {
+                consumed++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Wait for every session in the batch to be provisioned or fail.
+     * @return all results in the order of the capabilities given to the batch.
+     */
+    public List<DirectDeviceSessionResult> awaitAll() {
+        try {
+            pending.await();
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted", e);
+            Thread.currentThread().interrupt();
+        }
+        return getResults();
+    }
+
+    /**
+     * @return results completed so far, in the order of the capabilities given to the batch.
+     */
+    public List<DirectDeviceSessionResult> getResults() {
+        List<DirectDeviceSessionResult> list = new ArrayList<>(results.length);
+        synchronized (results) {
+            Arrays.stream(results).filter(r -> r != null).forEach(list::add);
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    /**
+     * @return sessions successfully provisioned so far.
+     */
+    public List<DirectDeviceSession> getSessions() {
+        List<DirectDeviceSession> sessions = new ArrayList<>();
+        for (DirectDeviceSessionResult result : getResults()) {
+            if (result.isSuccessful()) {
+                sessions.add(result.getSession());
+            }
+        }
+        return sessions;
+    }
+
+    /**
+     * @return results of the sessions that failed so far.
+     */
+    public List<DirectDeviceSessionResult> getFailures() {
+        List<DirectDeviceSessionResult> failures = new ArrayList<>();
+        for (DirectDeviceSessionResult result : getResults()) {
+            if (!result.isSuccessful()) {
+                failures.add(result);
+            }
+        }
+        return failures;
+    }
+
+    /**
+     * @return true if every session in the batch has been provisioned or failed.
+     */
+    public boolean isDone() {
+        return pending.getCount() == 0;
+    }
+
+    /**
+     * Cancel the sessions whose provisioning has not started yet. They are reported as failed.
+     * Sessions already being provisioned are left untouched.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @param index position of the capabilities in the list given to the batch.
+     * @param caps {@link DirectDeviceAccessCapabilities}.
+     * @param provisioner function creating a single session.
+     */
+    private void provision(final int index, final DirectDeviceAccessCapabilities caps,
+            final Function<DirectDeviceAccessCapabilities, DirectDeviceSession> provisioner) {
+        DirectDeviceSessionResult result;
+        if (cancelled) {
+            result = new DirectDeviceSessionResult(index, caps, null, new DeviceFarmException(
+                    "Provisioning was cancelled."));
+        } else {
+            try {
+                result = new DirectDeviceSessionResult(index, caps, provisioner.apply(caps), null);
+            } catch (RuntimeException e) {
+                logger.warn("Failed to provision session {} of the batch.", index, e);
+                result = new DirectDeviceSessionResult(index, caps, null, e);
+            }
+        }
+        synchronized (results) {
+            results[index] = result;
+        }
+        // count down first, so the batch is done once the last result can be taken.
+        pending.countDown();
+        completed.add(result);
+    }
+
+}
@@ -0,0 +1,77 @@
+package com.logmein.aws;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A {@link DirectDeviceSession} borrowed from a {@link DirectDeviceSessionPool}. Closing the lease
+ * hands the session back to the pool, which validates it before it is reused.
+ */
+public class DirectDeviceSessionLease implements AutoCloseable {
+
+    /**
+     * Pool the session was borrowed from.
+     */
+    private final DirectDeviceSessionPool pool;
+
+    /**
+     * The pooled session.
+     */
+    private final DirectDeviceSessionPool.PooledSession pooledSession;
+
+    /**
+     * Set once the lease has been returned.
+     */
+    private final AtomicBoolean returned = new AtomicBoolean(false);
+
+    /**
+     * Set if the session should not be reused.
+     */
+    private volatile boolean invalid;
+
+    /**
+     * Constructor.
+     * @param sessionPool {@link DirectDeviceSessionPool}.
+     * @param session the pooled session.
+     */
+    DirectDeviceSessionLease(final DirectDeviceSessionPool sessionPool,
+            final DirectDeviceSessionPool.PooledSession session) {
+        pool = sessionPool;
+        pooledSession = session;
+    }
+
+    /**
+     * @return the leased {@link DirectDeviceSession}.
+     * @throws IllegalStateException if the lease has already been returned.
+     */
+    public DirectDeviceSession getSession() {
+        if (returned.get()) {
+            throw new IllegalStateException("Lease has already been returned to the pool.");
+        }
+        return pooledSession.getSession();
+    }
+
+    /**
+     * Mark the session as broken, so it is stopped instead of reused when the lease is returned.
+     */
+    public void invalidate() {
+        invalid = true;
+    }
+
+    /**
+     * @return true if the session was marked as broken.
+     */
+    public boolean isInvalid() {
+        return invalid;
+    }
+
+    /**
+     * Return the session to the pool. Calling this more than once has no effect.
+     */
+    @Override
+    public void close() {
+        if (returned.compareAndSet(false, true)) {
+            pool.giveBack(pooledSession, invalid);
+        }
+    }
+
+}
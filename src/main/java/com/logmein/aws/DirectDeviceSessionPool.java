@@ -0,0 +1,524 @@
+package com.logmein.aws;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.devicefarm.model.RemoteAccessSession;
+import com.logmein.aws.utils.DaemonThreadFactory;
+
+/**
+ * Pool of warm {@link DirectDeviceSession}s on top of a {@link DeviceFarmClient}. The pool keeps
+ * a configurable number of RUNNING sessions with live tunnels ready, hands them out as
+ * {@link DirectDeviceSessionLease}s, validates them when they are returned and evicts the idle or
+ * unhealthy ones in the background.
+ * <p>
+ * The capabilities supplier is called every time a new session is needed and is responsible for
+ * picking an available device, e.g.
+ * <pre>
+ * () -&gt; new DirectDeviceAccessCapabilities()
+ *         .deviceInstance(client.getAndroidPhone(60))
+ *         .projectArn(projectArn)
+ * </pre>
+ */
+public class DirectDeviceSessionPool implements AutoCloseable {
+
+    /**
+     * A session owned by the pool.
+     */
+    static class PooledSession {
+
+        /**
+         * The session.
+         */
+        private final DirectDeviceSession session;
+
+        /**
+         * Time the session was created.
+         */
+        private final Instant createdAt = Instant.now();
+
+        /**
+         * Time the session was last returned to the pool.
+         */
+        private volatile Instant idleSince = Instant.now();
+
+        /**
+         * @param directDeviceSession {@link DirectDeviceSession}.
+         */
+        PooledSession(final DirectDeviceSession directDeviceSession) {
+            session = directDeviceSession;
+        }
+
+        /**
+         * @return {@link DirectDeviceSession}.
+         */
+        DirectDeviceSession getSession() {
+            return session;
+        }
+    }
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(DirectDeviceSessionPool.class);
+
+    /**
+     * {@link DeviceFarmClient}.
+     */
+    private final DeviceFarmClient client;
+
+    /**
+     * Supplies the capabilities for every new session.
+     */
+    private final Supplier<DirectDeviceAccessCapabilities> capabilitiesSupplier;
+
+    /**
+     * Idle sessions, most recently returned first.
+     */
+    private final BlockingDeque<PooledSession> idle = new LinkedBlockingDeque<>();
+
+    /**
+     * Number of sessions currently leased.
+     */
+    private final AtomicInteger leased = new AtomicInteger();
+
+    /**
+     * Returned sessions being validated, neither idle nor leased.
+     */
+    private final Set<PooledSession> validating = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Number of sessions currently being provisioned.
+     */
+    private final AtomicInteger creating = new AtomicInteger();
+
+    /**
+     * Number of callers waiting for a lease.
+     */
+    private final AtomicInteger waiting = new AtomicInteger();
+
+    /**
+     * Runs the maintenance task and validates returned sessions.
+     */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("direct-device-session-pool"));
+
+    /**
+     * Provisions new sessions, created by {@link #start()} once the max size is known.
+     */
+    private ExecutorService provisioner;
+
+    /**
+     * Number of idle sessions kept warm.
+     */
+    private int minIdle = 1;
+
+    /**
+     * Max number of sessions, idle and leased.
+     */
+    private int maxSize = 5;
+
+    /**
+     * Idle sessions above {@link #minIdle} are stopped after this time.
+     */
+    private Duration maxIdleTime = Duration.ofMinutes(10);
+
+    /**
+     * Sessions are stopped once they are older than this.
+     */
+    private Duration maxLifetime = Duration.ofMinutes(120);
+
+    /**
+     * Interval between maintenance runs.
+     */
+    private Duration maintenanceInterval = Duration.ofSeconds(30);
+
+    /**
+     * Set once the pool is closed, guarded by this for the sessions added to the idle queue.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Constructor. Call {@link #start()} to begin warming up sessions.
+     * @param deviceFarmClient {@link DeviceFarmClient}.
+     * @param supplier supplies the {@link DirectDeviceAccessCapabilities} for every new session.
+     */
+    public DirectDeviceSessionPool(DeviceFarmClient deviceFarmClient,
+            Supplier<DirectDeviceAccessCapabilities> supplier) {
+        client = deviceFarmClient;
+        capabilitiesSupplier = supplier;
+    }
+
+    /**
+     * @param count number of idle sessions kept warm. By default this is 1.
+     * @return {@link DirectDeviceSessionPool}.
+     */
+    public DirectDeviceSessionPool minIdle(int count) {
+        minIdle = count;
+        return this;
+    }
+
+    /**
+     * @param count max number of sessions, idle and leased. By default this is 5.
+     * @return {@link DirectDeviceSessionPool}.
+     */
+    public DirectDeviceSessionPool maxSize(int count) {
+        maxSize = count;
+        return this;
+    }
+
+    /**
+     * @param seconds idle sessions above the min idle count are stopped after this time. By
+     *            default this is 10 minutes.
+     * @return {@link DirectDeviceSessionPool}.
+     */
+    public DirectDeviceSessionPool maxIdleTimeInSeconds(long seconds) {
+        maxIdleTime = Duration.ofSeconds(seconds);
+        return this;
+    }
+
+    /**
+     * @param seconds sessions are stopped once they are older than this. By default this is 120
+     *            minutes.
+     * @return {@link DirectDeviceSessionPool}.
+     */
+    public DirectDeviceSessionPool maxLifetimeInSeconds(long seconds) {
+        maxLifetime = Duration.ofSeconds(seconds);
+        return this;
+    }
+
+    /**
+     * @param seconds interval between runs of the eviction and warm up task. By default this is 30
+     *            seconds.
+     * @return {@link DirectDeviceSessionPool}.
+     */
+    public DirectDeviceSessionPool maintenanceIntervalInSeconds(long seconds) {
+        maintenanceInterval = Duration.ofSeconds(seconds);
+        return this;
+    }
+
+    /**
+     * Start warming up sessions and the background eviction.
+     * @return {@link DirectDeviceSessionPool}.
+     * @throws IllegalStateException if the pool was already started or is closed.
+     */
+    public synchronized DirectDeviceSessionPool start() {
+        if (provisioner != null || closed) {
+            throw new IllegalStateException("The session pool was already started or is closed.");
+        }
+        if (minIdle > maxSize) {
+            throw new IllegalArgumentException("Min idle " + minIdle
+                    + " should not be greater than max size " + maxSize);
+        }
+        provisioner = Executors.newFixedThreadPool(maxSize, new DaemonThreadFactory(
+                "direct-device-session-pool-provisioner"));
+        long interval = maintenanceInterval.toMillis();
+        scheduler.scheduleWithFixedDelay(this::maintain, 0, interval, TimeUnit.MILLISECONDS);
+        return this;
+    }
+
+    /**
+     * Lease a session, waiting for one to be provisioned if none is idle.
+     * @param waitInSeconds max time to wait for a session.
+     * @return {@link DirectDeviceSessionLease}, to be closed once the session is no longer used.
+     * @throws DeviceFarmException if no session became available within the given time.
+     */
+    public DirectDeviceSessionLease lease(long waitInSeconds) {
+        Instant timeout = Instant.now().plusSeconds(waitInSeconds);
+        while (!closed) {
+            PooledSession pooled = idle.pollFirst();
+            if (pooled == null) {
+                long remaining = Duration.between(Instant.now(), timeout).toMillis();
+                if (remaining <= 0) {
+                    break;
+                }
+                waiting.incrementAndGet();
+                try {
+                    replenish();
+                    pooled = idle.pollFirst(remaining, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    logger.warn("Interrupted", e);
+                    Thread.currentThread().interrupt();
+                    break;
+                } finally {
+                    waiting.decrementAndGet();
+                }
+                if (pooled == null) {
+                    break;
+                }
+            }
+            if (isUsable(pooled)) {
+                leased.incrementAndGet();
+                // keep min idle warm rather than waiting for the next maintenance run.
+                replenish();
+                return new DirectDeviceSessionLease(this, pooled);
+            }
+            evict(pooled, "unusable on lease");
+        }
+        throw new DeviceFarmException("Unable to lease a session within given timeout of "
+                + waitInSeconds + " seconds. " + toString());
+    }
+
+    /**
+     * @return number of idle sessions.
+     */
+    public int getIdleCount() {
+        return idle.size();
+    }
+
+    /**
+     * @return number of leased sessions.
+     */
+    public int getLeasedCount() {
+        return leased.get();
+    }
+
+    /**
+     * @return number of sessions being provisioned.
+     */
+    public int getCreatingCount() {
+        return creating.get();
+    }
+
+    /**
+     * Stop all idle sessions, the sessions being validated and the background tasks. Leased
+     * sessions are stopped when they are returned.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            // no session is added to the idle queue from now on.
+            closed = true;
+        }
+        scheduler.shutdownNow();
+        if (provisioner != null) {
+            // the warm ups not started yet are dropped, the running ones are interrupted.
+            creating.addAndGet(-provisioner.shutdownNow().size());
+        }
+        for (PooledSession pooled : new ArrayList<>(validating)) {
+            if (validating.remove(pooled)) {
+                stop(pooled);
+            }
+        }
+        PooledSession pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            stop(pooled);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("{");
+        str.append("Idle: ");
+        str.append(getIdleCount());
+        str.append(", Leased: ");
+        str.append(getLeasedCount());
+        str.append(", Creating: ");
+        str.append(getCreatingCount());
+        str.append("}");
+        return str.toString();
+    }
+
+    /**
+     * Take back a leased session.
+     * @param pooled the session.
+     * @param invalid true if the lease holder marked the session as broken.
+     */
+    void giveBack(PooledSession pooled, boolean invalid) {
+        if (closed || invalid) {
+            leased.decrementAndGet();
+            if (closed) {
+                stop(pooled);
+            } else {
+                evict(pooled, "invalidated by lease holder");
+                replenish();
+            }
+            return;
+        }
+        // still counted towards the max size while validated.
+        validating.add(pooled);
+        leased.decrementAndGet();
+        try {
+            // validating involves a remote call, so keep it off the caller's thread.
+            scheduler.execute(() -> validate(pooled));
+        } catch (RejectedExecutionException e) {
+            // closed in the meantime.
+            if (validating.remove(pooled)) {
+                stop(pooled);
+            }
+        }
+    }
+
+    /**
+     * Put a returned session back in the idle queue if it is still usable, else replace it.
+     * @param pooled the session.
+     */
+    private void validate(PooledSession pooled) {
+        boolean valid = isUsable(pooled) && isHealthy(pooled);
+        if (!validating.remove(pooled)) {
+            // stopped by close.
+            return;
+        }
+        if (!valid) {
+            evict(pooled, "failed validation on return");
+            replenish();
+        } else if (!offerIdle(pooled, true)) {
+            stop(pooled);
+        }
+    }
+
+    /**
+     * Add a session to the idle queue unless the pool is closed.
+     * @param pooled the session.
+     * @param first true to add it as the most recently returned session, false as the oldest.
+     * @return true if the session was added, false if the pool is closed.
+     */
+    private synchronized boolean offerIdle(PooledSession pooled, boolean first) {
+        if (closed) {
+            return false;
+        }
+        if (first) {
+            pooled.idleSince = Instant.now();
+            idle.offerFirst(pooled);
+        } else {
+            idle.offerLast(pooled);
+        }
+        return true;
+    }
+
+    /**
+     * Evict expired and unhealthy idle sessions and warm up new ones.
+     */
+    private void maintain() {
+        try {
+            List<PooledSession> snapshot = new ArrayList<>(idle);
+            int idleCount = snapshot.size();
+            Instant now = Instant.now();
+            // oldest returned sessions are at the end of the deque.
+            for (int i = snapshot.size() - 1; i >= 0; i--) {
+                PooledSession pooled = snapshot.get(i);
+                boolean idleTooLong = idleCount > minIdle && pooled.idleSince.plus(maxIdleTime)
+                        .isBefore(now);
+                if (idleTooLong || !isUsable(pooled) || !isHealthy(pooled)) {
+                    if (idle.remove(pooled)) {
+                        idleCount--;
+                        evict(pooled, "expired or unhealthy");
+                    }
+                }
+            }
+            replenish();
+        } catch (RuntimeException e) {
+            logger.warn("Session pool maintenance failed.", e);
+        }
+    }
+
+    /**
+     * Provision sessions in the background until there are enough idle or being created for the
+     * min idle count and the callers waiting for a lease, without exceeding the max size.
+     */
+    private synchronized void replenish() {
+        if (closed || provisioner == null) {
+            return;
+        }
+        int targetIdle = minIdle + waiting.get();
+        // sessions being validated are likely to be idle again soon.
+        int available = idle.size() + validating.size() + creating.get();
+        int total = available + leased.get();
+        int missing = Math.min(targetIdle - available, maxSize - total);
+        if (missing <= 0) {
+            return;
+        }
+        creating.addAndGet(missing);
+        logger.debug("Warming up {} sessions. {}", missing, this);
+        for (int i = 0; i < missing; i++) {
+            provisioner.execute(this::warmUp);
+        }
+    }
+
+    /**
+     * Provision a single session and add it to the idle queue.
+     */
+    private void warmUp() {
+        try {
+            if (closed) {
+                return;
+            }
+            PooledSession pooled = new PooledSession(client.createDirectDeviceAccessSession(
+                    capabilitiesSupplier.get()));
+            if (!offerIdle(pooled, false)) {
+                stop(pooled);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed to warm up a session.", e);
+        } finally {
+            creating.decrementAndGet();
+        }
+    }
+
+    /**
+     * Cheap local check, done on every lease.
+     * @param pooled the session.
+     * @return true if the session is not too old and its tunnel is running.
+     */
+    private boolean isUsable(PooledSession pooled) {
+        if (pooled.createdAt.plus(maxLifetime).isBefore(Instant.now())) {
+            return false;
+        }
+        DeviceFarmTunnel tunnel = pooled.getSession().getTunnel();
+        return tunnel != null && tunnel.isRunning();
+    }
+
+    /**
+     * Remote check of the session state.
+     * @param pooled the session.
+     * @return true if Device Farm still reports the session as RUNNING.
+     */
+    private boolean isHealthy(PooledSession pooled) {
+        try {
+            RemoteAccessSession session = client.getRemoteAccessSession(pooled.getSession()
+                    .getRemoteAccessSession().getArn());
+            return "RUNNING".equalsIgnoreCase(session.getStatus());
+        } catch (RuntimeException e) {
+            logger.warn("Failed to get the status of session {}", pooled.getSession(), e);
+            return false;
+        }
+    }
+
+    /**
+     * @param pooled the session to stop.
+     * @param reason reason for logging.
+     */
+    private void evict(PooledSession pooled, String reason) {
+        logger.debug("Evicting session {}: {}", pooled.getSession(), reason);
+        stop(pooled);
+    }
+
+    /**
+     * @param pooled the session to stop.
+     */
+    private void stop(PooledSession pooled) {
+        try {
+            client.stopDirectDeviceAccessSession(pooled.getSession());
+        } catch (RuntimeException e) {
+            logger.warn("Failed to stop session {}", pooled.getSession(), e);
+        }
+    }
+
+}
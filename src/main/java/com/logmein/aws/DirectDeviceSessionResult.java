@@ -0,0 +1,96 @@
+package com.logmein.aws;
+
+/**
+ * Outcome of provisioning a single {@link DirectDeviceSession} as part of a
+ * {@link DirectDeviceSessionBatch}. Either the session or the failure is set, never both.
+ */
+public class DirectDeviceSessionResult {
+
+    /**
+     * Position of the capabilities in the list given to the batch.
+     */
+    private final int index;
+
+    /**
+     * {@link DirectDeviceAccessCapabilities} used for provisioning.
+     */
+    private final DirectDeviceAccessCapabilities capabilities;
+
+    /**
+     * The session, if provisioning was successful.
+     */
+    private final DirectDeviceSession session;
+
+    /**
+     * The failure, if provisioning failed.
+     */
+    private final Throwable failure;
+
+    /**
+     * Constructor.
+     * @param position position of the capabilities in the list given to the batch.
+     * @param caps {@link DirectDeviceAccessCapabilities}.
+     * @param directDeviceSession {@link DirectDeviceSession}, null if provisioning failed.
+     * @param th {@link Throwable}, null if provisioning was successful.
+     */
+    DirectDeviceSessionResult(final int position, final DirectDeviceAccessCapabilities caps,
+            final DirectDeviceSession directDeviceSession, final Throwable th) {
+        index = position;
+        capabilities = caps;
+        session = directDeviceSession;
+        failure = th;
+    }
+
+    /**
+     * @return position of the capabilities in the list given to the batch.
+     */
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @return {@link DirectDeviceAccessCapabilities} used for provisioning.
+     */
+    public DirectDeviceAccessCapabilities getCapabilities() {
+        return capabilities;
+    }
+
+    /**
+     * @return {@link DirectDeviceSession}, or null if provisioning failed.
+     */
+    public DirectDeviceSession getSession() {
+        return session;
+    }
+
+    /**
+     * @return the cause of the failure, or null if provisioning was successful.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return true if the session was provisioned, else false.
+     */
+    public boolean isSuccessful() {
+        return failure == null;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("{");
+        str.append("Index: ");
+        str.append(index);
+        if (isSuccessful()) {
+            str.append(", Session: ");
+            str.append(session);
+        } else {
+            str.append(", Failure: ");
+            str.append(failure);
+        }
+        str.append("}");
+        return str.toString();
+    }
+
+}
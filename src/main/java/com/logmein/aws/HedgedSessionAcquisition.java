@@ -0,0 +1,175 @@
+package com.logmein.aws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Acquisition of a {@link DirectDeviceSession} that starts a second attempt when the first one is
+ * still not done after a delay. The first attempt to succeed wins, the other one is cancelled,
+ * and a session it still produced is discarded.
+ */
+class HedgedSessionAcquisition {
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(HedgedSessionAcquisition.class);
+
+    /**
+     * Starts an attempt.
+     */
+    private final Supplier<CompletableFuture<DirectDeviceSession>> attempt;
+
+    /**
+     * Gets rid of a session produced by a losing attempt.
+     */
+    private final Consumer<DirectDeviceSession> discard;
+
+    /**
+     * Counts the hedges fired.
+     */
+    private final AtomicLong hedgesFired;
+
+    /**
+     * Counts the hedges that won.
+     */
+    private final AtomicLong hedgesWon;
+
+    /**
+     * Completed with the session of the winning attempt.
+     */
+    private final CompletableFuture<DirectDeviceSession> result = new CompletableFuture<>();
+
+    /**
+     * Attempts started so far.
+     */
+    private final List<CompletableFuture<DirectDeviceSession>> attempts = new ArrayList<>();
+
+    /**
+     * Number of failed attempts.
+     */
+    private int failed;
+
+    /**
+     * Whether the hedge was fired.
+     */
+    private boolean hedged;
+
+    /**
+     * Timer of the hedge.
+     */
+    private ScheduledFuture<?> hedgeTimer;
+
+    /**
+     * Constructor.
+     * @param startAttempt starts an attempt.
+     * @param discardSession gets rid of a session produced by a losing attempt.
+     * @param fired counts the hedges fired.
+     * @param won counts the hedges that won.
+     */
+    HedgedSessionAcquisition(final Supplier<CompletableFuture<DirectDeviceSession>> startAttempt,
+            final Consumer<DirectDeviceSession> discardSession, final AtomicLong fired,
+            final AtomicLong won) {
+        attempt = startAttempt;
+        discard = discardSession;
+        hedgesFired = fired;
+        hedgesWon = won;
+    }
+
+    /**
+     * Start the first attempt and the timer of the hedge.
+     * @param scheduler runs the timer.
+     * @param delayInMilliseconds delay after which the hedge is fired.
+     * @return future completed with the session of the winning attempt. Cancelling it cancels
+     *         every attempt.
+     */
+    CompletableFuture<DirectDeviceSession> start(ScheduledExecutorService scheduler,
+            long delayInMilliseconds) {
+        synchronized (this) {
+            launch(false);
+            if (!result.isDone()) {
+                hedgeTimer = scheduler.schedule(this::hedge, delayInMilliseconds,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+        result.whenComplete((session, th) -> {
+            List<CompletableFuture<DirectDeviceSession>> started;
+            synchronized (this) {
+                if (hedgeTimer != null) {
+                    hedgeTimer.cancel(false);
+                }
+                started = new ArrayList<>(attempts);
+            }
+            // the winner is already done, this only stops the others.
+            started.forEach(f -> f.cancel(false));
+        });
+        return result;
+    }
+
+    /**
+     * Fire the hedge unless the acquisition is already over.
+     */
+    private synchronized void hedge() {
+        if (result.isDone()) {
+            return;
+        }
+        hedged = true;
+        hedgesFired.incrementAndGet();
+        logger.debug("Session not ready yet, firing a hedge.");
+        launch(true);
+    }
+
+    /**
+     * Start an attempt. Must hold the lock.
+     * @param isHedge whether this is the hedge.
+     */
+    private void launch(boolean isHedge) {
+        CompletableFuture<DirectDeviceSession> future;
+        try {
+            future = attempt.get();
+        } catch (RuntimeException e) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+        }
+        attempts.add(future);
+        future.whenComplete((session, th) -> onAttemptDone(isHedge, session, th));
+    }
+
+    /**
+     * @param isHedge whether the attempt was the hedge.
+     * @param session session of the attempt, null if it failed.
+     * @param th failure of the attempt, null if it succeeded.
+     */
+    private void onAttemptDone(boolean isHedge, DirectDeviceSession session, Throwable th) {
+        if (th == null) {
+            if (result.complete(session)) {
+                if (isHedge) {
+                    hedgesWon.incrementAndGet();
+                }
+            } else {
+                discard.accept(session);
+            }
+            return;
+        }
+        boolean lastAttempt;
+        synchronized (this) {
+            failed++;
+            // a failure before the hedge fired is not hedged.
+            lastAttempt = !hedged || failed == attempts.size();
+        }
+        if (lastAttempt) {
+            result.completeExceptionally(th);
+        }
+    }
+
+}
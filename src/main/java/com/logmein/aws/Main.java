@@ -73,6 +73,7 @@ public void startDirectDeviceSession() throws IOException {
 
         System.out.println("\n==> Stopping session...");
         client.stopDirectDeviceAccessSession(session);
+        client.close();
         System.out.println("\n==> Session stopped");
 
     }
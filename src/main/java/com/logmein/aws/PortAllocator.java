@@ -0,0 +1,290 @@
+package com.logmein.aws;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out local ports from a range without conflicts between the JVMs of a host. A port is
+ * taken by holding an exclusive lock on its lock file under
+ * {@link DeviceFarmTunnel#TUNNEL_ROOT_DIR}/{@link DeviceFarmTunnel#TUNNEL_PORTS_DIR}. The
+ * operating system drops the locks of a process when it dies, so the ports of dead processes are
+ * reclaimed without any cleanup. Ports used by programs that do not take part are skipped.
+ */
+public class PortAllocator {
+
+    /**
+     * First port of the default range.
+     */
+    public static final int DEFAULT_FIRST_PORT = 42000;
+
+    /**
+     * Last port of the default range.
+     */
+    public static final int DEFAULT_LAST_PORT = 42999;
+
+    /**
+     * A port allocated to the caller until it is closed.
+     */
+    public final class Lease implements AutoCloseable {
+
+        /**
+         * The port.
+         */
+        private final int port;
+
+        /**
+         * Channel of the lock file.
+         */
+        private final FileChannel channel;
+
+        /**
+         * Lock held on the lock file.
+         */
+        private final FileLock lock;
+
+        /**
+         * @param leasedPort the port.
+         * @param lockChannel channel of the lock file.
+         * @param fileLock lock held on the lock file.
+         */
+        Lease(final int leasedPort, final FileChannel lockChannel, final FileLock fileLock) {
+            port = leasedPort;
+            channel = lockChannel;
+            lock = fileLock;
+        }
+
+        /**
+         * @return the port.
+         */
+        public int getPort() {
+            return port;
+        }
+
+        /**
+         * Give the port back.
+         */
+        @Override
+        public void close() {
+            if (leases.remove(port, this)) {
+                try {
+                    // the lock file stays, deleting it would let two processes lock the same port.
+                    lock.release();
+                    channel.close();
+                } catch (IOException e) {
+                    logger.debug("Failed to release the lock of port {}", port, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(PortAllocator.class);
+
+    /**
+     * Directory of the lock files.
+     */
+    private final File lockDir;
+
+    /**
+     * First port of the range.
+     */
+    private final int firstPort;
+
+    /**
+     * Last port of the range.
+     */
+    private final int lastPort;
+
+    /**
+     * Ports leased by this allocator.
+     */
+    private final Map<Integer, Lease> leases = new ConcurrentHashMap<>();
+
+    /**
+     * Offset of the next port to try, so consecutive allocations do not contend on one port.
+     */
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Constructor for the default range, {@value #DEFAULT_FIRST_PORT} to
+     * {@value #DEFAULT_LAST_PORT}.
+     */
+    public PortAllocator() {
+        this(DEFAULT_FIRST_PORT, DEFAULT_LAST_PORT);
+    }
+
+    /**
+     * Constructor.
+     * @param first first port of the range.
+     * @param last last port of the range.
+     */
+    public PortAllocator(final int first, final int last) {
+        this(new File(DeviceFarmTunnel.getRootTunnelDir(), DeviceFarmTunnel.TUNNEL_PORTS_DIR),
+                first, last);
+    }
+
+    /**
+     * @param directory directory of the lock files.
+     * @param first first port of the range.
+     * @param last last port of the range.
+     */
+    PortAllocator(final File directory, final int first, final int last) {
+        if (first <= 0 || last > 65535 || first > last) {
+            throw new IllegalArgumentException("Invalid port range: " + first + "-" + last);
+        }
+        lockDir = directory;
+        firstPort = first;
+        lastPort = last;
+        if (!lockDir.exists() && !lockDir.mkdirs() && !lockDir.exists()) {
+            throw new DeviceFarmException("Failed to create dir: " + lockDir.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Allocate a free port of the range.
+     * @return {@link Lease} of the port.
+     * @throws DeviceFarmException if every port of the range is taken.
+     */
+    public Lease allocate() {
+        return allocate(0);
+    }
+
+    /**
+     * Allocate a free port of the range, the preferred one if it is free.
+     * @param preferredPort port to try first, 0 for none.
+     * @return {@link Lease} of the port.
+     * @throws DeviceFarmException if every port of the range is taken.
+     */
+    public Lease allocate(int preferredPort) {
+        if (preferredPort >= firstPort && preferredPort <= lastPort) {
+            Lease lease = tryLease(preferredPort);
+            if (lease != null) {
+                return lease;
+            }
+        }
+        int size = lastPort - firstPort + 1;
+        int start = Math.floorMod(next.getAndIncrement(), size);
+        for (int i = 0; i < size; i++) {
+            int port = firstPort + (start + i) % size;
+            Lease lease = tryLease(port);
+            if (lease != null) {
+                next.set(port - firstPort + 1);
+                return lease;
+            }
+        }
+        throw new DeviceFarmException("No free local port between " + firstPort + " and "
+                + lastPort);
+    }
+
+    /**
+     * @return number of ports leased by this allocator.
+     */
+    public int getLeasedCount() {
+        return leases.size();
+    }
+
+    /**
+     * @param port the port.
+     * @return {@link Lease} of the port, null if it is taken.
+     */
+    private Lease tryLease(int port) {
+        if (leases.containsKey(port)) {
+            return null;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(new File(lockDir, port + ".lock").toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                channel.close();
+                return null;
+            }
+            if (!isFree(port)) {
+                lock.release();
+                channel.close();
+                return null;
+            }
+            Lease lease = new Lease(port, channel, lock);
+            if (leases.putIfAbsent(port, lease) != null) {
+                lock.release();
+                channel.close();
+                return null;
+            }
+            try {
+                writeOwner(channel);
+            } catch (IOException e) {
+                // not leased after all, so that the port can be allocated again.
+                leases.remove(port, lease);
+                lock.release();
+                throw e;
+            }
+            return lease;
+        } catch (OverlappingFileLockException e) {
+            // held by another allocator of this JVM.
+            closeQuietly(channel);
+            return null;
+        } catch (IOException e) {
+            logger.debug("Failed to lock port {}", port, e);
+            closeQuietly(channel);
+            return null;
+        }
+    }
+
+    /**
+     * @param port the port.
+     * @return true if nothing listens on the port, else false.
+     */
+    private static boolean isFree(int port) {
+        try (ServerSocket socket = new ServerSocket()) {
+            socket.setReuseAddress(true);
+            socket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Record the owner of the port in its lock file, for troubleshooting.
+     * @param channel channel of the lock file.
+     * @throws IOException if the file cannot be written.
+     */
+    private static void writeOwner(FileChannel channel) throws IOException {
+        channel.truncate(0);
+        channel.write(ByteBuffer.wrap(ManagementFactory.getRuntimeMXBean().getName().getBytes(
+                StandardCharsets.UTF_8)), 0);
+    }
+
+    /**
+     * @param channel to close ignoring errors, may be null.
+     */
+    private void closeQuietly(FileChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close the lock file.", e);
+            }
+        }
+    }
+
+}
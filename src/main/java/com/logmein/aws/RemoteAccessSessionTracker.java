@@ -0,0 +1,396 @@
+package com.logmein.aws;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.devicefarm.model.ExecutionStatus;
+import com.amazonaws.services.devicefarm.model.ListRemoteAccessSessionsRequest;
+import com.amazonaws.services.devicefarm.model.ListRemoteAccessSessionsResult;
+import com.amazonaws.services.devicefarm.model.RemoteAccessSession;
+import com.logmein.aws.utils.DaemonThreadFactory;
+import com.logmein.aws.utils.PollingStrategy;
+
+/**
+ * Waits for remote access sessions to be RUNNING on behalf of any number of callers. On every
+ * poll the tracker lists the sessions of each project having waiters once, and hands the status
+ * to every waiter by session ARN. Only the sessions missing from the listing, or created without a
+ * project, are fetched one by one. The number of Device Farm calls per poll depends on the number
+ * of projects, not on the number of sessions. With a {@link DeviceFarmRequestScheduler} the calls
+ * wait for their permit as scheduled tasks, the polling thread never sleeps.
+ */
+public class RemoteAccessSessionTracker implements AutoCloseable {
+
+    /**
+     * A caller waiting for a session.
+     */
+    private static class Waiter {
+
+        /**
+         * ARN of the project of the session, may be null.
+         */
+        private final String projectArn;
+
+        /**
+         * ARN of the session.
+         */
+        private final String arn;
+
+        /**
+         * Completed with the RUNNING session.
+         */
+        private final CompletableFuture<RemoteAccessSession> future = new CompletableFuture<>();
+
+        /**
+         * @param project ARN of the project of the session, may be null.
+         * @param sessionArn ARN of the session.
+         */
+        Waiter(final String project, final String sessionArn) {
+            projectArn = project;
+            arn = sessionArn;
+        }
+    }
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(RemoteAccessSessionTracker.class);
+
+    /**
+     * Lists the sessions of a project.
+     */
+    private final Function<ListRemoteAccessSessionsRequest, ListRemoteAccessSessionsResult> lister;
+
+    /**
+     * Gets a single session by ARN.
+     */
+    private final Function<String, RemoteAccessSession> getter;
+
+    /**
+     * Rate limits the calls, null to call right away.
+     */
+    private volatile DeviceFarmRequestScheduler requestScheduler;
+
+    /**
+     * Callers waiting for a session.
+     */
+    private final List<Waiter> waiters = new ArrayList<>();
+
+    /**
+     * Runs the polls while there are waiters.
+     */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("remote-access-session-tracker"));
+
+    /**
+     * The scheduled poll, null while there are no waiters.
+     */
+    private ScheduledFuture<?> polling;
+
+    /**
+     * The current wait, null while there are no waiters.
+     */
+    private PollingStrategy.Poll poll;
+
+    /**
+     * Id of the scheduled poll, a poll only schedules the next one while it is still current.
+     */
+    private long pollId;
+
+    /**
+     * {@link PollingStrategy} of the polls.
+     */
+    private PollingStrategy pollingStrategy = PollingStrategy.exponential(500, 5000);
+
+    /**
+     * Number of list calls made.
+     */
+    private final AtomicLong listCalls = new AtomicLong();
+
+    /**
+     * Number of single session calls made.
+     */
+    private final AtomicLong getCalls = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param listSessions lists the sessions of a project.
+     * @param getSession gets a single session by ARN.
+     */
+    public RemoteAccessSessionTracker(
+            Function<ListRemoteAccessSessionsRequest, ListRemoteAccessSessionsResult> listSessions,
+            Function<String, RemoteAccessSession> getSession) {
+        lister = listSessions;
+        getter = getSession;
+    }
+
+    /**
+     * @param strategy {@link PollingStrategy} of the polls, restarted every time a new caller
+     *            starts waiting, without delaying a poll already due sooner. By default the first
+     *            poll is after 0.5 seconds, then the delay doubles up to 5 seconds.
+     * @return {@link RemoteAccessSessionTracker}.
+     */
+    public RemoteAccessSessionTracker pollingStrategy(PollingStrategy strategy) {
+        pollingStrategy = strategy;
+        return this;
+    }
+
+    /**
+     * @param scheduler {@link DeviceFarmRequestScheduler} the calls go through, without sleeping
+     *            on the polling thread. By default the calls are made right away.
+     * @return {@link RemoteAccessSessionTracker}.
+     */
+    public RemoteAccessSessionTracker requestScheduler(DeviceFarmRequestScheduler scheduler) {
+        requestScheduler = scheduler;
+        return this;
+    }
+
+    /**
+     * Wait for a session to be RUNNING. The future fails if the session ends without running, and
+     * stops being tracked when it is cancelled.
+     * @param projectArn ARN of the project of the session, null to always poll the session alone.
+     * @param arn ARN of the session.
+     * @return future completed with the RUNNING {@link RemoteAccessSession}.
+     */
+    public CompletableFuture<RemoteAccessSession> whenRunning(String projectArn, String arn) {
+        Waiter waiter = new Waiter(projectArn, arn);
+        synchronized (this) {
+            waiters.add(waiter);
+            // poll quickly again for the new session, unless the pending poll is sooner.
+            if (!scheduler.isShutdown()) {
+                PollingStrategy.Poll fresh = pollingStrategy.start(null);
+                long delay = fresh.nextDelayInMilliseconds();
+                if (polling == null || polling.getDelay(TimeUnit.MILLISECONDS) > delay && polling
+                        .cancel(false)) {
+                    poll = fresh;
+                    schedulePoll(delay);
+                } else {
+                    // the backoff restarts after the pending poll.
+                    poll = pollingStrategy.start(null);
+                }
+            }
+        }
+        waiter.future.whenComplete((session, th) -> remove(waiter));
+        return waiter.future;
+    }
+
+    /**
+     * @return number of callers waiting.
+     */
+    public synchronized int getWaiterCount() {
+        return waiters.size();
+    }
+
+    /**
+     * @return number of list calls made so far.
+     */
+    public long getListCalls() {
+        return listCalls.get();
+    }
+
+    /**
+     * @return number of single session calls made so far.
+     */
+    public long getGetCalls() {
+        return getCalls.get();
+    }
+
+    /**
+     * Stop polling.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @param waiter {@link Waiter} done waiting.
+     */
+    private synchronized void remove(Waiter waiter) {
+        waiters.remove(waiter);
+        if (waiters.isEmpty() && polling != null) {
+            polling.cancel(false);
+            polling = null;
+            poll = null;
+        }
+    }
+
+    /**
+     * Schedule the next poll, replacing the current one. Must hold the lock.
+     * @param delayInMilliseconds delay before the poll.
+     */
+    private void schedulePoll(long delayInMilliseconds) {
+        long id = ++pollId;
+        polling = scheduler.schedule(() -> poll(id), delayInMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Fetch the status of every waited session, then schedule the next poll of the current wait
+     * unless a newer poll replaced this one or there are no waiters left.
+     * @param id id of the poll.
+     */
+    private void poll(long id) {
+        List<Waiter> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(waiters);
+        }
+        Map<String, List<Waiter>> byProject = new LinkedHashMap<>();
+        for (Waiter waiter : pending) {
+            byProject.computeIfAbsent(waiter.projectArn, k -> new ArrayList<>()).add(waiter);
+        }
+        List<CompletableFuture<Void>> updates = new ArrayList<>();
+        for (Map.Entry<String, List<Waiter>> entry : byProject.entrySet()) {
+            CompletableFuture<Map<String, RemoteAccessSession>> listed = entry.getKey() == null
+                    ? CompletableFuture.completedFuture(null) : listSessions(entry.getKey());
+            updates.add(listed.thenCompose(sessions -> update(entry.getKey(), entry.getValue(),
+                    sessions)));
+        }
+        CompletableFuture.allOf(updates.toArray(new CompletableFuture<?>[0])).whenComplete((
+                done, th) -> {
+            synchronized (this) {
+                if (id == pollId && poll != null && !waiters.isEmpty() && !scheduler
+                        .isShutdown()) {
+                    schedulePoll(poll.nextDelayInMilliseconds());
+                }
+            }
+        });
+    }
+
+    /**
+     * @param projectArn ARN of the project, may be null.
+     * @param projectWaiters {@link Waiter}s of the sessions of the project.
+     * @param listed the sessions of the project by ARN, null if they were not listed.
+     * @return future completed once every waiter was updated.
+     */
+    private CompletableFuture<Void> update(String projectArn, List<Waiter> projectWaiters,
+            Map<String, RemoteAccessSession> listed) {
+        List<CompletableFuture<Void>> updates = new ArrayList<>();
+        for (Waiter waiter : projectWaiters) {
+            RemoteAccessSession session = listed == null ? null : listed.get(waiter.arn);
+            if (session != null) {
+                update(waiter, session);
+            } else if (listed != null || projectArn == null) {
+                // not listed yet, or no project to list.
+                updates.add(getSession(waiter.arn).thenAccept(fetched -> {
+                    if (fetched != null) {
+                        update(waiter, fetched);
+                    }
+                }));
+            }
+        }
+        return CompletableFuture.allOf(updates.toArray(new CompletableFuture<?>[0]));
+    }
+
+    /**
+     * @param projectArn ARN of the project.
+     * @return future completed with the sessions of the project by ARN, or null if they could
+     *         not be listed.
+     */
+    private CompletableFuture<Map<String, RemoteAccessSession>> listSessions(String projectArn) {
+        return listSessions(projectArn, null, new HashMap<>()).handle((sessions, th) -> {
+            if (th != null) {
+                // waiters keep waiting, the next poll tries again.
+                logger.warn("Failed to list the remote access sessions of project {}",
+                        projectArn, th);
+                return null;
+            }
+            return sessions;
+        });
+    }
+
+    /**
+     * @param projectArn ARN of the project.
+     * @param nextToken token of the page, null for the first one.
+     * @param sessions the sessions listed so far by ARN.
+     * @return future completed with the sessions of this page and the next ones.
+     */
+    private CompletableFuture<Map<String, RemoteAccessSession>> listSessions(String projectArn,
+            String nextToken, Map<String, RemoteAccessSession> sessions) {
+        ListRemoteAccessSessionsRequest request = new ListRemoteAccessSessionsRequest();
+        request.setArn(projectArn);
+        request.setNextToken(nextToken);
+        return call(DeviceFarmRequestScheduler.LIST_REMOTE_ACCESS_SESSIONS, () -> {
+            listCalls.incrementAndGet();
+            return lister.apply(request);
+        }).thenCompose(result -> {
+            if (result.getRemoteAccessSessions() != null) {
+                for (RemoteAccessSession session : result.getRemoteAccessSessions()) {
+                    sessions.put(session.getArn(), session);
+                }
+            }
+            if (result.getNextToken() == null) {
+                return CompletableFuture.completedFuture(sessions);
+            }
+            return listSessions(projectArn, result.getNextToken(), sessions);
+        });
+    }
+
+    /**
+     * @param arn ARN of the session.
+     * @return future completed with the session, or null if it could not be fetched.
+     */
+    private CompletableFuture<RemoteAccessSession> getSession(String arn) {
+        return call(DeviceFarmRequestScheduler.GET_REMOTE_ACCESS_SESSION, () -> {
+            getCalls.incrementAndGet();
+            return getter.apply(arn);
+        }).handle((session, th) -> {
+            if (th != null) {
+                logger.warn("Failed to get remote access session {}", arn, th);
+                return null;
+            }
+            return session;
+        });
+    }
+
+    /**
+     * Make a call through the {@link DeviceFarmRequestScheduler} if there is one.
+     * @param operation name of the operation.
+     * @param request the call.
+     * @param <T> result type.
+     * @return future completed with the result of the call.
+     */
+    private <T> CompletableFuture<T> call(String operation, Supplier<T> request) {
+        DeviceFarmRequestScheduler rateLimiter = requestScheduler;
+        if (rateLimiter != null) {
+            return rateLimiter.callAsync(operation, request, scheduler);
+        }
+        CompletableFuture<T> future = new CompletableFuture<>();
+        try {
+            future.complete(request.get());
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * @param waiter {@link Waiter}.
+     * @param session current state of its session.
+     */
+    private void update(Waiter waiter, RemoteAccessSession session) {
+        logger.debug("Status: {}, Session arn: {}, ", session.getStatus(), waiter.arn);
+        if (ExecutionStatus.RUNNING.toString().equalsIgnoreCase(session.getStatus())) {
+            waiter.future.complete(session);
+        } else if (ExecutionStatus.COMPLETED.toString().equalsIgnoreCase(session.getStatus())
+                || ExecutionStatus.STOPPING.toString().equalsIgnoreCase(session.getStatus())) {
+            waiter.future.completeExceptionally(new DeviceFarmException("RemoteAccessSession "
+                    + waiter.arn + " ended before running. Status: " + session.getStatus()
+                    + ", Result: " + session.getResult() + ", Message: " + session
+                            .getMessage()));
+        }
+    }
+
+}
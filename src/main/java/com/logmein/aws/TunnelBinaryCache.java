@@ -0,0 +1,216 @@
+package com.logmein.aws;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Machine wide cache of the extracted tunnel executables. Every bundled zip is extracted once into
+ * a directory named after the SHA-256 of the zip, and that executable is shared by every tunnel of
+ * every JVM. The zip is streamed straight from the classpath, no copy of it is written to disk.
+ * Extraction happens in a temporary directory that is atomically renamed into place while holding
+ * a file lock, so concurrent JVMs never see a partially extracted executable.
+ */
+class TunnelBinaryCache {
+
+    /**
+     * Prefix of the temporary directories.
+     */
+    private static final String TEMP_PREFIX = "tmp-";
+
+    /**
+     * Size of the read buffer of the zip.
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(TunnelBinaryCache.class);
+
+    /**
+     * Directory holding the cache entries.
+     */
+    private final File root;
+
+    /**
+     * Executables already resolved by this JVM, by resource name.
+     */
+    private final Map<String, File> resolved = new ConcurrentHashMap<>();
+
+    /**
+     * Number of extractions done by this JVM.
+     */
+    private final AtomicInteger extractions = new AtomicInteger();
+
+    /**
+     * Number of bytes written to disk by the extractions.
+     */
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param cacheRoot directory holding the cache entries.
+     */
+    TunnelBinaryCache(final File cacheRoot) {
+        root = cacheRoot;
+    }
+
+    /**
+     * @param resourceName name of the bundled zip, used to skip hashing it again in this JVM.
+     * @param zip opens the bundled zip.
+     * @param executableName name of the executable in the zip.
+     * @return the extracted executable.
+     */
+    File get(String resourceName, Supplier<InputStream> zip, String executableName) {
+        File executable = resolved.get(resourceName);
+        if (executable != null && executable.exists()) {
+            return executable;
+        }
+        // one resolution at a time in this JVM, file locks are held per JVM.
+        synchronized (this) {
+            executable = resolved.get(resourceName);
+            if (executable == null || !executable.exists()) {
+                executable = resolve(zip, executableName);
+                resolved.put(resourceName, executable);
+            }
+            return executable;
+        }
+    }
+
+    /**
+     * @return number of extractions done by this JVM.
+     */
+    int getExtractions() {
+        return extractions.get();
+    }
+
+    /**
+     * @return number of bytes written to disk by the extractions of this JVM.
+     */
+    long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    /**
+     * @param zip opens the bundled zip.
+     * @param executableName name of the executable in the zip.
+     * @return the executable of the cache entry, extracted if needed.
+     */
+    private File resolve(Supplier<InputStream> zip, String executableName) {
+        try {
+            Files.createDirectories(root.toPath());
+            String hash = hash(zip);
+            File entry = new File(root, hash);
+            File executable = new File(entry, executableName);
+            if (executable.exists()) {
+                return executable;
+            }
+            File lockFile = new File(root, hash + ".lock");
+            try (FileChannel channel = FileChannel.open(lockFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock lock = channel.lock();
+                try {
+                    // another JVM may have extracted it while waiting for the lock.
+                    if (!executable.exists()) {
+                        extract(zip, entry, executableName);
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+            return executable;
+        } catch (IOException e) {
+            throw new DeviceFarmException("Unable to get the tunnel file.", e);
+        }
+    }
+
+    /**
+     * Stream the zip entries into a temporary directory and rename it to the entry. Nothing but
+     * the extracted files is written to disk.
+     * @param zip opens the bundled zip.
+     * @param entry directory of the cache entry.
+     * @param executableName name of the executable in the zip.
+     * @throws IOException if the zip cannot be extracted.
+     */
+    private void extract(Supplier<InputStream> zip, File entry, String executableName)
+            throws IOException {
+        Path tempDir = Files.createTempDirectory(root.toPath(), TEMP_PREFIX);
+        try {
+            try (ZipInputStream zis = new ZipInputStream(new BufferedInputStream(zip.get(),
+                    BUFFER_SIZE))) {
+                ZipEntry zipEntry;
+                while ((zipEntry = zis.getNextEntry()) != null) {
+                    Path target = tempDir.resolve(zipEntry.getName()).normalize();
+                    if (!target.startsWith(tempDir)) {
+                        throw new DeviceFarmException("Invalid entry in the tunnel zip: "
+                                + zipEntry.getName());
+                    }
+                    if (zipEntry.isDirectory()) {
+                        Files.createDirectories(target);
+                    } else {
+                        Files.createDirectories(target.getParent());
+                        bytesWritten.addAndGet(Files.copy(zis, target));
+                    }
+                }
+            }
+            File executable = new File(tempDir.toFile(), executableName);
+            if (!executable.exists()) {
+                throw new DeviceFarmException("The tunnel zip does not contain " + executableName);
+            }
+            executable.setExecutable(true);
+            Files.move(tempDir, entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            extractions.incrementAndGet();
+            logger.debug("Extracted tunnel to: {}", entry.getAbsolutePath());
+        } finally {
+            FileUtils.deleteQuietly(tempDir.toFile());
+        }
+    }
+
+    /**
+     * @param zip opens the bundled zip.
+     * @return SHA-256 of the zip in hex.
+     * @throws IOException if the zip cannot be read.
+     */
+    private static String hash(Supplier<InputStream> zip) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream is = zip.get()) {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+}
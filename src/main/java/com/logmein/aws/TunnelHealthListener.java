@@ -0,0 +1,34 @@
+package com.logmein.aws;
+
+/**
+ * Listener notified by a {@link TunnelHealthMonitor} when the tunnel of a session goes down and
+ * when it is restarted. Always called on the monitor's own threads, never on the thread that ended
+ * the tunnel process, so implementations should return quickly.
+ */
+public interface TunnelHealthListener {
+
+    /**
+     * The tunnel process ended or reported an error, a restart is scheduled.
+     * @param session {@link DirectDeviceSession} of the tunnel.
+     */
+    default void onTunnelDown(DirectDeviceSession session) {
+    }
+
+    /**
+     * The tunnel was restarted to the same host.
+     * @param session {@link DirectDeviceSession} of the tunnel.
+     * @param attempts number of attempts it took.
+     */
+    default void onTunnelRestored(DirectDeviceSession session, int attempts) {
+    }
+
+    /**
+     * Every restart attempt failed, the tunnel is no longer monitored and the session should be
+     * replaced.
+     * @param session {@link DirectDeviceSession} of the tunnel.
+     * @param cause failure of the last attempt.
+     */
+    default void onTunnelLost(DirectDeviceSession session, DeviceFarmException cause) {
+    }
+
+}
@@ -0,0 +1,263 @@
+package com.logmein.aws;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logmein.aws.utils.DaemonThreadFactory;
+import com.logmein.aws.utils.PollingStrategy;
+
+/**
+ * Watches the tunnels of {@link DirectDeviceSession}s and restarts a tunnel to the same host when
+ * its process ends or reports an error, so a dropped tunnel costs a few seconds instead of a new
+ * session. Tunnels stopped by their owner are not restarted.
+ */
+public class TunnelHealthMonitor implements AutoCloseable {
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(TunnelHealthMonitor.class);
+
+    /**
+     * {@link AWSDirectory} used to restart the tunnels.
+     */
+    private final AWSDirectory awsDirectory;
+
+    /**
+     * Watched sessions.
+     */
+    private final Set<DirectDeviceSession> sessions = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Runs the restarts.
+     */
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2,
+            new DaemonThreadFactory("tunnel-health-monitor"));
+
+    /**
+     * {@link TunnelHealthListener} notified of the tunnel health changes.
+     */
+    private TunnelHealthListener listener = new TunnelHealthListener() {
+    };
+
+    /**
+     * {@link PollingStrategy} of the delays between the restart attempts.
+     */
+    private PollingStrategy restartStrategy = PollingStrategy.exponential(1000, 10000);
+
+    /**
+     * Max number of restart attempts after the tunnel went down.
+     */
+    private int maxRestartAttempts = 5;
+
+    /**
+     * Number of successful restarts.
+     */
+    private final AtomicLong restarts = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param directory {@link AWSDirectory} used to restart the tunnels.
+     */
+    public TunnelHealthMonitor(final AWSDirectory directory) {
+        awsDirectory = directory;
+    }
+
+    /**
+     * @param healthListener {@link TunnelHealthListener} notified of the tunnel health changes.
+     * @return {@link TunnelHealthMonitor}.
+     */
+    public TunnelHealthMonitor listener(TunnelHealthListener healthListener) {
+        listener = healthListener;
+        return this;
+    }
+
+    /**
+     * @param strategy {@link PollingStrategy} of the delays between the restart attempts. By
+     *            default the first attempt is after 1 second, then the delay doubles up to 10
+     *            seconds.
+     * @return {@link TunnelHealthMonitor}.
+     */
+    public TunnelHealthMonitor restartStrategy(PollingStrategy strategy) {
+        restartStrategy = strategy;
+        return this;
+    }
+
+    /**
+     * @param attempts max number of restart attempts after the tunnel went down. By default 5.
+     * @return {@link TunnelHealthMonitor}.
+     */
+    public TunnelHealthMonitor maxRestartAttempts(int attempts) {
+        maxRestartAttempts = attempts;
+        return this;
+    }
+
+    /**
+     * Start watching the tunnel of a session.
+     * @param session {@link DirectDeviceSession} with a started tunnel.
+     */
+    public void watch(DirectDeviceSession session) {
+        sessions.add(session);
+        arm(session);
+    }
+
+    /**
+     * Stop watching the tunnel of a session, to be called before stopping it.
+     * @param session {@link DirectDeviceSession}.
+     */
+    public void unwatch(DirectDeviceSession session) {
+        sessions.remove(session);
+    }
+
+    /**
+     * @return number of watched sessions.
+     */
+    public int getWatchedCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return number of successful restarts so far.
+     */
+    public long getRestarts() {
+        return restarts.get();
+    }
+
+    /**
+     * Stop watching every tunnel. The tunnels are left as they are.
+     */
+    @Override
+    public void close() {
+        sessions.clear();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * @param session {@link DirectDeviceSession}.
+     * @return true if the tunnel of the session should be kept up, else false.
+     */
+    private boolean isWatched(DirectDeviceSession session) {
+        return sessions.contains(session) && !session.getTunnel().isStopped();
+    }
+
+    /**
+     * Wait for the running tunnel of the session to go down. The down handling runs on the
+     * scheduler, not on the thread that ended the tunnel process.
+     * @param session {@link DirectDeviceSession}.
+     */
+    private void arm(DirectDeviceSession session) {
+        try {
+            session.getTunnel().whenDown().thenRunAsync(() -> onDown(session), scheduler);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Monitor closed, not watching the tunnel of session {}", arn(session));
+        }
+    }
+
+    /**
+     * @param session {@link DirectDeviceSession} whose tunnel went down.
+     */
+    private void onDown(DirectDeviceSession session) {
+        if (!isWatched(session)) {
+            sessions.remove(session);
+            return;
+        }
+        logger.warn("Tunnel of session {} is down, restarting it.", arn(session));
+        listener.onTunnelDown(session);
+        scheduleRestart(session, restartStrategy.start(null), 1);
+    }
+
+    /**
+     * @param session {@link DirectDeviceSession}.
+     * @param poll the backoff of the restart attempts.
+     * @param attempt number of the attempt.
+     */
+    private void scheduleRestart(DirectDeviceSession session, PollingStrategy.Poll poll,
+            int attempt) {
+        try {
+            scheduler.schedule(() -> restart(session, poll, attempt), poll
+                    .nextDelayInMilliseconds(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            logger.debug("Monitor closed, not restarting the tunnel of session {}", arn(session));
+        }
+    }
+
+    /**
+     * @param session {@link DirectDeviceSession}.
+     * @param poll the backoff of the restart attempts.
+     * @param attempt number of the attempt.
+     */
+    private void restart(DirectDeviceSession session, PollingStrategy.Poll poll, int attempt) {
+        if (!isWatched(session)) {
+            sessions.remove(session);
+            return;
+        }
+        DeviceFarmTunnel tunnel = session.getTunnel();
+        DeviceFarmException failure;
+        try {
+            tunnel.start(awsDirectory);
+            if (!isWatched(session)) {
+                // stopped or unwatched while starting, the new process must not outlive it.
+                stopRestarted(session);
+                return;
+            }
+            if (tunnel.isRunning()) {
+                restarts.incrementAndGet();
+                logger.info("Tunnel of session {} restarted after {} attempts.", arn(session),
+                        attempt);
+                listener.onTunnelRestored(session, attempt);
+                arm(session);
+                return;
+            }
+            failure = new DeviceFarmException("Tunnel process ended while restarting.");
+        } catch (DeviceFarmException e) {
+            failure = e;
+        } catch (RuntimeException e) {
+            failure = new DeviceFarmException("Failed to restart the tunnel.", e);
+        }
+        if (!isWatched(session)) {
+            stopRestarted(session);
+            return;
+        }
+        if (attempt >= maxRestartAttempts) {
+            sessions.remove(session);
+            logger.warn("Giving up restarting the tunnel of session {}", arn(session), failure);
+            listener.onTunnelLost(session, failure);
+            return;
+        }
+        logger.debug("Restart attempt {} of the tunnel of session {} failed.", attempt, arn(
+                session), failure);
+        scheduleRestart(session, poll, attempt + 1);
+    }
+
+    /**
+     * Stop the process started by a restart of a tunnel that is no longer watched, if its owner
+     * stopped the tunnel meanwhile.
+     * @param session {@link DirectDeviceSession}.
+     */
+    private void stopRestarted(DirectDeviceSession session) {
+        sessions.remove(session);
+        DeviceFarmTunnel tunnel = session.getTunnel();
+        if (tunnel.isStopped() && tunnel.isRunning()) {
+            logger.debug("Tunnel of session {} stopped while restarting it.", arn(session));
+            tunnel.stopTunnel();
+        }
+    }
+
+    /**
+     * @param session {@link DirectDeviceSession}.
+     * @return ARN of the session, for logging.
+     */
+    private static String arn(DirectDeviceSession session) {
+        return session.getRemoteAccessSession() == null ? null : session.getRemoteAccessSession()
+                .getArn();
+    }
+
+}
@@ -0,0 +1,21 @@
+package com.logmein.aws;
+
+/**
+ * Receives the {@link TunnelStats} of every session of a {@link TunnelRelay} after each round of
+ * probes, to bridge them to a metrics system. Only called when the probes are enabled, see
+ * {@link TunnelRelay#probeIntervalInMilliseconds(long)}.
+ * <p>
+ * The probes only time the connection to the local endpoint of the tunnel, publish
+ * {@link TunnelStats#getLocalConnectTimeMicros()} as a local connect time, not as the latency of
+ * the tunnel or of the device.
+ */
+@FunctionalInterface
+public interface TunnelMetricsReporter {
+
+    /**
+     * Called on the relay's selector thread, so implementations should return quickly.
+     * @param stats {@link TunnelStats} of one session.
+     */
+    void report(TunnelStats stats);
+
+}
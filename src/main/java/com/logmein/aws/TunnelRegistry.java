@@ -0,0 +1,129 @@
+package com.logmein.aws;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logmein.aws.utils.DaemonThreadFactory;
+
+/**
+ * Keeps track of the live {@link DeviceFarmTunnel}s. A single shutdown hook, registered with the
+ * first tunnel, stops every tunnel still live when the JVM exits. Tunnels leave the registry when
+ * they are stopped, so stopped tunnels are not held until the JVM exits.
+ */
+public class TunnelRegistry {
+
+    /**
+     * Max number of tunnels stopped at the same time.
+     */
+    private static final int MAX_PARALLEL_STOPS = 8;
+
+    /**
+     * Max time to wait for the tunnels to stop.
+     */
+    private static final long STOP_TIMEOUT_IN_SECONDS = 10;
+
+    /**
+     * The registry of the JVM.
+     */
+    private static final TunnelRegistry INSTANCE = new TunnelRegistry();
+
+    /**
+     * @return the registry of the JVM.
+     */
+    public static TunnelRegistry getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(TunnelRegistry.class);
+
+    /**
+     * Live tunnels.
+     */
+    private final Set<DeviceFarmTunnel> tunnels = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Whether the shutdown hook is registered.
+     */
+    private boolean shutdownHookAdded;
+
+    /**
+     * Constructor.
+     */
+    TunnelRegistry() {
+    }
+
+    /**
+     * @param tunnel {@link DeviceFarmTunnel} to stop when the JVM exits.
+     */
+    public void register(DeviceFarmTunnel tunnel) {
+        addShutdownHook();
+        tunnels.add(tunnel);
+    }
+
+    /**
+     * @param tunnel {@link DeviceFarmTunnel} that was stopped.
+     */
+    public void deregister(DeviceFarmTunnel tunnel) {
+        tunnels.remove(tunnel);
+    }
+
+    /**
+     * @return number of live tunnels.
+     */
+    public int getLiveTunnelCount() {
+        return tunnels.size();
+    }
+
+    /**
+     * Stop every live tunnel, several at a time, and wait for them to stop.
+     */
+    public void stopAll() {
+        List<DeviceFarmTunnel> live = new ArrayList<>(tunnels);
+        if (live.isEmpty()) {
+            return;
+        }
+        logger.debug("Stopping {} tunnels.", live.size());
+        ExecutorService stopper = Executors.newFixedThreadPool(Math.min(live.size(),
+                MAX_PARALLEL_STOPS), new DaemonThreadFactory("tunnel-registry"));
+        for (DeviceFarmTunnel tunnel : live) {
+            stopper.execute(() -> {
+                try {
+                    tunnel.stopTunnel();
+                } catch (RuntimeException e) {
+                    logger.warn("Failed to stop the tunnel at {}", tunnel.getLocation(), e);
+                }
+            });
+        }
+        stopper.shutdown();
+        try {
+            if (!stopper.awaitTermination(STOP_TIMEOUT_IN_SECONDS, TimeUnit.SECONDS)) {
+                logger.warn("Tunnels still stopping after {} seconds.", STOP_TIMEOUT_IN_SECONDS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Register the shutdown hook, once.
+     */
+    private synchronized void addShutdownHook() {
+        if (!shutdownHookAdded) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::stopAll,
+                    "tunnel-registry-shutdown"));
+            shutdownHookAdded = true;
+        }
+    }
+
+}
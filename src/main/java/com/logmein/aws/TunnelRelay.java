@@ -0,0 +1,794 @@
+package com.logmein.aws;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logmein.aws.utils.DaemonThreadFactory;
+
+/**
+ * TCP relay giving every {@link DirectDeviceSession} its own local port on the loopback
+ * interface, forwarded to the endpoint of the session's tunnel. The port of a session stays the
+ * same for the life of the relay, even when the tunnel is restarted and the session bound again,
+ * so concurrent sessions on one host never collide. Every connection of every session is served
+ * by a single selector thread with direct buffers. The relay counts the traffic of each session
+ * and, when enabled, probes the local connect time to its target, see {@link TunnelStats}.
+ */
+public class TunnelRelay implements AutoCloseable {
+
+    /**
+     * Size of the buffer of each direction of a connection.
+     */
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Max time to wait for the selector thread to release the port of an unbound session.
+     */
+    private static final long UNBIND_TIMEOUT_IN_MILLISECONDS = 1000;
+
+    /**
+     * The local port of a session.
+     */
+    private static final class Route {
+
+        /**
+         * Key of the session.
+         */
+        private final String key;
+
+        /**
+         * Accepts the local connections.
+         */
+        private final ServerSocketChannel server;
+
+        /**
+         * Endpoint the connections are forwarded to.
+         */
+        private volatile InetSocketAddress target;
+
+        /**
+         * {@link PortAllocator.Lease} of the local port, null if it was not allocated.
+         */
+        private PortAllocator.Lease portLease;
+
+        /**
+         * Open connections, only used on the selector thread.
+         */
+        private final Set<Connection> connections = new HashSet<>();
+
+        /**
+         * Connections currently open.
+         */
+        private final AtomicInteger activeConnections = new AtomicInteger();
+
+        /**
+         * Connections opened so far.
+         */
+        private final AtomicLong totalConnections = new AtomicLong();
+
+        /**
+         * Bytes written to the target.
+         */
+        private final AtomicLong bytesToDevice = new AtomicLong();
+
+        /**
+         * Bytes written to the clients.
+         */
+        private final AtomicLong bytesFromDevice = new AtomicLong();
+
+        /**
+         * Local connect time of the last successful probe in microseconds, -1 if none succeeded.
+         */
+        private volatile long localConnectTimeMicros = -1;
+
+        /**
+         * Probes that failed.
+         */
+        private final AtomicLong failedProbes = new AtomicLong();
+
+        /**
+         * Probe in progress, only used on the selector thread.
+         */
+        private Probe probe;
+
+        /**
+         * @param sessionKey key of the session.
+         * @param serverChannel accepts the local connections.
+         * @param endpoint endpoint the connections are forwarded to.
+         */
+        Route(final String sessionKey, final ServerSocketChannel serverChannel,
+                final InetSocketAddress endpoint) {
+            key = sessionKey;
+            server = serverChannel;
+            target = endpoint;
+        }
+    }
+
+    /**
+     * A connection opened to the target to measure the connect time.
+     */
+    private static final class Probe {
+
+        /**
+         * {@link Route} probed.
+         */
+        private final Route route;
+
+        /**
+         * Connection to the target.
+         */
+        private final SocketChannel channel;
+
+        /**
+         * {@link System#nanoTime()} when the probe started.
+         */
+        private final long startNanos = System.nanoTime();
+
+        /**
+         * @param probedRoute {@link Route} probed.
+         * @param probeChannel connection to the target.
+         */
+        Probe(final Route probedRoute, final SocketChannel probeChannel) {
+            route = probedRoute;
+            channel = probeChannel;
+        }
+    }
+
+    /**
+     * A local connection and its connection to the target.
+     */
+    private static final class Connection {
+
+        /**
+         * {@link Route} of the connection.
+         */
+        private final Route route;
+
+        /**
+         * The local side.
+         */
+        private final SocketChannel client;
+
+        /**
+         * The target side.
+         */
+        private final SocketChannel upstream;
+
+        /**
+         * Bytes read from the client, waiting to be written to the target.
+         */
+        private final ByteBuffer toUpstream = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        /**
+         * Bytes read from the target, waiting to be written to the client.
+         */
+        private final ByteBuffer toClient = ByteBuffer.allocateDirect(BUFFER_SIZE);
+
+        /**
+         * {@link SelectionKey} of the client.
+         */
+        private SelectionKey clientKey;
+
+        /**
+         * {@link SelectionKey} of the target.
+         */
+        private SelectionKey upstreamKey;
+
+        /**
+         * Whether the connection to the target is established.
+         */
+        private boolean connected;
+
+        /**
+         * Whether the client has no more bytes to send.
+         */
+        private boolean clientEof;
+
+        /**
+         * Whether the target has no more bytes to send.
+         */
+        private boolean upstreamEof;
+
+        /**
+         * Whether the output of the target was shut down.
+         */
+        private boolean upstreamShut;
+
+        /**
+         * Whether the output of the client was shut down.
+         */
+        private boolean clientShut;
+
+        /**
+         * @param connectionRoute {@link Route} of the connection.
+         * @param clientChannel the local side.
+         * @param upstreamChannel the target side.
+         */
+        Connection(final Route connectionRoute, final SocketChannel clientChannel,
+                final SocketChannel upstreamChannel) {
+            route = connectionRoute;
+            client = clientChannel;
+            upstream = upstreamChannel;
+        }
+    }
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(TunnelRelay.class);
+
+    /**
+     * Waits for the events of every channel.
+     */
+    private final Selector selector;
+
+    /**
+     * Routes by session key.
+     */
+    private final Map<String, Route> routes = new ConcurrentHashMap<>();
+
+    /**
+     * Ports given to the sessions, kept after they are unbound so they get the same port back.
+     */
+    private final Map<String, Integer> ports = new ConcurrentHashMap<>();
+
+    /**
+     * Work handed over to the selector thread.
+     */
+    private final Queue<Runnable> pending = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Number of open connections.
+     */
+    private final AtomicInteger connectionCount = new AtomicInteger();
+
+    /**
+     * The selector thread.
+     */
+    private final Thread selectorThread;
+
+    /**
+     * Whether the relay is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Interval between the probes of the targets in milliseconds, 0 to disable them.
+     */
+    private volatile long probeIntervalInMilliseconds;
+
+    /**
+     * {@link TunnelMetricsReporter} receiving the stats after each probe, may be null.
+     */
+    private volatile TunnelMetricsReporter metricsReporter;
+
+    /**
+     * {@link PortAllocator} of the local ports, null to let the system pick them.
+     */
+    private PortAllocator portAllocator;
+
+    /**
+     * Constructor, starts the selector thread.
+     */
+    public TunnelRelay() {
+        try {
+            selector = Selector.open();
+        } catch (IOException e) {
+            throw new DeviceFarmException("Failed to open the selector of the relay.", e);
+        }
+        selectorThread = new DaemonThreadFactory("tunnel-relay").newThread(this::run);
+        selectorThread.start();
+    }
+
+    /**
+     * @param intervalInMilliseconds interval between the probes of the targets, 0 to disable
+     *            them. A probe measures the time it takes to connect to the target, the local
+     *            endpoint of the tunnel, so it tells whether the tunnel accepts connections but not
+     *            the latency to the device. The tunnel forwards each probe connection to the
+     *            device, which sees it open and close. Disabled by default.
+     * @return {@link TunnelRelay}.
+     */
+    public TunnelRelay probeIntervalInMilliseconds(long intervalInMilliseconds) {
+        probeIntervalInMilliseconds = intervalInMilliseconds;
+        selector.wakeup();
+        return this;
+    }
+
+    /**
+     * @param reporter {@link TunnelMetricsReporter} receiving the {@link TunnelStats} of each
+     *            session after its probe, null for none.
+     * @return {@link TunnelRelay}.
+     */
+    public TunnelRelay metricsReporter(TunnelMetricsReporter reporter) {
+        metricsReporter = reporter;
+        return this;
+    }
+
+    /**
+     * @param allocator {@link PortAllocator} the local ports of the sessions bound from now on are
+     *            allocated from, so they never collide with the ports of other JVMs of the host.
+     *            By default the system picks a free port.
+     * @return {@link TunnelRelay}.
+     */
+    public synchronized TunnelRelay portAllocator(PortAllocator allocator) {
+        portAllocator = allocator;
+        return this;
+    }
+
+    /**
+     * Forward the local port of a session to the given endpoint. Binding a session again, for
+     * instance after its tunnel restarted, only changes the endpoint of the new connections.
+     * @param session {@link DirectDeviceSession}.
+     * @param target endpoint the connections are forwarded to.
+     * @return the local port of the session.
+     */
+    public int bind(DirectDeviceSession session, InetSocketAddress target) {
+        String key = key(session);
+        synchronized (this) {
+            if (closed) {
+                throw new DeviceFarmException("The relay is closed.");
+            }
+            Route route = routes.get(key);
+            if (route != null) {
+                route.target = target;
+                return route.server.socket().getLocalPort();
+            }
+            int port = ports.getOrDefault(key, 0);
+            PortAllocator.Lease portLease = null;
+            if (portAllocator != null) {
+                portLease = portAllocator.allocate(port);
+                port = portLease.getPort();
+            }
+            ServerSocketChannel server = null;
+            try {
+                server = ServerSocketChannel.open();
+                server.configureBlocking(false);
+                server.socket().setReuseAddress(true);
+                server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+            } catch (IOException e) {
+                closeQuietly(server);
+                closeQuietly(portLease);
+                throw new DeviceFarmException("Failed to open the local port of session " + key,
+                        e);
+            }
+            Route newRoute = new Route(key, server, target);
+            newRoute.portLease = portLease;
+            port = server.socket().getLocalPort();
+            routes.put(key, newRoute);
+            ports.put(key, port);
+            submit(() -> register(newRoute));
+            session.relay(this);
+            logger.debug("Session {} relayed from local port {} to {}", key, port, target);
+            return port;
+        }
+    }
+
+    /**
+     * Close the local port of a session and its connections. The port is free again when this
+     * returns.
+     * @param session {@link DirectDeviceSession}.
+     */
+    public void unbind(DirectDeviceSession session) {
+        Route route = routes.remove(key(session));
+        if (route == null) {
+            return;
+        }
+        session.relay(null);
+        CompletableFuture<Void> released = new CompletableFuture<>();
+        submit(() -> {
+            closeRoute(route);
+            try {
+                // the port of a registered channel is only released once its key is deregistered.
+                selector.selectNow();
+            } catch (IOException e) {
+                logger.debug("Failed to release the local port of session {}", route.key, e);
+            }
+            closeQuietly(route.portLease);
+            released.complete(null);
+        });
+        if (Thread.currentThread() != selectorThread) {
+            try {
+                released.get(UNBIND_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException | TimeoutException e) {
+                logger.debug("Local port of session {} not released yet.", route.key, e);
+            }
+        }
+    }
+
+    /**
+     * @param session {@link DirectDeviceSession}.
+     * @return {@link TunnelStats} of the local port of the session, null if it is not bound.
+     */
+    public TunnelStats getStats(DirectDeviceSession session) {
+        Route route = routes.get(key(session));
+        return route == null ? null : stats(route);
+    }
+
+    /**
+     * @param session {@link DirectDeviceSession}.
+     * @return the local port of the session, -1 if it is not bound.
+     */
+    public int getLocalPort(DirectDeviceSession session) {
+        Route route = routes.get(key(session));
+        return route == null ? -1 : route.server.socket().getLocalPort();
+    }
+
+    /**
+     * @return number of open connections of every session.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Close every local port and connection and stop the selector thread.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        selector.wakeup();
+        try {
+            selectorThread.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @param session {@link DirectDeviceSession}.
+     * @return key of the session.
+     */
+    private static String key(DirectDeviceSession session) {
+        return session.getRemoteAccessSession().getArn();
+    }
+
+    /**
+     * Run the given work on the selector thread.
+     * @param work the work.
+     */
+    private void submit(Runnable work) {
+        pending.add(work);
+        selector.wakeup();
+    }
+
+    /**
+     * The selector loop.
+     */
+    private void run() {
+        long nextProbeNanos = 0;
+        try {
+            while (!closed) {
+                long interval = probeIntervalInMilliseconds;
+                if (interval <= 0) {
+                    nextProbeNanos = 0;
+                    selector.select();
+                } else {
+                    if (nextProbeNanos == 0) {
+                        nextProbeNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                                interval);
+                    }
+                    long waitNanos = nextProbeNanos - System.nanoTime();
+                    // select(0) would wait forever.
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)));
+                }
+                Runnable work;
+                while ((work = pending.poll()) != null) {
+                    work.run();
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    handle(key);
+                }
+                selector.selectedKeys().clear();
+                if (nextProbeNanos != 0 && System.nanoTime() - nextProbeNanos >= 0) {
+                    for (Route route : routes.values()) {
+                        probe(route);
+                    }
+                    nextProbeNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(interval);
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            logger.warn("Relay selector failed.", e);
+        } finally {
+            for (Route route : routes.values()) {
+                closeRoute(route);
+            }
+            closeQuietly(selector);
+            for (Route route : routes.values()) {
+                closeQuietly(route.portLease);
+            }
+            routes.clear();
+        }
+    }
+
+    /**
+     * @param route {@link Route} to start accepting the connections of.
+     */
+    private void register(Route route) {
+        try {
+            route.server.register(selector, SelectionKey.OP_ACCEPT, route);
+        } catch (IOException e) {
+            logger.warn("Failed to listen on the local port of session {}", route.key, e);
+            closeQuietly(route.server);
+        }
+    }
+
+    /**
+     * @param key {@link SelectionKey} with events.
+     */
+    private void handle(SelectionKey key) {
+        if (!key.isValid()) {
+            return;
+        }
+        if (key.attachment() instanceof Route) {
+            accept((Route) key.attachment());
+            return;
+        }
+        if (key.attachment() instanceof Probe) {
+            finishProbe((Probe) key.attachment(), false);
+            return;
+        }
+        Connection connection = (Connection) key.attachment();
+        try {
+            if (key.isConnectable() && connection.upstream.finishConnect()) {
+                connection.connected = true;
+            }
+            boolean isClient = key == connection.clientKey;
+            if (key.isReadable()) {
+                read(connection, isClient);
+            }
+            if (key.isWritable()) {
+                write(connection, isClient);
+            }
+            update(connection);
+        } catch (IOException e) {
+            logger.debug("Relay connection of session {} failed.", connection.route.key, e);
+            closeConnection(connection);
+        }
+    }
+
+    /**
+     * @param route {@link Route} with a pending local connection.
+     */
+    private void accept(Route route) {
+        SocketChannel client = null;
+        SocketChannel upstream = null;
+        try {
+            client = route.server.accept();
+            if (client == null) {
+                return;
+            }
+            client.configureBlocking(false);
+            upstream = SocketChannel.open();
+            upstream.configureBlocking(false);
+            Connection connection = new Connection(route, client, upstream);
+            connection.connected = upstream.connect(route.target);
+            connection.clientKey = client.register(selector, 0, connection);
+            connection.upstreamKey = upstream.register(selector, 0, connection);
+            route.connections.add(connection);
+            route.activeConnections.incrementAndGet();
+            route.totalConnections.incrementAndGet();
+            connectionCount.incrementAndGet();
+            update(connection);
+        } catch (IOException e) {
+            logger.debug("Failed to relay a connection of session {}", route.key, e);
+            closeQuietly(client);
+            closeQuietly(upstream);
+        }
+    }
+
+    /**
+     * @param connection {@link Connection}.
+     * @param fromClient whether to read from the client, else from the target.
+     * @throws IOException if the read fails.
+     */
+    private void read(Connection connection, boolean fromClient) throws IOException {
+        if (fromClient) {
+            if (connection.client.read(connection.toUpstream) < 0) {
+                connection.clientEof = true;
+            }
+        } else if (connection.upstream.read(connection.toClient) < 0) {
+            connection.upstreamEof = true;
+        }
+    }
+
+    /**
+     * @param connection {@link Connection}.
+     * @param toClient whether to write to the client, else to the target.
+     * @throws IOException if the write fails.
+     */
+    private void write(Connection connection, boolean toClient) throws IOException {
+        ByteBuffer buffer = toClient ? connection.toClient : connection.toUpstream;
+        buffer.flip();
+        try {
+            int written = (toClient ? connection.client : connection.upstream).write(buffer);
+            (toClient ? connection.route.bytesFromDevice : connection.route.bytesToDevice)
+                    .addAndGet(written);
+        } finally {
+            buffer.compact();
+        }
+    }
+
+    /**
+     * Forward the end of the streams and update the events each side waits for.
+     * @param connection {@link Connection}.
+     * @throws IOException if a side cannot be shut down.
+     */
+    private void update(Connection connection) throws IOException {
+        if (connection.clientEof && connection.connected && !connection.upstreamShut
+                && connection.toUpstream.position() == 0) {
+            connection.upstream.shutdownOutput();
+            connection.upstreamShut = true;
+        }
+        if (connection.upstreamEof && !connection.clientShut && connection.toClient
+                .position() == 0) {
+            connection.client.shutdownOutput();
+            connection.clientShut = true;
+        }
+        if (connection.upstreamShut && connection.clientShut) {
+            closeConnection(connection);
+            return;
+        }
+        int clientOps = 0;
+        if (!connection.clientEof && connection.toUpstream.hasRemaining()) {
+            clientOps |= SelectionKey.OP_READ;
+        }
+        if (connection.toClient.position() > 0) {
+            clientOps |= SelectionKey.OP_WRITE;
+        }
+        int upstreamOps = 0;
+        if (!connection.connected) {
+            upstreamOps = SelectionKey.OP_CONNECT;
+        } else {
+            if (!connection.upstreamEof && connection.toClient.hasRemaining()) {
+                upstreamOps |= SelectionKey.OP_READ;
+            }
+            if (connection.toUpstream.position() > 0) {
+                upstreamOps |= SelectionKey.OP_WRITE;
+            }
+        }
+        connection.clientKey.interestOps(clientOps);
+        connection.upstreamKey.interestOps(upstreamOps);
+    }
+
+    /**
+     * @param connection {@link Connection} to close.
+     */
+    private void closeConnection(Connection connection) {
+        if (connection.route.connections.remove(connection)) {
+            connection.route.activeConnections.decrementAndGet();
+            connectionCount.decrementAndGet();
+        }
+        closeQuietly(connection.client);
+        closeQuietly(connection.upstream);
+    }
+
+    /**
+     * Start a probe of the target of a route. A probe still in progress since the previous round
+     * counts as failed.
+     * @param route {@link Route} to probe.
+     */
+    private void probe(Route route) {
+        if (route.probe != null) {
+            finishProbe(route.probe, true);
+        }
+        SocketChannel channel = null;
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            Probe probe = new Probe(route, channel);
+            route.probe = probe;
+            if (channel.connect(route.target)) {
+                finishProbe(probe, false);
+            } else {
+                channel.register(selector, SelectionKey.OP_CONNECT, probe);
+            }
+        } catch (IOException e) {
+            closeQuietly(channel);
+            route.probe = null;
+            route.failedProbes.incrementAndGet();
+            report(route);
+        }
+    }
+
+    /**
+     * Record the connect time of a probe and report the stats of its route.
+     * @param probe {@link Probe}.
+     * @param timedOut whether the probe did not complete in time.
+     */
+    private void finishProbe(Probe probe, boolean timedOut) {
+        try {
+            if (timedOut || !probe.channel.finishConnect()) {
+                probe.route.failedProbes.incrementAndGet();
+            } else {
+                probe.route.localConnectTimeMicros = TimeUnit.NANOSECONDS.toMicros(
+                        System.nanoTime() - probe.startNanos);
+            }
+        } catch (IOException e) {
+            probe.route.failedProbes.incrementAndGet();
+        } finally {
+            closeQuietly(probe.channel);
+            if (probe.route.probe == probe) {
+                probe.route.probe = null;
+            }
+        }
+        report(probe.route);
+    }
+
+    /**
+     * @param route {@link Route} whose stats are reported.
+     */
+    private void report(Route route) {
+        TunnelMetricsReporter reporter = metricsReporter;
+        if (reporter != null) {
+            try {
+                reporter.report(stats(route));
+            } catch (RuntimeException e) {
+                logger.warn("Tunnel metrics reporter failed.", e);
+            }
+        }
+    }
+
+    /**
+     * @param route {@link Route}.
+     * @return {@link TunnelStats} of the route.
+     */
+    private static TunnelStats stats(Route route) {
+        return new TunnelStats(route.key, route.bytesToDevice.get(), route.bytesFromDevice
+                .get(), route.activeConnections.get(), route.totalConnections.get(),
+                route.localConnectTimeMicros, route.failedProbes.get());
+    }
+
+    /**
+     * @param route {@link Route} to close, with its connections.
+     */
+    private void closeRoute(Route route) {
+        closeQuietly(route.server);
+        if (route.probe != null) {
+            closeQuietly(route.probe.channel);
+            route.probe = null;
+        }
+        for (Connection connection : new HashSet<>(route.connections)) {
+            closeConnection(connection);
+        }
+    }
+
+    /**
+     * @param closeable to close ignoring errors, may be null.
+     */
+    private void closeQuietly(AutoCloseable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            logger.debug("Failed to close {}", closeable, e);
+        }
+    }
+
+}
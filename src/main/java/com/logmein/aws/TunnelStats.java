@@ -0,0 +1,141 @@
+package com.logmein.aws;
+
+/**
+ * Traffic of the local port of a {@link DirectDeviceSession} in a {@link TunnelRelay}, captured
+ * at a point in time.
+ */
+public class TunnelStats {
+
+    /**
+     * ARN of the session.
+     */
+    private final String sessionArn;
+
+    /**
+     * Bytes forwarded to the device.
+     */
+    private final long bytesToDevice;
+
+    /**
+     * Bytes forwarded from the device.
+     */
+    private final long bytesFromDevice;
+
+    /**
+     * Connections currently open.
+     */
+    private final int activeConnections;
+
+    /**
+     * Connections opened so far.
+     */
+    private final long totalConnections;
+
+    /**
+     * Local connect time: time the last successful probe took to connect to the local endpoint
+     * of the tunnel in microseconds, -1 if none succeeded yet. Not a latency to the device, the
+     * probe never reaches past the local tunnel process.
+     */
+    private final long localConnectTimeMicros;
+
+    /**
+     * Probes that failed.
+     */
+    private final long failedProbes;
+
+    /**
+     * Constructor.
+     * @param arn ARN of the session.
+     * @param toDevice bytes forwarded to the device.
+     * @param fromDevice bytes forwarded from the device.
+     * @param active connections currently open.
+     * @param total connections opened so far.
+     * @param localConnectMicros local connect time of the last successful probe in
+     *            microseconds, -1 if none succeeded yet.
+     * @param failed probes that failed.
+     */
+    TunnelStats(final String arn, final long toDevice, final long fromDevice, final int active,
+            final long total, final long localConnectMicros, final long failed) {
+        sessionArn = arn;
+        bytesToDevice = toDevice;
+        bytesFromDevice = fromDevice;
+        activeConnections = active;
+        totalConnections = total;
+        localConnectTimeMicros = localConnectMicros;
+        failedProbes = failed;
+    }
+
+    /**
+     * @return ARN of the session.
+     */
+    public String getSessionArn() {
+        return sessionArn;
+    }
+
+    /**
+     * @return bytes forwarded to the device.
+     */
+    public long getBytesToDevice() {
+        return bytesToDevice;
+    }
+
+    /**
+     * @return bytes forwarded from the device.
+     */
+    public long getBytesFromDevice() {
+        return bytesFromDevice;
+    }
+
+    /**
+     * @return connections currently open.
+     */
+    public int getActiveConnections() {
+        return activeConnections;
+    }
+
+    /**
+     * @return connections opened so far.
+     */
+    public long getTotalConnections() {
+        return totalConnections;
+    }
+
+    /**
+     * @return local connect time: time the last successful probe took to connect to the local
+     *         endpoint of the tunnel in microseconds, -1 if none succeeded yet. Not a latency to
+     *         the device.
+     */
+    public long getLocalConnectTimeMicros() {
+        return localConnectTimeMicros;
+    }
+
+    /**
+     * @return probes that failed.
+     */
+    public long getFailedProbes() {
+        return failedProbes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("{");
+        str.append("SessionArn: ");
+        str.append(sessionArn);
+        str.append(", BytesToDevice: ");
+        str.append(bytesToDevice);
+        str.append(", BytesFromDevice: ");
+        str.append(bytesFromDevice);
+        str.append(", ActiveConnections: ");
+        str.append(activeConnections);
+        str.append(", TotalConnections: ");
+        str.append(totalConnections);
+        str.append(", LocalConnectTimeMicros: ");
+        str.append(localConnectTimeMicros);
+        str.append(", FailedProbes: ");
+        str.append(failedProbes);
+        str.append("}");
+        return str.toString();
+    }
+
+}
@@ -0,0 +1,305 @@
+package com.logmein.aws.device;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.devicefarm.model.DeviceInstance;
+
+/**
+ * Hands out device instances to concurrent requesters without them racing for the same instance.
+ * Requests are queued by priority, higher first, and in arrival order within the same priority.
+ * Every AVAILABLE instance matching a request is reserved for exactly one requester, until Device
+ * Farm reports it as busy, the reservation is released, or it expires.
+ * <p>
+ * The allocator is driven by the {@link DeviceAvailabilityWatcher}: it stays subscribed while there
+ * are pending requests or reservations, and hands over instances as soon as they become free.
+ */
+public class DeviceAllocator {
+
+    /**
+     * A queued request.
+     */
+    private static class Request {
+
+        /**
+         * Query the instance should match.
+         */
+        private final DeviceQuery query;
+
+        /**
+         * Priority, higher first.
+         */
+        private final int priority;
+
+        /**
+         * Arrival order.
+         */
+        private final long sequence;
+
+        /**
+         * Completed with the reservation.
+         */
+        private final CompletableFuture<DeviceReservation> future = new CompletableFuture<>();
+
+        /**
+         * @param deviceQuery query the instance should match.
+         * @param requestPriority priority, higher first.
+         * @param arrival arrival order.
+         */
+        Request(final DeviceQuery deviceQuery, final int requestPriority, final long arrival) {
+            query = deviceQuery;
+            priority = requestPriority;
+            sequence = arrival;
+        }
+    }
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(DeviceAllocator.class);
+
+    /**
+     * {@link DeviceCatalog} the instances are taken from.
+     */
+    private final DeviceCatalog catalog;
+
+    /**
+     * {@link DeviceAvailabilityWatcher} driving the allocation.
+     */
+    private final DeviceAvailabilityWatcher watcher;
+
+    /**
+     * Subscription to the watcher.
+     */
+    private final DeviceAvailabilityListener listener = this::onAvailabilityChanged;
+
+    /**
+     * Pending requests, by priority and then arrival order.
+     */
+    private final PriorityQueue<Request> queue = new PriorityQueue<>(Comparator.<Request>comparingInt(
+            r -> -r.priority).thenComparingLong(r -> r.sequence));
+
+    /**
+     * Live reservations by instance ARN.
+     */
+    private final Map<String, DeviceReservation> reservations = new HashMap<>();
+
+    /**
+     * Arrival counter.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Reservations not ended by Device Farm reporting the instance as busy expire after this time.
+     */
+    private Duration reservationTimeout = Duration.ofMinutes(2);
+
+    /**
+     * Whether the allocator is subscribed to the watcher.
+     */
+    private boolean subscribed;
+
+    /**
+     * Constructor.
+     * @param deviceCatalog {@link DeviceCatalog} the instances are taken from.
+     * @param availabilityWatcher {@link DeviceAvailabilityWatcher} driving the allocation.
+     */
+    public DeviceAllocator(DeviceCatalog deviceCatalog,
+            DeviceAvailabilityWatcher availabilityWatcher) {
+        catalog = deviceCatalog;
+        watcher = availabilityWatcher;
+    }
+
+    /**
+     * @param seconds reservations not ended by Device Farm reporting the instance as busy expire
+     *            after this time. By default this is 2 minutes.
+     * @return {@link DeviceAllocator}.
+     */
+    public DeviceAllocator reservationTimeoutInSeconds(long seconds) {
+        reservationTimeout = Duration.ofSeconds(seconds);
+        return this;
+    }
+
+    /**
+     * Queue a request for an instance. Cancelling the future removes the request from the queue.
+     * @param query {@link DeviceQuery} the instance should match.
+     * @param priority priority of the request, higher first.
+     * @return future completed with the {@link DeviceReservation}.
+     */
+    public CompletableFuture<DeviceReservation> allocate(DeviceQuery query, int priority) {
+        Request request = new Request(query, priority, sequence.getAndIncrement());
+        synchronized (this) {
+            queue.add(request);
+        }
+        request.future.whenComplete((reservation, th) -> {
+            if (th != null) {
+                synchronized (this) {
+                    queue.remove(request);
+                }
+                updateSubscription();
+            }
+        });
+        updateSubscription();
+        dispatch();
+        return request.future;
+    }
+
+    /**
+     * @return number of queued requests.
+     */
+    public synchronized int getQueueLength() {
+        return queue.size();
+    }
+
+    /**
+     * @return number of live reservations.
+     */
+    public synchronized int getReservationCount() {
+        return reservations.size();
+    }
+
+    /**
+     * @param reservation {@link DeviceReservation} to end.
+     */
+    void release(DeviceReservation reservation) {
+        boolean released;
+        synchronized (this) {
+            released = reservations.remove(reservation.getInstance().getArn(), reservation);
+        }
+        if (released) {
+            logger.debug("Released reservation {}", reservation);
+            updateSubscription();
+            dispatch();
+        }
+    }
+
+    /**
+     * End the reservation of the instance, if any.
+     * @param instanceArn ARN of the instance.
+     */
+    public void release(String instanceArn) {
+        DeviceReservation reservation;
+        synchronized (this) {
+            reservation = reservations.get(instanceArn);
+        }
+        if (reservation != null) {
+            release(reservation);
+        }
+    }
+
+    /**
+     * @param event {@link DeviceAvailabilityEvent}.
+     */
+    private void onAvailabilityChanged(DeviceAvailabilityEvent event) {
+        if (!event.isAvailable()) {
+            DeviceReservation ended;
+            synchronized (this) {
+                ended = reservations.remove(event.getInstance().getArn());
+            }
+            if (ended != null) {
+                logger.debug("Reservation {} ended, instance is now {}", ended, event.getStatus());
+                updateSubscription();
+            }
+            return;
+        }
+        dispatch();
+    }
+
+    /**
+     * Hand the AVAILABLE, unreserved instances of the current snapshot to the queued requests.
+     */
+    private void dispatch() {
+        // the snapshot is read before taking the lock, never while holding it, as catalog
+        // listeners are called with the catalog lock held.
+        DeviceIndex index;
+        try {
+            index = catalog.getSnapshot().getIndex();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to read the device catalog.", e);
+            return;
+        }
+        Map<Request, DeviceReservation> granted = new LinkedHashMap<>();
+        synchronized (this) {
+            expireReservations();
+            List<Request> ordered = new ArrayList<>(queue);
+            ordered.sort(queue.comparator());
+            for (Request request : ordered) {
+                DeviceInstance instance = firstUnreserved(index.findAvailable(request.query));
+                if (instance != null) {
+                    DeviceReservation reservation = new DeviceReservation(this, instance,
+                            request.priority);
+                    reservations.put(instance.getArn(), reservation);
+                    queue.remove(request);
+                    granted.put(request, reservation);
+                }
+            }
+        }
+        // complete outside the lock, callers' callbacks run on this thread.
+        for (Map.Entry<Request, DeviceReservation> entry : granted.entrySet()) {
+            DeviceReservation reservation = entry.getValue();
+            if (!entry.getKey().future.complete(reservation)) {
+                // the requester gave up in the meantime.
+                release(reservation);
+            }
+        }
+        updateSubscription();
+    }
+
+    /**
+     * @param instances AVAILABLE instances.
+     * @return the first one not reserved, or null.
+     */
+    private DeviceInstance firstUnreserved(List<DeviceInstance> instances) {
+        for (DeviceInstance instance : instances) {
+            if (!reservations.containsKey(instance.getArn())) {
+                return instance;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drop the reservations older than the reservation timeout. Must hold the lock.
+     */
+    private void expireReservations() {
+        Instant expiry = Instant.now().minus(reservationTimeout);
+        Iterator<DeviceReservation> iterator = reservations.values().iterator();
+        while (iterator.hasNext()) {
+            DeviceReservation reservation = iterator.next();
+            if (reservation.getReservedAt().isBefore(expiry)) {
+                logger.debug("Reservation {} expired", reservation);
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Stay subscribed to the watcher while there are pending requests or live reservations.
+     */
+    private synchronized void updateSubscription() {
+        boolean needed = !queue.isEmpty() || !reservations.isEmpty();
+        if (needed == subscribed) {
+            return;
+        }
+        subscribed = needed;
+        if (needed) {
+            watcher.addListener(listener);
+        } else {
+            watcher.removeListener(listener);
+        }
+    }
+
+}
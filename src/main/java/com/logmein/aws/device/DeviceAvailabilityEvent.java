@@ -0,0 +1,97 @@
+package com.logmein.aws.device;
+
+import com.amazonaws.services.devicefarm.model.Device;
+import com.amazonaws.services.devicefarm.model.DeviceInstance;
+import com.amazonaws.services.devicefarm.model.InstanceStatus;
+
+/**
+ * Change of the status of a device instance between two {@link DeviceCatalogSnapshot}s.
+ */
+public class DeviceAvailabilityEvent {
+
+    /**
+     * {@link Device} of the instance.
+     */
+    private final Device device;
+
+    /**
+     * The instance, as in the newer snapshot.
+     */
+    private final DeviceInstance instance;
+
+    /**
+     * Status in the older snapshot, null if the instance was not there.
+     */
+    private final String previousStatus;
+
+    /**
+     * Constructor.
+     * @param changedDevice {@link Device} of the instance.
+     * @param changedInstance the instance, as in the newer snapshot.
+     * @param status status in the older snapshot, null if the instance was not there.
+     */
+    public DeviceAvailabilityEvent(final Device changedDevice,
+            final DeviceInstance changedInstance, final String status) {
+        device = changedDevice;
+        instance = changedInstance;
+        previousStatus = status;
+    }
+
+    /**
+     * @return {@link Device} of the instance.
+     */
+    public Device getDevice() {
+        return device;
+    }
+
+    /**
+     * @return the {@link DeviceInstance}, as in the newer snapshot.
+     */
+    public DeviceInstance getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return status in the older snapshot, null if the instance was not there.
+     */
+    public String getPreviousStatus() {
+        return previousStatus;
+    }
+
+    /**
+     * @return current status of the instance.
+     */
+    public String getStatus() {
+        return instance.getStatus();
+    }
+
+    /**
+     * @return true if the instance is now AVAILABLE.
+     */
+    public boolean isAvailable() {
+        return InstanceStatus.AVAILABLE.toString().equalsIgnoreCase(getStatus());
+    }
+
+    /**
+     * @return true if the instance was AVAILABLE and no longer is.
+     */
+    public boolean isBusy() {
+        return !isAvailable() && InstanceStatus.AVAILABLE.toString().equalsIgnoreCase(
+                previousStatus);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("{");
+        str.append("Instance: ");
+        str.append(instance.getArn());
+        str.append(", PreviousStatus: ");
+        str.append(previousStatus);
+        str.append(", Status: ");
+        str.append(getStatus());
+        str.append("}");
+        return str.toString();
+    }
+
+}
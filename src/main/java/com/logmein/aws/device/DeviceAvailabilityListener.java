@@ -0,0 +1,16 @@
+package com.logmein.aws.device;
+
+/**
+ * Listener notified by a {@link DeviceAvailabilityWatcher} when the status of a device instance
+ * changes.
+ */
+@FunctionalInterface
+public interface DeviceAvailabilityListener {
+
+    /**
+     * Called on the watcher's refresh thread, so implementations should return quickly.
+     * @param event {@link DeviceAvailabilityEvent}.
+     */
+    void onAvailabilityChanged(DeviceAvailabilityEvent event);
+
+}
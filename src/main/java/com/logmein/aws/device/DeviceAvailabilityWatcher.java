@@ -0,0 +1,247 @@
+package com.logmein.aws.device;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.devicefarm.model.DeviceInstance;
+import com.logmein.aws.utils.DaemonThreadFactory;
+import com.logmein.aws.utils.PollingStrategy;
+
+/**
+ * Single shared watcher of the status of the device instances. While there are listeners, the
+ * watcher refreshes the {@link DeviceCatalog} following a {@link PollingStrategy}, diffs every new
+ * snapshot against the previous one and publishes a {@link DeviceAvailabilityEvent} for every
+ * instance whose status changed. The number of Device Farm calls does not depend on the number of
+ * listeners.
+ */
+public class DeviceAvailabilityWatcher implements AutoCloseable {
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(DeviceAvailabilityWatcher.class);
+
+    /**
+     * {@link DeviceCatalog} being watched.
+     */
+    private final DeviceCatalog catalog;
+
+    /**
+     * Subscription to the catalog snapshots.
+     */
+    private final Consumer<DeviceCatalogSnapshot> snapshotListener = this::onSnapshot;
+
+    /**
+     * Subscribed listeners.
+     */
+    private final List<DeviceAvailabilityListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Status of every instance in the last snapshot, by instance ARN.
+     */
+    private Map<String, String> lastStatus;
+
+    /**
+     * Runs the refresh while there are listeners.
+     */
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            new DaemonThreadFactory("device-availability-watcher"));
+
+    /**
+     * The scheduled refresh, null while there are no listeners.
+     */
+    private ScheduledFuture<?> polling;
+
+    /**
+     * The current wait, null while there are no listeners.
+     */
+    private PollingStrategy.Poll poll;
+
+    /**
+     * {@link PollingStrategy} used for the refreshes while there are listeners.
+     */
+    private PollingStrategy pollingStrategy = PollingStrategy.exponential(1000, 5000);
+
+    /**
+     * Constructor.
+     * @param deviceCatalog {@link DeviceCatalog} to watch.
+     */
+    public DeviceAvailabilityWatcher(DeviceCatalog deviceCatalog) {
+        catalog = deviceCatalog;
+        catalog.addListener(snapshotListener);
+    }
+
+    /**
+     * @param seconds time between refreshes of the catalog while there are listeners.
+     * @return {@link DeviceAvailabilityWatcher}.
+     */
+    public DeviceAvailabilityWatcher pollIntervalInSeconds(long seconds) {
+        return pollingStrategy(PollingStrategy.fixed(TimeUnit.SECONDS.toMillis(seconds)));
+    }
+
+    /**
+     * @param strategy {@link PollingStrategy} used for the refreshes of the catalog while there
+     *            are listeners, restarted every time the first listener subscribes. By default the
+     *            first refresh is after 1 second, then the delay doubles up to 5 seconds.
+     * @return {@link DeviceAvailabilityWatcher}.
+     */
+    public DeviceAvailabilityWatcher pollingStrategy(PollingStrategy strategy) {
+        pollingStrategy = strategy;
+        return this;
+    }
+
+    /**
+     * @param listener {@link DeviceAvailabilityListener} to subscribe.
+     */
+    public void addListener(DeviceAvailabilityListener listener) {
+        listeners.add(listener);
+        updatePolling();
+    }
+
+    /**
+     * @param listener {@link DeviceAvailabilityListener} to unsubscribe.
+     */
+    public void removeListener(DeviceAvailabilityListener listener) {
+        listeners.remove(listener);
+        updatePolling();
+    }
+
+    /**
+     * @return number of subscribed listeners.
+     */
+    public int getListenerCount() {
+        return listeners.size();
+    }
+
+    /**
+     * Get an AVAILABLE instance matching the query, right away if the catalog has one, else as
+     * soon as the watcher sees one become available. Cancelling the future unsubscribes it.
+     * @param query {@link DeviceQuery}.
+     * @return future completed with the instance.
+     */
+    public CompletableFuture<DeviceInstance> whenAvailable(DeviceQuery query) {
+        CompletableFuture<DeviceInstance> future = new CompletableFuture<>();
+        DeviceAvailabilityListener listener = event -> {
+            if (event.isAvailable() && query.matches(event.getDevice(), event.getInstance())) {
+                future.complete(event.getInstance());
+            }
+        };
+        // subscribe before looking at the snapshot, so no transition can be missed in between.
+        addListener(listener);
+        future.whenComplete((instance, th) -> removeListener(listener));
+        try {
+            List<DeviceInstance> available = catalog.getSnapshot().getIndex().findAvailable(query);
+            if (!available.isEmpty()) {
+                future.complete(available.get(0));
+            }
+        } catch (RuntimeException e) {
+            // the watcher keeps trying on its next refresh.
+            logger.warn("Failed to read the device catalog.", e);
+        }
+        return future;
+    }
+
+    /**
+     * Stop watching.
+     */
+    @Override
+    public void close() {
+        catalog.removeListener(snapshotListener);
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * Start or stop the refresh depending on whether there are listeners.
+     */
+    private synchronized void updatePolling() {
+        if (listeners.isEmpty()) {
+            if (polling != null) {
+                polling.cancel(false);
+                polling = null;
+                poll = null;
+            }
+        } else if (polling == null && !scheduler.isShutdown()) {
+            poll = pollingStrategy.start(null);
+            scheduleRefresh(poll);
+        }
+    }
+
+    /**
+     * Schedule the next refresh of the given wait. Must hold the lock.
+     * @param current the wait the refresh belongs to.
+     */
+    private void scheduleRefresh(PollingStrategy.Poll current) {
+        polling = scheduler.schedule(() -> refresh(current), current.nextDelayInMilliseconds(),
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Refresh the catalog, which calls back {@link #onSnapshot(DeviceCatalogSnapshot)}, and
+     * schedule the next refresh unless polling was stopped in the meantime.
+     * @param current the wait the refresh belongs to.
+     */
+    private void refresh(PollingStrategy.Poll current) {
+        try {
+            catalog.refresh();
+        } catch (RuntimeException e) {
+            logger.warn("Failed to refresh the device catalog.", e);
+        }
+        synchronized (this) {
+            if (poll == current && !scheduler.isShutdown()) {
+                scheduleRefresh(current);
+            }
+        }
+    }
+
+    /**
+     * Diff the snapshot against the previous one and publish the changes.
+     * @param snapshot the new {@link DeviceCatalogSnapshot}.
+     */
+    private void onSnapshot(DeviceCatalogSnapshot snapshot) {
+        DeviceIndex index = snapshot.getIndex();
+        Map<String, String> status = new HashMap<>();
+        for (DeviceInstance instance : index.getInstances()) {
+            status.put(instance.getArn(), instance.getStatus());
+        }
+        Map<String, String> previous = lastStatus;
+        lastStatus = status;
+        if (previous == null) {
+            // first snapshot, nothing to compare with.
+            return;
+        }
+        for (DeviceInstance instance : index.getInstances()) {
+            String previousStatus = previous.get(instance.getArn());
+            if (previousStatus != null && previousStatus.equalsIgnoreCase(instance.getStatus())) {
+                continue;
+            }
+            publish(new DeviceAvailabilityEvent(index.getDevice(instance.getArn()), instance,
+                    previousStatus));
+        }
+    }
+
+    /**
+     * @param event {@link DeviceAvailabilityEvent} to publish to every listener.
+     */
+    private void publish(DeviceAvailabilityEvent event) {
+        logger.debug("Device availability changed: {}", event);
+        for (DeviceAvailabilityListener listener : listeners) {
+            try {
+                listener.onAvailabilityChanged(event);
+            } catch (RuntimeException e) {
+                logger.warn("Device availability listener failed.", e);
+            }
+        }
+    }
+
+}
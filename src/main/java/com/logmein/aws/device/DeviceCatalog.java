@@ -0,0 +1,273 @@
+package com.logmein.aws.device;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.amazonaws.services.devicefarm.model.Device;
+import com.amazonaws.services.devicefarm.model.ListDevicesRequest;
+import com.amazonaws.services.devicefarm.model.ListDevicesResult;
+import com.logmein.aws.DeviceFarmException;
+import com.logmein.aws.utils.DaemonThreadFactory;
+
+/**
+ * Cache of the devices available in Device Farm. Devices are fetched following the next token
+ * until every page has been read, and are refreshed in the background every TTL. Readers are
+ * served from an immutable {@link DeviceCatalogSnapshot} and only wait for Device Farm on the
+ * first read or when background refreshes stopped keeping up, i.e. the snapshot is older than
+ * twice the TTL.
+ */
+public class DeviceCatalog implements AutoCloseable {
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(DeviceCatalog.class);
+
+    /**
+     * Fetches a page of devices from Device Farm.
+     */
+    private final Function<ListDevicesRequest, ListDevicesResult> source;
+
+    /**
+     * Guards refreshes, so concurrent readers on a miss share a single fetch.
+     */
+    private final Object refreshLock = new Object();
+
+    /**
+     * Current snapshot, null until the first refresh.
+     */
+    private volatile DeviceCatalogSnapshot snapshot;
+
+    /**
+     * Time between background refreshes.
+     */
+    private Duration ttl = Duration.ofSeconds(60);
+
+    /**
+     * Runs the background refresh, started on the first refresh.
+     */
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Notified of every new snapshot.
+     */
+    private final List<Consumer<DeviceCatalogSnapshot>> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Set once the catalog is closed.
+     */
+    private volatile boolean closed;
+
+    /**
+     * Reads served from the cached snapshot.
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * Reads that had to wait for the devices to be fetched.
+     */
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * Successful refreshes.
+     */
+    private final AtomicLong refreshes = new AtomicLong();
+
+    /**
+     * Failed refreshes.
+     */
+    private final AtomicLong refreshFailures = new AtomicLong();
+
+    /**
+     * Latency of the last successful refresh in milliseconds.
+     */
+    private final AtomicLong lastRefreshMillis = new AtomicLong();
+
+    /**
+     * Highest latency of a successful refresh in milliseconds.
+     */
+    private final AtomicLong maxRefreshMillis = new AtomicLong();
+
+    /**
+     * Sum of the latencies of all successful refreshes in milliseconds.
+     */
+    private final AtomicLong totalRefreshMillis = new AtomicLong();
+
+    /**
+     * Constructor.
+     * @param listDevices fetches a page of devices from Device Farm.
+     */
+    public DeviceCatalog(Function<ListDevicesRequest, ListDevicesResult> listDevices) {
+        source = listDevices;
+    }
+
+    /**
+     * @param seconds time between background refreshes. By default this is 60 seconds. Should be
+     *            set before the catalog is first read.
+     * @return {@link DeviceCatalog}.
+     */
+    public DeviceCatalog ttlInSeconds(long seconds) {
+        ttl = Duration.ofSeconds(seconds);
+        return this;
+    }
+
+    /**
+     * @return the current {@link DeviceCatalogSnapshot}, fetching the devices if there is none yet
+     *         or if it is too old.
+     */
+    public DeviceCatalogSnapshot getSnapshot() {
+        DeviceCatalogSnapshot current = snapshot;
+        if (isFresh(current)) {
+            hits.incrementAndGet();
+            return current;
+        }
+        misses.incrementAndGet();
+        synchronized (refreshLock) {
+            current = snapshot;
+            // another reader may have refreshed while this one was waiting for the lock.
+            if (isFresh(current)) {
+                return current;
+            }
+            return refresh();
+        }
+    }
+
+    /**
+     * Fetch all the devices from Device Farm right away, replacing the current snapshot.
+     * @return the new {@link DeviceCatalogSnapshot}.
+     * @throws DeviceFarmException if the devices could not be fetched.
+     */
+    public DeviceCatalogSnapshot refresh() {
+        synchronized (refreshLock) {
+            DeviceCatalogSnapshot fetched = fetch();
+            for (Consumer<DeviceCatalogSnapshot> listener : listeners) {
+                try {
+                    listener.accept(fetched);
+                } catch (RuntimeException e) {
+                    logger.warn("Device catalog listener failed.", e);
+                }
+            }
+            return fetched;
+        }
+    }
+
+    /**
+     * @param listener notified with every new snapshot, on the thread that refreshed the catalog.
+     *            Listeners are called one snapshot at a time in the order the snapshots were
+     *            fetched, and hold up further refreshes, so they should return quickly.
+     */
+    public void addListener(Consumer<DeviceCatalogSnapshot> listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * @param listener listener to remove.
+     */
+    public void removeListener(Consumer<DeviceCatalogSnapshot> listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return {@link DeviceCatalogStats}.
+     */
+    public DeviceCatalogStats getStats() {
+        return new DeviceCatalogStats(hits.get(), misses.get(), refreshes.get(), refreshFailures
+                .get(), lastRefreshMillis.get(), maxRefreshMillis.get(), totalRefreshMillis.get());
+    }
+
+    /**
+     * Stop the background refresh.
+     */
+    @Override
+    public void close() {
+        synchronized (refreshLock) {
+            closed = true;
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * @param current snapshot to check, may be null.
+     * @return true if the snapshot can be served to readers.
+     */
+    private boolean isFresh(DeviceCatalogSnapshot current) {
+        return current != null && current.getAge().compareTo(ttl.multipliedBy(2)) <= 0;
+    }
+
+    /**
+     * Fetch the devices and make them the current snapshot. Must hold the refresh lock.
+     * @return the fetched {@link DeviceCatalogSnapshot}.
+     */
+    private DeviceCatalogSnapshot fetch() {
+        long start = System.nanoTime();
+        DeviceCatalogSnapshot fetched;
+        try {
+            fetched = new DeviceCatalogSnapshot(fetchAllPages(), Instant.now());
+        } catch (RuntimeException e) {
+            refreshFailures.incrementAndGet();
+            throw new DeviceFarmException("Failed to list the devices.", e);
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        refreshes.incrementAndGet();
+        lastRefreshMillis.set(elapsed);
+        totalRefreshMillis.addAndGet(elapsed);
+        maxRefreshMillis.accumulateAndGet(elapsed, Math::max);
+        logger.debug("Fetched {} devices in {} ms", fetched.getDevices().size(), elapsed);
+
+        snapshot = fetched;
+        startBackgroundRefresh();
+        return fetched;
+    }
+
+    /**
+     * @return devices of every page.
+     */
+    private List<Device> fetchAllPages() {
+        List<Device> devices = new ArrayList<>();
+        String nextToken = null;
+        do {
+            ListDevicesRequest request = new ListDevicesRequest();
+            request.setNextToken(nextToken);
+            ListDevicesResult result = source.apply(request);
+            if (result.getDevices() != null) {
+                devices.addAll(result.getDevices());
+            }
+            nextToken = result.getNextToken();
+        } while (nextToken != null);
+        return devices;
+    }
+
+    /**
+     * Start the background refresh if not already running. Must hold the refresh lock.
+     */
+    private void startBackgroundRefresh() {
+        if (scheduler != null || closed) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory(
+                "device-catalog-refresh"));
+        long interval = ttl.toMillis();
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                refresh();
+            } catch (RuntimeException e) {
+                logger.warn("Background refresh of the device catalog failed.", e);
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+}
@@ -0,0 +1,83 @@
+package com.logmein.aws.device;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.amazonaws.services.devicefarm.model.Device;
+
+/**
+ * Immutable view of all the devices returned by Device Farm at a point in time. Snapshots are
+ * shared between all readers of a {@link DeviceCatalog}, the devices in it must not be modified.
+ */
+public class DeviceCatalogSnapshot {
+
+    /**
+     * The devices.
+     */
+    private final List<Device> devices;
+
+    /**
+     * Time the devices were fetched.
+     */
+    private final Instant fetchedAt;
+
+    /**
+     * {@link DeviceIndex} of the devices.
+     */
+    private final DeviceIndex index;
+
+    /**
+     * Constructor.
+     * @param deviceList the devices.
+     * @param fetchTime time the devices were fetched.
+     */
+    public DeviceCatalogSnapshot(final List<Device> deviceList, final Instant fetchTime) {
+        devices = Collections.unmodifiableList(new ArrayList<>(deviceList));
+        fetchedAt = fetchTime;
+        index = new DeviceIndex(devices);
+    }
+
+    /**
+     * @return all the devices, across every page returned by Device Farm.
+     */
+    public List<Device> getDevices() {
+        return devices;
+    }
+
+    /**
+     * @return {@link DeviceIndex} of the devices, for evaluating {@link DeviceQuery}s.
+     */
+    public DeviceIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @return time the devices were fetched.
+     */
+    public Instant getFetchedAt() {
+        return fetchedAt;
+    }
+
+    /**
+     * @return time elapsed since the devices were fetched.
+     */
+    public Duration getAge() {
+        return Duration.between(fetchedAt, Instant.now());
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("{");
+        str.append("FetchedAt: ");
+        str.append(fetchedAt);
+        str.append(", Devices: ");
+        str.append(devices);
+        str.append("}");
+        return str.toString();
+    }
+
+}
@@ -0,0 +1,139 @@
+package com.logmein.aws.device;
+
+/**
+ * Counters of a {@link DeviceCatalog}, captured at a point in time.
+ */
+public class DeviceCatalogStats {
+
+    /**
+     * Reads served from the cached snapshot.
+     */
+    private final long hits;
+
+    /**
+     * Reads that had to wait for the devices to be fetched.
+     */
+    private final long misses;
+
+    /**
+     * Successful refreshes.
+     */
+    private final long refreshes;
+
+    /**
+     * Failed refreshes.
+     */
+    private final long refreshFailures;
+
+    /**
+     * Latency of the last successful refresh in milliseconds.
+     */
+    private final long lastRefreshMillis;
+
+    /**
+     * Highest latency of a successful refresh in milliseconds.
+     */
+    private final long maxRefreshMillis;
+
+    /**
+     * Sum of the latencies of all successful refreshes in milliseconds.
+     */
+    private final long totalRefreshMillis;
+
+    /**
+     * Constructor.
+     * @param hitCount reads served from the cached snapshot.
+     * @param missCount reads that had to wait for the devices to be fetched.
+     * @param refreshCount successful refreshes.
+     * @param failureCount failed refreshes.
+     * @param lastMillis latency of the last successful refresh in milliseconds.
+     * @param maxMillis highest latency of a successful refresh in milliseconds.
+     * @param totalMillis sum of the latencies of all successful refreshes in milliseconds.
+     */
+    DeviceCatalogStats(final long hitCount, final long missCount, final long refreshCount,
+            final long failureCount, final long lastMillis, final long maxMillis,
+            final long totalMillis) {
+        hits = hitCount;
+        misses = missCount;
+        refreshes = refreshCount;
+        refreshFailures = failureCount;
+        lastRefreshMillis = lastMillis;
+        maxRefreshMillis = maxMillis;
+        totalRefreshMillis = totalMillis;
+    }
+
+    /**
+     * @return reads served from the cached snapshot.
+     */
+    public long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return reads that had to wait for the devices to be fetched.
+     */
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return successful refreshes.
+     */
+    public long getRefreshes() {
+        return refreshes;
+    }
+
+    /**
+     * @return failed refreshes.
+     */
+    public long getRefreshFailures() {
+        return refreshFailures;
+    }
+
+    /**
+     * @return latency of the last successful refresh in milliseconds.
+     */
+    public long getLastRefreshMillis() {
+        return lastRefreshMillis;
+    }
+
+    /**
+     * @return highest latency of a successful refresh in milliseconds.
+     */
+    public long getMaxRefreshMillis() {
+        return maxRefreshMillis;
+    }
+
+    /**
+     * @return average latency of the successful refreshes in milliseconds.
+     */
+    public long getAverageRefreshMillis() {
+        if (refreshes == 0) {
+            return 0;
+        }
+        return totalRefreshMillis / refreshes;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("{");
+        str.append("Hits: ");
+        str.append(hits);
+        str.append(", Misses: ");
+        str.append(misses);
+        str.append(", Refreshes: ");
+        str.append(refreshes);
+        str.append(", RefreshFailures: ");
+        str.append(refreshFailures);
+        str.append(", LastRefreshMillis: ");
+        str.append(lastRefreshMillis);
+        str.append(", MaxRefreshMillis: ");
+        str.append(maxRefreshMillis);
+        str.append(", AverageRefreshMillis: ");
+        str.append(getAverageRefreshMillis());
+        str.append("}");
+        return str.toString();
+    }
+
+}
@@ -0,0 +1,328 @@
+package com.logmein.aws.device;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import com.amazonaws.services.devicefarm.model.Device;
+import com.amazonaws.services.devicefarm.model.DeviceFormFactor;
+import com.amazonaws.services.devicefarm.model.DeviceInstance;
+import com.amazonaws.services.devicefarm.model.DevicePlatform;
+import com.amazonaws.services.devicefarm.model.InstanceStatus;
+
+/**
+ * Immutable index of the device instances of a {@link DeviceCatalogSnapshot}. Every instance gets
+ * a position, and every value of every attribute maps to the bitset of the positions having that
+ * value, so evaluating a {@link DeviceQuery} is an intersection of bitsets instead of a scan over
+ * all the devices.
+ */
+public class DeviceIndex {
+
+    /**
+     * Device of each position.
+     */
+    private final Device[] devices;
+
+    /**
+     * Instance of each position.
+     */
+    private final DeviceInstance[] instances;
+
+    /**
+     * Position of each instance ARN.
+     */
+    private final Map<String, Integer> byArn = new HashMap<>();
+
+    /**
+     * Positions by platform.
+     */
+    private final Map<DevicePlatform, BitSet> byPlatform = new EnumMap<>(DevicePlatform.class);
+
+    /**
+     * Positions by form factor.
+     */
+    private final Map<DeviceFormFactor, BitSet> byFormFactor = new EnumMap<>(
+            DeviceFormFactor.class);
+
+    /**
+     * Positions by instance status.
+     */
+    private final Map<InstanceStatus, BitSet> byStatus = new EnumMap<>(InstanceStatus.class);
+
+    /**
+     * Positions by upper case fleet type.
+     */
+    private final Map<String, BitSet> byFleetType = new HashMap<>();
+
+    /**
+     * Positions by upper case manufacturer.
+     */
+    private final Map<String, BitSet> byManufacturer = new HashMap<>();
+
+    /**
+     * Positions by upper case model.
+     */
+    private final Map<String, BitSet> byModel = new HashMap<>();
+
+    /**
+     * Positions by instance label.
+     */
+    private final Map<String, BitSet> byLabel = new HashMap<>();
+
+    /**
+     * OS versions in version order.
+     */
+    private final NavigableMap<String, BitSet> byOsVersion = new TreeMap<>(
+            DeviceQuery::compareVersions);
+
+    /**
+     * Constructor.
+     * @param deviceList devices to index.
+     */
+    public DeviceIndex(List<Device> deviceList) {
+        List<Device> deviceEntries = new ArrayList<>();
+        List<DeviceInstance> instanceEntries = new ArrayList<>();
+        for (Device device : deviceList) {
+            if (device.getInstances() == null) {
+                continue;
+            }
+            for (DeviceInstance instance : device.getInstances()) {
+                int position = instanceEntries.size();
+                deviceEntries.add(device);
+                instanceEntries.add(instance);
+                index(position, device, instance);
+            }
+        }
+        devices = deviceEntries.toArray(new Device[deviceEntries.size()]);
+        instances = instanceEntries.toArray(new DeviceInstance[instanceEntries.size()]);
+    }
+
+    /**
+     * @return number of indexed instances.
+     */
+    public int size() {
+        return instances.length;
+    }
+
+    /**
+     * @param query {@link DeviceQuery}.
+     * @return every instance matching the query, whatever its status.
+     */
+    public List<DeviceInstance> find(DeviceQuery query) {
+        return toInstances(select(query));
+    }
+
+    /**
+     * @param query {@link DeviceQuery}.
+     * @return the instances matching the query that are AVAILABLE.
+     */
+    public List<DeviceInstance> findAvailable(DeviceQuery query) {
+        BitSet selected = select(query);
+        selected.and(get(byStatus, InstanceStatus.AVAILABLE));
+        return toInstances(selected);
+    }
+
+    /**
+     * @return every indexed instance.
+     */
+    public List<DeviceInstance> getInstances() {
+        return Collections.unmodifiableList(Arrays.asList(instances));
+    }
+
+    /**
+     * @param instanceArn ARN of the instance.
+     * @return the {@link DeviceInstance}, or null if not indexed.
+     */
+    public DeviceInstance getInstance(String instanceArn) {
+        Integer position = byArn.get(instanceArn);
+        if (position == null) {
+            return null;
+        }
+        return instances[position];
+    }
+
+    /**
+     * @param instanceArn ARN of the instance.
+     * @return the {@link Device} the instance belongs to, or null if not indexed.
+     */
+    public Device getDevice(String instanceArn) {
+        Integer position = byArn.get(instanceArn);
+        if (position == null) {
+            return null;
+        }
+        return devices[position];
+    }
+
+    /**
+     * @param query {@link DeviceQuery}.
+     * @return positions of the instances matching the query.
+     */
+    private BitSet select(DeviceQuery query) {
+        BitSet selected = new BitSet(instances.length);
+        selected.set(0, instances.length);
+        if (query.getPlatform() != null) {
+            selected.and(get(byPlatform, query.getPlatform()));
+        }
+        if (query.getFormFactor() != null) {
+            selected.and(get(byFormFactor, query.getFormFactor()));
+        }
+        if (query.getFleetType() != null) {
+            selected.and(get(byFleetType, key(query.getFleetType())));
+        }
+        if (query.getManufacturer() != null) {
+            selected.and(get(byManufacturer, key(query.getManufacturer())));
+        }
+        if (query.getModel() != null) {
+            selected.and(get(byModel, key(query.getModel())));
+        }
+        for (String label : query.getLabels()) {
+            selected.and(get(byLabel, label));
+        }
+        if (query.getMinOsVersion() != null || query.getMaxOsVersion() != null) {
+            selected.and(selectOsRange(query.getMinOsVersion(), query.getMaxOsVersion()));
+        }
+        return selected;
+    }
+
+    /**
+     * @param min lowest version, inclusive, null for no lower bound.
+     * @param max highest version, inclusive, null for no upper bound.
+     * @return positions of the instances whose OS version is in the range.
+     */
+    private BitSet selectOsRange(String min, String max) {
+        NavigableMap<String, BitSet> range = byOsVersion;
+        if (min != null && max != null) {
+            if (DeviceQuery.compareVersions(min, max) > 0) {
+                return new BitSet();
+            }
+            range = range.subMap(min, true, max, true);
+        } else if (min != null) {
+            range = range.tailMap(min, true);
+        } else {
+            range = range.headMap(max, true);
+        }
+        BitSet selected = new BitSet(instances.length);
+        for (BitSet positions : range.values()) {
+            selected.or(positions);
+        }
+        return selected;
+    }
+
+    /**
+     * @param position position of the instance.
+     * @param device {@link Device}.
+     * @param instance {@link DeviceInstance}.
+     */
+    private void index(int position, Device device, DeviceInstance instance) {
+        if (instance.getArn() != null) {
+            byArn.put(instance.getArn(), position);
+        }
+        DevicePlatform platform = toEnum(DevicePlatform.class, device.getPlatform());
+        if (platform != null) {
+            add(byPlatform, platform, position);
+        }
+        DeviceFormFactor formFactor = toEnum(DeviceFormFactor.class, device.getFormFactor());
+        if (formFactor != null) {
+            add(byFormFactor, formFactor, position);
+        }
+        InstanceStatus status = toEnum(InstanceStatus.class, instance.getStatus());
+        if (status != null) {
+            add(byStatus, status, position);
+        }
+        addText(byFleetType, device.getFleetType(), position);
+        addText(byManufacturer, device.getManufacturer(), position);
+        addText(byModel, device.getModel(), position);
+        if (device.getOs() != null) {
+            add(byOsVersion, device.getOs().trim(), position);
+        }
+        if (instance.getLabels() != null) {
+            for (String label : instance.getLabels()) {
+                add(byLabel, label, position);
+            }
+        }
+    }
+
+    /**
+     * @param positions selected positions.
+     * @return the instances at the positions.
+     */
+    private List<DeviceInstance> toInstances(BitSet positions) {
+        if (positions.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<DeviceInstance> selected = new ArrayList<>(positions.cardinality());
+        for (int i = positions.nextSetBit(0); i >= 0; i = positions.nextSetBit(i + 1)) {
+            selected.add(instances[i]);
+        }
+        return selected;
+    }
+
+    /**
+     * @param type enum type.
+     * @param value value returned by Device Farm.
+     * @param <E> enum type.
+     * @return the enum constant, or null if the value is unknown to this version of the SDK.
+     */
+    private static <E extends Enum<E>> E toEnum(Class<E> type, String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return Enum.valueOf(type, key(value));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @param value text value.
+     * @return key used for case insensitive lookups.
+     */
+    private static String key(String value) {
+        return value.trim().toUpperCase(Locale.ROOT);
+    }
+
+    /**
+     * @param index attribute index.
+     * @param value text value, ignored if null.
+     * @param position position of the instance.
+     */
+    private static void addText(Map<String, BitSet> index, String value, int position) {
+        if (value != null) {
+            add(index, key(value), position);
+        }
+    }
+
+    /**
+     * @param index attribute index.
+     * @param value attribute value.
+     * @param position position of the instance.
+     * @param <K> attribute type.
+     */
+    private static <K> void add(Map<K, BitSet> index, K value, int position) {
+        index.computeIfAbsent(value, k -> new BitSet()).set(position);
+    }
+
+    /**
+     * @param index attribute index.
+     * @param value attribute value.
+     * @param <K> attribute type.
+     * @return the positions having the value, empty if none. Must not be modified.
+     */
+    private static <K> BitSet get(Map<K, BitSet> index, K value) {
+        BitSet positions = index.get(value);
+        if (positions == null) {
+            return new BitSet();
+        }
+        return positions;
+    }
+
+}
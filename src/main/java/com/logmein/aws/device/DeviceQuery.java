@@ -0,0 +1,334 @@
+package com.logmein.aws.device;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.amazonaws.services.devicefarm.model.Device;
+import com.amazonaws.services.devicefarm.model.DeviceFormFactor;
+import com.amazonaws.services.devicefarm.model.DeviceInstance;
+import com.amazonaws.services.devicefarm.model.DevicePlatform;
+
+/**
+ * Criteria for selecting device instances. Criteria that are not set match every device, text
+ * criteria are case insensitive. Evaluated against a {@link DeviceIndex}, or one instance at a
+ * time with {@link #matches(Device, DeviceInstance)}.
+ */
+public class DeviceQuery {
+
+    /**
+     * Fleet type of the private devices.
+     */
+    public static final String PRIVATE_FLEET = "PRIVATE";
+
+    /**
+     * Fleet type of the public devices.
+     */
+    public static final String PUBLIC_FLEET = "PUBLIC";
+
+    /**
+     * @return query for private Android phones.
+     */
+    public static DeviceQuery androidPhone() {
+        //@formatter:off
+        return new DeviceQuery()
+                .fleetType(PRIVATE_FLEET)
+                .formFactor(DeviceFormFactor.PHONE)
+                .platform(DevicePlatform.ANDROID);
+        //@formatter:on
+    }
+
+    /**
+     * Compare two dotted version strings numerically, e.g. 8.1.0 &lt; 10. Numeric parts are lower
+     * than text parts, which keeps the order total so it can be used to sort or key a map.
+     * @param first first version.
+     * @param second second version.
+     * @return negative, zero or positive if the first version is lower, equal or higher.
+     */
+    public static int compareVersions(String first, String second) {
+        String[] firstParts = first.trim().split("\\.");
+        String[] secondParts = second.trim().split("\\.");
+        int length = Math.max(firstParts.length, secondParts.length);
+        for (int i = 0; i < length; i++) {
+            String firstPart = i < firstParts.length ? firstParts[i] : "0";
+            String secondPart = i < secondParts.length ? secondParts[i] : "0";
+            int result = compareVersionPart(firstPart, secondPart);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param first first part of a version.
+     * @param second second part of a version.
+     * @return numeric comparison if both are numbers, textual comparison if neither is, else a
+     * number is lower than a text, so that every version string is in a single order.
+     */
+    private static int compareVersionPart(String first, String second) {
+        boolean firstNumeric = isNumeric(first);
+        boolean secondNumeric = isNumeric(second);
+        if (firstNumeric && secondNumeric) {
+            String firstDigits = stripLeadingZeros(first);
+            String secondDigits = stripLeadingZeros(second);
+            if (firstDigits.length() != secondDigits.length()) {
+                return Integer.compare(firstDigits.length(), secondDigits.length());
+            }
+            return firstDigits.compareTo(secondDigits);
+        }
+        if (firstNumeric != secondNumeric) {
+            return firstNumeric ? -1 : 1;
+        }
+        return first.compareToIgnoreCase(second);
+    }
+
+    /**
+     * @param part part of a version.
+     * @return true if the part only has digits, else false.
+     */
+    private static boolean isNumeric(String part) {
+        if (part.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < part.length(); i++) {
+            if (part.charAt(i) < '0' || part.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param digits numeric part of a version.
+     * @return the digits without leading zeros, "0" for zero.
+     */
+    private static String stripLeadingZeros(String digits) {
+        int start = 0;
+        while (start < digits.length() - 1 && digits.charAt(start) == '0') {
+            start++;
+        }
+        return digits.substring(start);
+    }
+
+    /**
+     * Platform, null for any.
+     */
+    private DevicePlatform platform;
+
+    /**
+     * Form factor, null for any.
+     */
+    private DeviceFormFactor formFactor;
+
+    /**
+     * Fleet type, null for any.
+     */
+    private String fleetType;
+
+    /**
+     * Manufacturer, null for any.
+     */
+    private String manufacturer;
+
+    /**
+     * Model, null for any.
+     */
+    private String model;
+
+    /**
+     * Lowest OS version, inclusive, null for no lower bound.
+     */
+    private String minOsVersion;
+
+    /**
+     * Highest OS version, inclusive, null for no upper bound.
+     */
+    private String maxOsVersion;
+
+    /**
+     * Labels every matching instance should have.
+     */
+    private Set<String> labels = new LinkedHashSet<>();
+
+    /**
+     * @param devicePlatform {@link DevicePlatform}.
+     * @return {@link DeviceQuery}.
+     */
+    public DeviceQuery platform(DevicePlatform devicePlatform) {
+        platform = devicePlatform;
+        return this;
+    }
+
+    /**
+     * @param deviceFormFactor {@link DeviceFormFactor}.
+     * @return {@link DeviceQuery}.
+     */
+    public DeviceQuery formFactor(DeviceFormFactor deviceFormFactor) {
+        formFactor = deviceFormFactor;
+        return this;
+    }
+
+    /**
+     * @param type fleet type, {@link #PRIVATE_FLEET} or {@link #PUBLIC_FLEET}.
+     * @return {@link DeviceQuery}.
+     */
+    public DeviceQuery fleetType(String type) {
+        fleetType = type;
+        return this;
+    }
+
+    /**
+     * @param name manufacturer of the device.
+     * @return {@link DeviceQuery}.
+     */
+    public DeviceQuery manufacturer(String name) {
+        manufacturer = name;
+        return this;
+    }
+
+    /**
+     * @param name model of the device.
+     * @return {@link DeviceQuery}.
+     */
+    public DeviceQuery model(String name) {
+        model = name;
+        return this;
+    }
+
+    /**
+     * @param version lowest OS version accepted, inclusive.
+     * @return {@link DeviceQuery}.
+     */
+    public DeviceQuery minOsVersion(String version) {
+        minOsVersion = version;
+        return this;
+    }
+
+    /**
+     * @param version highest OS version accepted, inclusive.
+     * @return {@link DeviceQuery}.
+     */
+    public DeviceQuery maxOsVersion(String version) {
+        maxOsVersion = version;
+        return this;
+    }
+
+    /**
+     * @param label label the instance should have. Can be called several times, the instance
+     *            should then have all the labels.
+     * @return {@link DeviceQuery}.
+     */
+    public DeviceQuery label(String label) {
+        labels.add(label);
+        return this;
+    }
+
+    public DevicePlatform getPlatform() {
+        return platform;
+    }
+
+    public DeviceFormFactor getFormFactor() {
+        return formFactor;
+    }
+
+    public String getFleetType() {
+        return fleetType;
+    }
+
+    public String getManufacturer() {
+        return manufacturer;
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    public String getMinOsVersion() {
+        return minOsVersion;
+    }
+
+    public String getMaxOsVersion() {
+        return maxOsVersion;
+    }
+
+    public Set<String> getLabels() {
+        return Collections.unmodifiableSet(labels);
+    }
+
+    /**
+     * Evaluate the query against a single instance, regardless of its status.
+     * @param device {@link Device}.
+     * @param instance {@link DeviceInstance} of the device.
+     * @return true if the instance matches every criteria set.
+     */
+    public boolean matches(Device device, DeviceInstance instance) {
+        if (platform != null && !platform.toString().equalsIgnoreCase(device.getPlatform())) {
+            return false;
+        }
+        if (formFactor != null && !formFactor.toString().equalsIgnoreCase(device
+                .getFormFactor())) {
+            return false;
+        }
+        if (!matchesText(fleetType, device.getFleetType()) || !matchesText(manufacturer, device
+                .getManufacturer()) || !matchesText(model, device.getModel())) {
+            return false;
+        }
+        if (minOsVersion != null && (device.getOs() == null || compareVersions(device.getOs(),
+                minOsVersion) < 0)) {
+            return false;
+        }
+        if (maxOsVersion != null && (device.getOs() == null || compareVersions(device.getOs(),
+                maxOsVersion) > 0)) {
+            return false;
+        }
+        List<String> instanceLabels = instance.getLabels();
+        return labels.isEmpty() || instanceLabels != null && instanceLabels.containsAll(labels);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("{");
+        appendCriteria(str, "Platform", platform);
+        appendCriteria(str, "FormFactor", formFactor);
+        appendCriteria(str, "FleetType", fleetType);
+        appendCriteria(str, "Manufacturer", manufacturer);
+        appendCriteria(str, "Model", model);
+        appendCriteria(str, "MinOsVersion", minOsVersion);
+        appendCriteria(str, "MaxOsVersion", maxOsVersion);
+        if (!labels.isEmpty()) {
+            appendCriteria(str, "Labels", labels);
+        }
+        str.append("}");
+        return str.toString();
+    }
+
+    /**
+     * @param expected expected value, null to match everything.
+     * @param actual actual value.
+     * @return true if the values match ignoring case.
+     */
+    private boolean matchesText(String expected, String actual) {
+        return expected == null || expected.equalsIgnoreCase(actual);
+    }
+
+    /**
+     * @param str {@link StringBuilder}.
+     * @param name name of the criteria.
+     * @param value value of the criteria, skipped if null.
+     */
+    private void appendCriteria(StringBuilder str, String name, Object value) {
+        if (value == null) {
+            return;
+        }
+        if (str.length() > 1) {
+            str.append(", ");
+        }
+        str.append(name);
+        str.append(": ");
+        str.append(value);
+    }
+
+}
@@ -0,0 +1,91 @@
+package com.logmein.aws.device;
+
+import java.time.Instant;
+
+import com.amazonaws.services.devicefarm.model.DeviceInstance;
+
+/**
+ * A {@link DeviceInstance} handed to exactly one requester by a {@link DeviceAllocator}. The
+ * reservation ends once Device Farm reports the instance as no longer AVAILABLE (a session was
+ * started on it), when it is released, or when it expires.
+ */
+public class DeviceReservation {
+
+    /**
+     * Allocator that made the reservation.
+     */
+    private final DeviceAllocator allocator;
+
+    /**
+     * The reserved instance.
+     */
+    private final DeviceInstance instance;
+
+    /**
+     * Priority of the request.
+     */
+    private final int priority;
+
+    /**
+     * Time the instance was reserved.
+     */
+    private final Instant reservedAt = Instant.now();
+
+    /**
+     * Constructor.
+     * @param deviceAllocator allocator that made the reservation.
+     * @param deviceInstance the reserved instance.
+     * @param requestPriority priority of the request.
+     */
+    DeviceReservation(final DeviceAllocator deviceAllocator, final DeviceInstance deviceInstance,
+            final int requestPriority) {
+        allocator = deviceAllocator;
+        instance = deviceInstance;
+        priority = requestPriority;
+    }
+
+    /**
+     * @return the reserved {@link DeviceInstance}.
+     */
+    public DeviceInstance getInstance() {
+        return instance;
+    }
+
+    /**
+     * @return priority of the request.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @return time the instance was reserved.
+     */
+    public Instant getReservedAt() {
+        return reservedAt;
+    }
+
+    /**
+     * Give the instance back, e.g. because the session could not be created on it. There is no
+     * need to release the instance once a session was created on it, the reservation ends when
+     * Device Farm reports the instance as busy. Calling this more than once has no effect.
+     */
+    public void release() {
+        allocator.release(this);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("{");
+        str.append("Instance: ");
+        str.append(instance.getArn());
+        str.append(", Priority: ");
+        str.append(priority);
+        str.append(", ReservedAt: ");
+        str.append(reservedAt);
+        str.append("}");
+        return str.toString();
+    }
+
+}
@@ -0,0 +1,4 @@
+/**
+ * Classes for finding devices in Device Farm.
+ */
+package com.logmein.aws.device;
@@ -1,11 +1,19 @@
 
 package com.logmein.aws.executor;
 
-import java.time.Instant;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.io.File;
+import java.time.Duration;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.commons.exec.CommandLine;
 import org.apache.commons.exec.DefaultExecuteResultHandler;
@@ -14,10 +22,11 @@
 import org.apache.commons.exec.LogOutputStream;
 import org.apache.commons.exec.PumpStreamHandler;
 import org.apache.commons.exec.ShutdownHookProcessDestroyer;
+import org.apache.commons.lang3.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.logmein.aws.utils.DateTimeUtils;
+import com.logmein.aws.utils.PollingStrategy;
 
 /**
  * Builds on apache's {@link org.apache.commons.exec.Executor} to provide some custom functionality
@@ -26,34 +35,233 @@
  */
 public class Executor {
 
+    /**
+     * Name of the spill file of the output stream.
+     */
+    public static final String OUTPUT_SPILL_FILE = "output.log";
+
+    /**
+     * Name of the spill file of the error stream.
+     */
+    public static final String ERROR_SPILL_FILE = "error.log";
+
+    /**
+     * Max number of lines of each stream in {@link #getCommandAndResultForLogging()}.
+     */
+    public static final int LOGGED_LINES = 100;
+
     /**
      * @author Ashwin.Kusabhadran
      */
     public class StreamCollector extends LogOutputStream {
         /**
-         *
+         * Every line, null if only the recent lines are kept.
+         */
+        private final LineStore lines;
+
+        /**
+         * The recent lines, null if every line is kept.
          */
-        private final List<String> lines = new LinkedList<>();
+        private final LineRing recentLines;
+
+        /**
+         * Receives the lines evicted from the recent lines, may be null.
+         */
+        private final LineSpill spill;
+
+        /**
+         * Whether this is the error stream.
+         */
+        private final boolean error;
+
+        /**
+         * Number of lines read, written by the pump thread only.
+         */
+        private volatile int lineCount;
+
+        /**
+         * Size in bytes of the lines read once encoded in UTF-8, without the line separators.
+         * Written by the pump thread only.
+         */
+        private volatile long byteCount;
+
+        /**
+         * Whether a line that is not blank was read.
+         */
+        private volatile boolean nonBlank;
+
+        /**
+         * Constructor keeping every line.
+         */
+        public StreamCollector() {
+            this(false, 0, null);
+        }
 
         /**
-         * @return the stream as a list of String.
+         * @param errorStream whether this is the error stream.
+         * @param maxLines number of recent lines kept, 0 to keep every line.
+         * @param spillFile file the older lines are moved to, may be null.
+         */
+        StreamCollector(final boolean errorStream, final int maxLines, final LineSpill spillFile) {
+            error = errorStream;
+            if (maxLines > 0) {
+                lines = null;
+                recentLines = new LineRing(maxLines);
+                spill = spillFile;
+            } else {
+                lines = new LineStore();
+                recentLines = null;
+                spill = null;
+            }
+        }
+
+        /**
+         * @return the stream as an immutable list of String, holding the lines read so far. With a
+         *         capture limit, a copy of the recent lines.
          */
         public List<String> getLines() {
-            return lines;
+            if (recentLines != null) {
+                return recentLines.snapshot();
+            }
+            return lines.view();
+        }
+
+        /**
+         * @return number of lines read, including the ones evicted by a capture limit.
+         */
+        public int getLineCount() {
+            return lineCount;
+        }
+
+        /**
+         * @return size in bytes of the lines read once encoded in UTF-8, without the line
+         *         separators. Includes the lines evicted by a capture limit.
+         */
+        public long getByteCount() {
+            return byteCount;
+        }
+
+        /**
+         * @return true if a line that is not blank was read, else false.
+         */
+        public boolean hasNonBlankLine() {
+            return nonBlank;
+        }
+
+        /**
+         * @param pattern pattern to find.
+         * @return true if the pattern is found in one of the lines held, else false.
+         */
+        public boolean contains(final Pattern pattern) {
+            Matcher matcher = pattern.matcher("");
+            if (recentLines != null) {
+                return recentLines.anyMatch(line -> matcher.reset(line).find());
+            }
+            for (String line : lines.view()) {
+                if (matcher.reset(line).find()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @param count max number of lines.
+         * @return immutable list of the last lines held, oldest first.
+         */
+        public List<String> tail(final int count) {
+            if (recentLines != null) {
+                return recentLines.tail(count);
+            }
+            int end = lines.size();
+            return lines.view(Math.max(0, end - Math.max(0, count)), end);
         }
 
         @Override
         protected void processLine(final String line, final int level) {
-            lines.add(line);
+            byteCount += utf8Length(line);
+            if (!nonBlank && StringUtils.isNotBlank(line)) {
+                nonBlank = true;
+            }
+            if (recentLines != null) {
+                String evicted = recentLines.add(line);
+                if (evicted != null && spill != null) {
+                    spill.write(evicted);
+                }
+            } else {
+                lines.add(line);
+            }
+            lineCount++;
+            matchLine(line);
+            publishLine(line, error, lineCount);
+        }
+
+        /**
+         * Flush the spill file, the lines evicted later on are still appended to it.
+         */
+        private void closeSpill() {
+            if (spill != null) {
+                spill.close();
+            }
+        }
+    }
+
+    /**
+     * @param line a line.
+     * @return size in bytes of the line once encoded in UTF-8.
+     */
+    private static int utf8Length(final String line) {
+        int length = line.length();
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c >= 0x800) {
+                if (Character.isHighSurrogate(c)) {
+                    // 4 bytes for the pair, counted as 2 chars.
+                    i++;
+                }
+                length += 2;
+            } else if (c >= 0x80) {
+                length++;
+            }
         }
+        return length;
     }
 
     /**
-     * @param collection the Collection to check
-     * @return true if given collection is null or empty, else false.
+     * A line the caller is waiting for.
      */
-    private static boolean isCollectionEmpty(final Collection<?> collection) {
-        return collection == null || collection.isEmpty();
+    private static class LineMatcher {
+
+        /**
+         * Tests the lines.
+         */
+        private final Predicate<String> predicate;
+
+        /**
+         * Completed with the first matching line.
+         */
+        private final CompletableFuture<String> future = new CompletableFuture<>();
+
+        /**
+         * Whether a line matched, the future may be completed later on.
+         */
+        private final AtomicBoolean matched = new AtomicBoolean();
+
+        /**
+         * @param matcher tests the lines.
+         */
+        LineMatcher(final Predicate<String> matcher) {
+            predicate = matcher;
+        }
+
+        /**
+         * @param line line of the output or error stream.
+         * @return true if this is the first matching line, the caller then completes the future.
+         */
+        boolean match(String line) {
+            return !matched.get() && !future.isDone() && predicate.test(line) && matched
+                    .compareAndSet(false, true);
+        }
     }
 
     /**
@@ -105,6 +313,51 @@ private static boolean isCollectionEmpty(final Collection<?> collection) {
      */
     private Boolean runInBackground;
 
+    /**
+     * {@link PollingStrategy} used while waiting for the streams.
+     */
+    private PollingStrategy pollingStrategy = PollingStrategy.exponential(50, 500);
+
+    /**
+     * Lines the callers are waiting for.
+     */
+    private final List<LineMatcher> lineMatchers = new CopyOnWriteArrayList<>();
+
+    /**
+     * Number of recent lines kept per stream, 0 to keep every line.
+     */
+    private int captureLimit;
+
+    /**
+     * Directory the lines evicted from the recent lines are moved to, null to drop them.
+     */
+    private File spillDirectory;
+
+    /**
+     * Max size of each spill file in bytes.
+     */
+    private long spillMaxBytes;
+
+    /**
+     * Subscriptions to the lines.
+     */
+    private final List<LineSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+    /**
+     * Engine running the process, null to run it with commons-exec.
+     */
+    private ProcessEngine engine;
+
+    /**
+     * The process when run by the {@link #engine}.
+     */
+    private ProcessEngine.Handle handle;
+
+    /**
+     * Completed with the exit value once the process has ended.
+     */
+    private final CompletableFuture<Integer> ended = new CompletableFuture<>();
+
     /**
      * Constructor.
      */
@@ -138,6 +391,15 @@ public Executor commandLine(final CommandLine cmdline) {
     public void execute() {
         try {
             logger.debug("Command line: {}", commandLine);
+            // adding output and error streams.
+            stdOutStream = new StreamCollector(false, captureLimit, spill(OUTPUT_SPILL_FILE));
+            errorStream = new StreamCollector(true, captureLimit, spill(ERROR_SPILL_FILE));
+
+            if (engine != null) {
+                executeOnEngine();
+                return;
+            }
+
             // create a watchdog
             if (timeOutInMilliSeconds > 0) {
                 watchdog = new ExecuteWatchdog(timeOutInMilliSeconds);
@@ -149,22 +411,36 @@ public void execute() {
             ShutdownHookProcessDestroyer processDestroyer = new ShutdownHookProcessDestroyer();
             executor.setProcessDestroyer(processDestroyer);
 
-            // adding output and error streams.
-            stdOutStream = new StreamCollector();
-            errorStream = new StreamCollector();
-
             PumpStreamHandler streamHandler = new PumpStreamHandler(stdOutStream, errorStream);
             executor.setStreamHandler(streamHandler);
 
             if (runInBackground) {
                 logger.debug("Executing command in background as non-blocking task");
-                resultHandler = new DefaultExecuteResultHandler();
+                resultHandler = new DefaultExecuteResultHandler() {
+                    @Override
+                    public void onProcessComplete(final int value) {
+                        super.onProcessComplete(value);
+                        processEnded(value);
+                    }
+
+                    @Override
+                    public void onProcessFailed(
+                            final org.apache.commons.exec.ExecuteException e) {
+                        super.onProcessFailed(e);
+                        processEnded(e.getExitValue());
+                    }
+                };
                 executor.execute(commandLine, resultHandler);
             } else {
                 logger.debug("Executing command as a blocking task.");
-                exitValue = executor.execute(commandLine);
+                try {
+                    exitValue = executor.execute(commandLine);
+                } finally {
+                    processEnded(exitValue);
+                }
             }
         } catch (Exception | AssertionError e) {
+            processEnded(exitValue);
             StringBuilder str = new StringBuilder();
             str.append("Command execution failed. ");
             str.append(getCommandAndResultForLogging());
@@ -172,6 +448,171 @@ public void execute() {
         }
     }
 
+    /**
+     * Start the process on the {@link #engine}, and wait for it to end unless it runs in
+     * background.
+     * @throws Exception if the process cannot be started, or fails when not run in background.
+     */
+    private void executeOnEngine() throws Exception {
+        handle = engine.start(commandLine, stdOutStream, errorStream, timeOutInMilliSeconds);
+        handle.whenEnded().thenAccept(value -> runCallback(() -> processEnded(value)));
+        if (runInBackground) {
+            logger.debug("Executing command in background on the process engine.");
+            return;
+        }
+        logger.debug("Executing command as a blocking task on the process engine.");
+        exitValue = ended.get();
+        if (handle.getFailure() != null) {
+            throw handle.getFailure();
+        }
+    }
+
+    /**
+     * Wait for a line of the output or error stream. Every line is tested once, as soon as it is
+     * read from the process, so waiting does not get slower as the output grows. Lines read before
+     * the call are tested too.
+     * @param matcher tests the lines.
+     * @return future completed with the first matching line, or failed with an
+     *         {@link ExecuteException} if the process ends without printing one.
+     */
+    public CompletableFuture<String> whenLine(final Predicate<String> matcher) {
+        LineMatcher lineMatcher = new LineMatcher(matcher);
+        lineMatchers.add(lineMatcher);
+        lineMatcher.future.whenComplete((line, th) -> lineMatchers.remove(lineMatcher));
+        // lines read before the matcher was added.
+        for (StreamCollector stream : new StreamCollector[] {stdOutStream, errorStream}) {
+            if (stream != null) {
+                for (String line : stream.getLines()) {
+                    if (lineMatcher.match(line)) {
+                        lineMatcher.future.complete(line);
+                    }
+                }
+            }
+        }
+        if (!lineMatcher.future.isDone() && (watchdog != null || handle != null) && !isRunning()) {
+            failLineMatchers();
+        }
+        return lineMatcher.future;
+    }
+
+    /**
+     * Subscribe to the lines of the output and error streams, delivered as they are read. Lines
+     * read before the call are not delivered, so subscribe before {@link #execute()} to get every
+     * line. Up to {@value LineSubscription#DEFAULT_BUFFER_SIZE} lines not requested yet are
+     * buffered, then the oldest ones are dropped.
+     * @param subscriber {@link LineSubscriber}.
+     * @return {@link LineSubscription}, also passed to the subscriber.
+     */
+    public LineSubscription subscribe(final LineSubscriber subscriber) {
+        return subscribe(subscriber, LineSubscription.DEFAULT_BUFFER_SIZE,
+                LineSubscription.OverflowPolicy.DROP_OLDEST);
+    }
+
+    /**
+     * Subscribe to the lines of the output and error streams, delivered as they are read. Lines
+     * read before the call are not delivered, so subscribe before {@link #execute()} to get every
+     * line.
+     * @param subscriber {@link LineSubscriber}.
+     * @param bufferSize max number of lines buffered until the subscriber requests them.
+     * @param policy what to do with a new line when the buffer is full.
+     * @return {@link LineSubscription}, also passed to the subscriber.
+     */
+    public LineSubscription subscribe(final LineSubscriber subscriber, final int bufferSize,
+            final LineSubscription.OverflowPolicy policy) {
+        LineSubscription subscription = new LineSubscription(subscriber, bufferSize, policy,
+                subscriptions::remove);
+        subscriptions.add(subscription);
+        subscriber.onSubscribe(subscription);
+        if (ended.isDone()) {
+            subscription.complete(ended.join());
+        }
+        return subscription;
+    }
+
+    /**
+     * @return future completed with the exit value once the process has ended, whether it
+     *         completed, failed or was stopped.
+     */
+    public CompletableFuture<Integer> whenEnded() {
+        return ended;
+    }
+
+    /**
+     * @param line line read from the output or error stream.
+     */
+    private void matchLine(final String line) {
+        for (LineMatcher lineMatcher : lineMatchers) {
+            if (lineMatcher.match(line)) {
+                runCallback(() -> lineMatcher.future.complete(line));
+            }
+        }
+    }
+
+    /**
+     * Run a completion whose dependents are callers' callbacks. On a {@link ProcessEngine} it runs
+     * on the engine's callback threads, so that a slow callback does not hold up the reading of
+     * the output of every process of the engine.
+     * @param completion the completion.
+     */
+    private void runCallback(final Runnable completion) {
+        if (engine == null) {
+            completion.run();
+            return;
+        }
+        try {
+            engine.getCallbackExecutor().execute(completion);
+        } catch (RejectedExecutionException e) {
+            // the engine is closed.
+            completion.run();
+        }
+    }
+
+    /**
+     * @param line line read from the output or error stream.
+     * @param error whether the line was read from the error stream.
+     * @param number number of the line in its stream.
+     */
+    private void publishLine(final String line, final boolean error, final int number) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        OutputLine outputLine = new OutputLine(line, error, number, System.currentTimeMillis());
+        for (LineSubscription subscription : subscriptions) {
+            subscription.publish(outputLine);
+        }
+    }
+
+    /**
+     * @param value exit value of the process.
+     */
+    private void processEnded(final int value) {
+        failLineMatchers();
+        for (StreamCollector stream : new StreamCollector[] {stdOutStream, errorStream}) {
+            if (stream != null) {
+                stream.closeSpill();
+            }
+        }
+        // before the subscriptions, a subscriber added after the loop completes on subscribe.
+        ended.complete(value);
+        for (LineSubscription subscription : subscriptions) {
+            subscription.complete(value);
+        }
+    }
+
+    /**
+     * Fail the callers still waiting for a line once the process has ended, all its output has
+     * been read by then.
+     */
+    private void failLineMatchers() {
+        for (LineMatcher lineMatcher : lineMatchers) {
+            // a matched line may still be on its way to the future.
+            if (!lineMatcher.matched.get()) {
+                lineMatcher.future.completeExceptionally(new ExecuteException(
+                        "Process ended without printing the expected line.", null));
+            }
+        }
+    }
+
     /**
      * @return the CommandLine along with output stream, error stream and exit code for logging.
      *         This should be called only after the execution is complete.
@@ -183,15 +624,30 @@ public String getCommandAndResultForLogging() {
         ExecutorResult result = getResult();
         if (result != null) {
             strBuilder.append("\nOutputStream: ");
-            strBuilder.append(result.getOutputStream());
+            appendTail(strBuilder, result.getOutputLineCount(), result.getOutputTail(
+                    LOGGED_LINES));
             strBuilder.append("\nErrorStream: ");
-            strBuilder.append(result.getErrorStream());
+            appendTail(strBuilder, result.getErrorLineCount(), result.getErrorTail(LOGGED_LINES));
             strBuilder.append("\nExitCode: ");
             strBuilder.append(result.getExitCode());
         }
         return strBuilder.toString();
     }
 
+    /**
+     * @param strBuilder builder to append to.
+     * @param lineCount number of lines of the stream.
+     * @param tail last lines of the stream.
+     */
+    private static void appendTail(final StringBuilder strBuilder, final int lineCount,
+            final List<String> tail) {
+        if (lineCount > tail.size()) {
+            strBuilder.append("(last ").append(tail.size()).append(" of ").append(lineCount)
+                    .append(" lines) ");
+        }
+        strBuilder.append(tail);
+    }
+
     /**
      * @return {@link org.apache.commons.exec.Executor}.
      */
@@ -212,6 +668,9 @@ public ExecutorResult getResult() {
         if (isRunning()) {
             return result.exitCode(-1);
         }
+        if (handle != null) {
+            return result.exitCode(handle.getExitValue());
+        }
         // for asynchronous execution.
         if (resultHandler != null) {
             return result.exitCode(resultHandler.getExitValue());
@@ -226,6 +685,9 @@ public ExecutorResult getResult() {
      * @return true if the process is still running, otherwise false.
      */
     public boolean isRunning() {
+        if (handle != null) {
+            return !handle.whenEnded().isDone();
+        }
         // watch dog will be created for both asynchronous and synchronous execution.
         if (watchdog == null) {
             return false;
@@ -255,6 +717,10 @@ public Executor runInBackground(final boolean background) {
      * Shutdown the process that was started by the executor.
      */
     public void stop() {
+        if (handle != null) {
+            handle.destroy();
+            return;
+        }
         if (isRunning()) { // do not call destroyProcess() without this check, will deadlock if the
                            // process startup has failed.
             watchdog.destroyProcess();
@@ -265,6 +731,10 @@ public void stop() {
      * Shutdown the process that was started by the executor ignoring all errors and warnings.
      */
     public void stopSilently() {
+        if (handle != null) {
+            handle.destroy();
+            return;
+        }
         if (isRunning()) { // do not call destroyProcess() without this check, will deadlock if the
                            // process startup has failed.
             try {
@@ -275,6 +745,68 @@ public void stopSilently() {
         }
     }
 
+    /**
+     * @param strategy {@link PollingStrategy} used while waiting for the output or error stream. By
+     *            default the streams are checked after 50 milliseconds, then the delay doubles up
+     *            to 0.5 seconds.
+     * @return {@link Executor}.
+     */
+    public Executor pollingStrategy(final PollingStrategy strategy) {
+        pollingStrategy = strategy;
+        return this;
+    }
+
+    /**
+     * Run the process on a {@link ProcessEngine} rather than with commons-exec, which starts
+     * several threads for each process. Use {@link ProcessEngine#getShared()} when running many
+     * long lived processes, like tunnels. The futures of {@link #whenLine(Predicate)} and
+     * {@link #whenEnded()} are then completed on the engine's callback threads, shared by every
+     * process of the engine, so their callbacks should still return quickly.
+     * @param processEngine the engine, null to use commons-exec. By default commons-exec is used.
+     * @return {@link Executor}.
+     */
+    public Executor engine(final ProcessEngine processEngine) {
+        engine = processEngine;
+        return this;
+    }
+
+    /**
+     * Keep only the most recent lines of each stream, so the memory used by a long running process
+     * does not grow with its output.
+     * @param maxLines number of recent lines kept per stream, 0 to keep every line. By default
+     *            every line is kept.
+     * @return {@link Executor}.
+     */
+    public Executor captureLimit(final int maxLines) {
+        captureLimit = maxLines;
+        return this;
+    }
+
+    /**
+     * Move the lines evicted by the {@link #captureLimit(int)} to {@value #OUTPUT_SPILL_FILE} and
+     * {@value #ERROR_SPILL_FILE} in the given directory. Each file is rotated once it reaches the
+     * max size, keeping the previous one with a ".1" suffix.
+     * @param directory directory of the spill files, null to drop the evicted lines.
+     * @param maxBytes max size of each spill file in bytes.
+     * @return {@link Executor}.
+     */
+    public Executor spillTo(final File directory, final long maxBytes) {
+        spillDirectory = directory;
+        spillMaxBytes = maxBytes;
+        return this;
+    }
+
+    /**
+     * @param name name of the spill file.
+     * @return {@link LineSpill} of the file, null if the evicted lines are dropped.
+     */
+    private LineSpill spill(final String name) {
+        if (captureLimit <= 0 || spillDirectory == null) {
+            return null;
+        }
+        return new LineSpill(new File(spillDirectory, name), spillMaxBytes);
+    }
+
     /**
      * @param timeOut max wait time in milliseconds for the executable to complete. If this is set
      *            to a value greater than 0, then the executable process will be shutdown as soon as
@@ -295,6 +827,14 @@ public Executor timeout(final long timeOut) {
      * @throws ExecuteException if process execution has failed.
      */
     public void waitFor() {
+        if (handle != null && runInBackground) {
+            try {
+                waitForEngine(0);
+            } catch (TimeoutException e) {
+                // no timeout.
+            }
+            return;
+        }
         if (resultHandler == null) {
             throw new java.lang.UnsupportedOperationException("Wait for is applicable for "
                     + "Async/run in background calls Only");
@@ -322,6 +862,10 @@ public void waitFor() {
      * @throws ExecuteException if process execution has failed.
      */
     public void waitFor(final long timeoutInMillisec) throws TimeoutException {
+        if (handle != null && runInBackground) {
+            waitForEngine(timeoutInMillisec);
+            return;
+        }
         if (resultHandler == null) {
             throw new java.lang.UnsupportedOperationException("Wait for is applicable for "
                     + "Async/run in background calls Only");
@@ -341,6 +885,33 @@ public void waitFor(final long timeoutInMillisec) throws TimeoutException {
         }
     }
 
+    /**
+     * @param timeoutInMillisec time out value, 0 to wait until the process ends.
+     * @throws TimeoutException if the execution is not complete within given timeout.
+     * @throws ExecuteException if process execution has failed.
+     */
+    private void waitForEngine(final long timeoutInMillisec) throws TimeoutException {
+        try {
+            if (timeoutInMillisec > 0) {
+                ended.get(timeoutInMillisec, TimeUnit.MILLISECONDS);
+            } else {
+                ended.get();
+            }
+        } catch (InterruptedException e) {
+            logger.warn("Interrupted", e);
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            throw new ExecuteException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new TimeoutException("Execution is not complete within given time out of "
+                    + timeoutInMillisec + " milliseconds.");
+        }
+        if (handle.getFailure() != null) {
+            throw handle.getFailure();
+        }
+    }
+
     /**
      * Wait until the output or error stream is not empty.
      * @param waitTimeInMilliseconds max time in milliseconds to wait for either of the streams to
@@ -349,19 +920,19 @@ public void waitFor(final long timeoutInMillisec) throws TimeoutException {
      * @throws IllegalStateException if the execution is not yet started.
      */
     public boolean waitUntilOutputOrErrorStreamIsNotEmpty(final long waitTimeInMilliseconds) {
-        Instant waitUntil = Instant.now().plusMillis(waitTimeInMilliseconds);
-        while (waitUntil.isAfter(Instant.now())) {
+        PollingStrategy.Poll poll = pollingStrategy.start(Duration.ofMillis(
+                waitTimeInMilliseconds));
+        while (poll.hasTimeLeft()) {
 
             if (stdOutStream == null || errorStream == null) {
                 throw new IllegalStateException(
                         "Execution is not yet started. Call excute() method first to start the process.");
             }
 
-            if (!isCollectionEmpty(stdOutStream.getLines()) || !isCollectionEmpty(errorStream
-                    .getLines())) {
+            if (stdOutStream.getLineCount() > 0 || errorStream.getLineCount() > 0) {
                 return true;
             }
-            DateTimeUtils.sleep(500);
+            poll.sleep();
         }
         return false;
     }
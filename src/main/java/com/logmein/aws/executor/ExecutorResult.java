@@ -3,8 +3,7 @@
 
 import java.util.ArrayList;
 import java.util.List;
-
-import org.apache.commons.lang3.StringUtils;
+import java.util.regex.Pattern;
 
 import com.logmein.aws.executor.Executor.StreamCollector;
 
@@ -84,13 +83,7 @@ public List<String> getOutputStream() {
      * @return boolean
      */
     public boolean isErrorStreamEmpty() {
-        String errorStreamString = getErrorStream().toString();
-        if (StringUtils.isBlank(errorStreamString)) {
-            return true;
-        }
-        // remove the starting '[' and the end ']'
-        errorStreamString = errorStreamString.substring(1, errorStreamString.length() - 1);
-        return StringUtils.isBlank(errorStreamString);
+        return errorStream == null || !errorStream.hasNonBlankLine();
     }
 
     /**
@@ -98,13 +91,73 @@ public boolean isErrorStreamEmpty() {
      * @return boolean
      */
     public boolean isOutputStreamEmpty() {
-        String outputStreamString = getOutputStream().toString();
-        if (StringUtils.isBlank(outputStreamString)) {
-            return true;
+        return outputStream == null || !outputStream.hasNonBlankLine();
+    }
+
+    /**
+     * @return number of lines of the output stream.
+     */
+    public int getOutputLineCount() {
+        return outputStream != null ? outputStream.getLineCount() : 0;
+    }
+
+    /**
+     * @return number of lines of the error stream.
+     */
+    public int getErrorLineCount() {
+        return errorStream != null ? errorStream.getLineCount() : 0;
+    }
+
+    /**
+     * @return size in bytes of the output stream in UTF-8, without the line separators.
+     */
+    public long getOutputByteCount() {
+        return outputStream != null ? outputStream.getByteCount() : 0;
+    }
+
+    /**
+     * @return size in bytes of the error stream in UTF-8, without the line separators.
+     */
+    public long getErrorByteCount() {
+        return errorStream != null ? errorStream.getByteCount() : 0;
+    }
+
+    /**
+     * @param pattern pattern to find.
+     * @return true if the pattern is found in a line of the output stream, else false.
+     */
+    public boolean outputContains(final Pattern pattern) {
+        return outputStream != null && outputStream.contains(pattern);
+    }
+
+    /**
+     * @param pattern pattern to find.
+     * @return true if the pattern is found in a line of the error stream, else false.
+     */
+    public boolean errorContains(final Pattern pattern) {
+        return errorStream != null && errorStream.contains(pattern);
+    }
+
+    /**
+     * @param count max number of lines.
+     * @return the last lines of the output stream, oldest first.
+     */
+    public List<String> getOutputTail(final int count) {
+        if (outputStream != null) {
+            return outputStream.tail(count);
         }
-        // remove the starting '[' and the end ']'
-        outputStreamString = outputStreamString.substring(1, outputStreamString.length() - 1);
-        return StringUtils.isBlank(outputStreamString);
+        return new ArrayList<>(0);
+    }
+
+    /**
+     * @param count max number of lines.
+     * @return the last lines of the error stream, oldest first.
+     */
+    public List<String> getErrorTail(final int count) {
+        if (errorStream != null) {
+            return errorStream.tail(count);
+        }
+        return new ArrayList<>(0);
     }
 
     /**
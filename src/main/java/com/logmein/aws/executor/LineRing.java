@@ -0,0 +1,96 @@
+package com.logmein.aws.executor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Fixed size, array backed ring of the most recent lines of a stream. Adding a line to a full
+ * ring evicts the oldest one.
+ */
+class LineRing {
+
+    /**
+     * The lines, {@link #next} is the slot of the next line.
+     */
+    private final String[] lines;
+
+    /**
+     * Slot of the next line.
+     */
+    private int next;
+
+    /**
+     * Number of lines held.
+     */
+    private int size;
+
+    /**
+     * Constructor.
+     * @param capacity max number of lines held.
+     */
+    LineRing(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        lines = new String[capacity];
+    }
+
+    /**
+     * @param line line to add.
+     * @return the evicted line, null if the ring was not full.
+     */
+    synchronized String add(String line) {
+        String evicted = lines[next];
+        lines[next] = line;
+        next = (next + 1) % lines.length;
+        if (size < lines.length) {
+            size++;
+            return null;
+        }
+        return evicted;
+    }
+
+    /**
+     * @return copy of the lines held, oldest first.
+     */
+    synchronized List<String> snapshot() {
+        return tail(size);
+    }
+
+    /**
+     * @param count max number of lines.
+     * @return copy of the last lines held, oldest first.
+     */
+    synchronized List<String> tail(int count) {
+        int length = Math.max(0, Math.min(count, size));
+        List<String> copy = new ArrayList<>(length);
+        int first = (next - length + lines.length) % lines.length;
+        for (int i = 0; i < length; i++) {
+            copy.add(lines[(first + i) % lines.length]);
+        }
+        return copy;
+    }
+
+    /**
+     * @param predicate tests the lines.
+     * @return true if one of the lines held matches, else false.
+     */
+    synchronized boolean anyMatch(Predicate<String> predicate) {
+        int first = (next - size + lines.length) % lines.length;
+        for (int i = 0; i < size; i++) {
+            if (predicate.test(lines[(first + i) % lines.length])) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of lines held.
+     */
+    synchronized int size() {
+        return size;
+    }
+
+}
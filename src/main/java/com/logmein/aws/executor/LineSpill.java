@@ -0,0 +1,122 @@
+package com.logmein.aws.executor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Appends the lines evicted from a {@link LineRing} to a file. Once the file reaches its max size
+ * it is renamed with a ".1" suffix, replacing the previous one, and a new file is started, so at
+ * most twice the max size is kept on disk.
+ */
+class LineSpill implements AutoCloseable {
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(LineSpill.class);
+
+    /**
+     * The file.
+     */
+    private final File file;
+
+    /**
+     * Max size of the file in bytes.
+     */
+    private final long maxBytes;
+
+    /**
+     * Writer of the file, null until the first line or after a rotation.
+     */
+    private Writer writer;
+
+    /**
+     * Bytes written to the current file.
+     */
+    private long written;
+
+    /**
+     * Whether the file was opened already, it is then appended to when reopened after a close.
+     */
+    private boolean opened;
+
+    /**
+     * Whether writing failed, the lines are then dropped.
+     */
+    private boolean failed;
+
+    /**
+     * Constructor.
+     * @param spillFile the file.
+     * @param maxSizeInBytes max size of the file in bytes.
+     */
+    LineSpill(final File spillFile, final long maxSizeInBytes) {
+        file = spillFile;
+        maxBytes = maxSizeInBytes;
+    }
+
+    /**
+     * @param line line to append.
+     */
+    synchronized void write(String line) {
+        if (failed) {
+            return;
+        }
+        try {
+            if (writer != null && written >= maxBytes) {
+                writer.close();
+                writer = null;
+                written = 0;
+                Files.move(file.toPath(), new File(file.getPath() + ".1").toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (writer == null) {
+                writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8,
+                        StandardOpenOption.CREATE, opened ? StandardOpenOption.APPEND
+                                : StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+                if (!opened) {
+                    written = 0;
+                    opened = true;
+                }
+            }
+            writer.write(line);
+            writer.write('\n');
+            // close enough for the rotation, the exact encoded size does not matter.
+            written += line.length() + 1;
+        } catch (IOException e) {
+            logger.warn("Failed to spill output to {}, dropping older lines.", file, e);
+            failed = true;
+        }
+    }
+
+    /**
+     * @return the file.
+     */
+    File getFile() {
+        return file;
+    }
+
+    /**
+     * Flush and close the file.
+     */
+    @Override
+    public synchronized void close() {
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close {}", file, e);
+            }
+            writer = null;
+        }
+    }
+
+}
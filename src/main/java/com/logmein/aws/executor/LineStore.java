@@ -0,0 +1,148 @@
+package com.logmein.aws.executor;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Append-only store of the lines of a stream. The lines are kept in fixed size chunks that are
+ * never moved or modified once a line is published, so readers take a {@link #view()} without
+ * copying or locking, while the pump thread keeps appending.
+ * <p>
+ * A line is published by the volatile write of {@link #size}, after the line and its chunk were
+ * stored. Readers read the size first, everything below it is then visible and immutable.
+ */
+class LineStore {
+
+    /**
+     * Number of lines per chunk, a power of 2.
+     */
+    static final int CHUNK_SIZE = 256;
+
+    /**
+     * Shift from a line index to its chunk index.
+     */
+    private static final int CHUNK_SHIFT = Integer.numberOfTrailingZeros(CHUNK_SIZE);
+
+    /**
+     * Mask from a line index to its index in the chunk.
+     */
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * Immutable view of a range of the lines.
+     */
+    final class View extends AbstractList<String> implements RandomAccess {
+
+        /**
+         * Chunks of the store when the view was taken.
+         */
+        private final String[][] viewChunks;
+
+        /**
+         * Index of the first line, inclusive.
+         */
+        private final int from;
+
+        /**
+         * Index of the last line, exclusive.
+         */
+        private final int to;
+
+        /**
+         * @param directory chunks of the store.
+         * @param fromIndex index of the first line, inclusive.
+         * @param toIndex index of the last line, exclusive.
+         */
+        View(final String[][] directory, final int fromIndex, final int toIndex) {
+            viewChunks = directory;
+            from = fromIndex;
+            to = toIndex;
+        }
+
+        @Override
+        public String get(int index) {
+            if (index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size());
+            }
+            int line = from + index;
+            return viewChunks[line >>> CHUNK_SHIFT][line & CHUNK_MASK];
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+
+        @Override
+        public List<String> subList(int fromIndex, int toIndex) {
+            if (fromIndex < 0 || toIndex > size() || fromIndex > toIndex) {
+                throw new IndexOutOfBoundsException("Range: " + fromIndex + "-" + toIndex
+                        + ", Size: " + size());
+            }
+            return new View(viewChunks, from + fromIndex, from + toIndex);
+        }
+    }
+
+    /**
+     * The chunks, replaced by a larger copy when full. Written by the writer only.
+     */
+    private volatile String[][] chunks = new String[4][];
+
+    /**
+     * Number of lines published.
+     */
+    private volatile int size;
+
+    /**
+     * @param line line to append.
+     */
+    synchronized void add(String line) {
+        int index = size;
+        int chunk = index >>> CHUNK_SHIFT;
+        String[][] directory = chunks;
+        if (chunk == directory.length) {
+            String[][] larger = new String[directory.length * 2][];
+            System.arraycopy(directory, 0, larger, 0, directory.length);
+            directory = larger;
+            chunks = directory;
+        }
+        if (directory[chunk] == null) {
+            directory[chunk] = new String[CHUNK_SIZE];
+        }
+        directory[chunk][index & CHUNK_MASK] = line;
+        // publishes the line, and the chunk it was stored in.
+        size = index + 1;
+    }
+
+    /**
+     * @return number of lines.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return immutable view of the lines appended so far.
+     */
+    List<String> view() {
+        int end = size;
+        return new View(chunks, 0, end);
+    }
+
+    /**
+     * @param fromIndex index of the first line, inclusive.
+     * @param toIndex index of the last line, exclusive.
+     * @return immutable view of the range.
+     * @throws IndexOutOfBoundsException if the range is not within the lines appended so far.
+     */
+    List<String> view(int fromIndex, int toIndex) {
+        int end = size;
+        if (fromIndex < 0 || toIndex > end || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException("Range: " + fromIndex + "-" + toIndex + ", Size: "
+                    + end);
+        }
+        return new View(chunks, fromIndex, toIndex);
+    }
+
+}
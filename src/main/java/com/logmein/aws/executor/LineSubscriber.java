@@ -0,0 +1,29 @@
+package com.logmein.aws.executor;
+
+/**
+ * Receives the lines of a process as they are read, see {@link Executor#subscribe(LineSubscriber)}.
+ * Lines are only delivered once requested through {@link LineSubscription#request(long)}, one
+ * call at a time and in order, on a thread of the library. Implementations should return quickly.
+ */
+public interface LineSubscriber {
+
+    /**
+     * Called once, before any line. Nothing is delivered until lines are requested.
+     * @param subscription {@link LineSubscription} used to request lines or cancel.
+     */
+    void onSubscribe(LineSubscription subscription);
+
+    /**
+     * @param line the next line of the output or error stream.
+     */
+    void onLine(OutputLine line);
+
+    /**
+     * Called once the process has ended and every buffered line was delivered, unless the
+     * subscription was cancelled.
+     * @param exitValue exit value of the process.
+     */
+    default void onComplete(int exitValue) {
+    }
+
+}
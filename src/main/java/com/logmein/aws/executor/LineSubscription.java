@@ -0,0 +1,288 @@
+package com.logmein.aws.executor;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logmein.aws.utils.DaemonThreadFactory;
+
+/**
+ * Subscription of a {@link LineSubscriber} to the lines of an {@link Executor}. Lines are buffered
+ * until the subscriber requests them, the {@link OverflowPolicy} decides what happens when the
+ * buffer is full. Lines are delivered on a small shared pool of daemon threads, never on the
+ * thread reading the process output. Each subscription is delivered by one thread at a time, so
+ * its lines arrive in order.
+ */
+public final class LineSubscription {
+
+    /**
+     * What to do with a new line when the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Drop the oldest buffered line to make room.
+         */
+        DROP_OLDEST,
+        /**
+         * Drop the new line.
+         */
+        DROP_NEWEST,
+        /**
+         * Wait for the subscriber to take a line, which holds up the reading of the process
+         * output. With a {@link ProcessEngine} it holds up the output of every process of the
+         * engine.
+         */
+        BLOCK
+    }
+
+    /**
+     * Default number of lines buffered.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    /**
+     * Number of threads delivering the lines of every subscription.
+     */
+    private static final int DELIVERY_THREADS = 4;
+
+    /**
+     * Delivers the lines of every subscription, with the same threads however many there are.
+     */
+    private static final ExecutorService DELIVERY = Executors.newFixedThreadPool(DELIVERY_THREADS,
+            new DaemonThreadFactory("line-subscription"));
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(LineSubscription.class);
+
+    /**
+     * The subscriber.
+     */
+    private final LineSubscriber subscriber;
+
+    /**
+     * Max number of lines buffered.
+     */
+    private final int bufferSize;
+
+    /**
+     * What to do with a new line when the buffer is full.
+     */
+    private final OverflowPolicy overflowPolicy;
+
+    /**
+     * Called once cancelled.
+     */
+    private final Consumer<LineSubscription> onCancel;
+
+    /**
+     * Lines not delivered yet, guarded by this.
+     */
+    private final Deque<OutputLine> buffer = new ArrayDeque<>();
+
+    /**
+     * Number of lines requested and not delivered yet, guarded by this.
+     */
+    private long demand;
+
+    /**
+     * Number of lines dropped, guarded by this.
+     */
+    private long dropped;
+
+    /**
+     * Whether a delivery task is scheduled or running, guarded by this.
+     */
+    private boolean delivering;
+
+    /**
+     * Whether the process has ended, guarded by this.
+     */
+    private boolean ended;
+
+    /**
+     * Exit value of the process, valid once it has ended.
+     */
+    private int exitValue;
+
+    /**
+     * Whether the subscriber was told about the end of the process, guarded by this.
+     */
+    private boolean completed;
+
+    /**
+     * Whether the subscription was cancelled.
+     */
+    private volatile boolean cancelled;
+
+    /**
+     * Constructor.
+     * @param lineSubscriber the subscriber.
+     * @param maxBufferedLines max number of lines buffered.
+     * @param policy what to do with a new line when the buffer is full.
+     * @param cancelAction called once cancelled.
+     */
+    LineSubscription(final LineSubscriber lineSubscriber, final int maxBufferedLines,
+            final OverflowPolicy policy, final Consumer<LineSubscription> cancelAction) {
+        if (maxBufferedLines <= 0) {
+            throw new IllegalArgumentException("Buffer size must be positive: "
+                    + maxBufferedLines);
+        }
+        subscriber = lineSubscriber;
+        bufferSize = maxBufferedLines;
+        overflowPolicy = policy;
+        onCancel = cancelAction;
+    }
+
+    /**
+     * Request more lines.
+     * @param count number of lines, {@link Long#MAX_VALUE} for every line.
+     * @throws IllegalArgumentException if the count is not positive.
+     */
+    public void request(final long count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Requested lines must be positive: " + count);
+        }
+        synchronized (this) {
+            demand = demand + count < 0 ? Long.MAX_VALUE : demand + count;
+        }
+        deliver();
+    }
+
+    /**
+     * Stop the delivery of lines, the buffered lines are discarded.
+     */
+    public void cancel() {
+        cancelled = true;
+        synchronized (this) {
+            buffer.clear();
+            notifyAll();
+        }
+        onCancel.accept(this);
+    }
+
+    /**
+     * @return true if the subscription was cancelled, else false.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * @return number of lines dropped because the buffer was full.
+     */
+    public synchronized long getDroppedCount() {
+        return dropped;
+    }
+
+    /**
+     * @param line line read from the process.
+     */
+    void publish(final OutputLine line) {
+        synchronized (this) {
+            if (cancelled || ended) {
+                return;
+            }
+            if (buffer.size() >= bufferSize) {
+                switch (overflowPolicy) {
+                case DROP_OLDEST:
+                    buffer.poll();
+                    dropped++;
+                    break;
+                case DROP_NEWEST:
+                    dropped++;
+                    return;
+                default:
+                    try {
+                        while (buffer.size() >= bufferSize && !cancelled) {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        dropped++;
+                        return;
+                    }
+                    if (cancelled) {
+                        return;
+                    }
+                    break;
+                }
+            }
+            buffer.add(line);
+        }
+        deliver();
+    }
+
+    /**
+     * @param value exit value of the process.
+     */
+    void complete(final int value) {
+        synchronized (this) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            exitValue = value;
+        }
+        deliver();
+    }
+
+    /**
+     * Schedule the delivery of the buffered lines, unless it is already scheduled or there is
+     * nothing to deliver.
+     */
+    private void deliver() {
+        synchronized (this) {
+            if (delivering || cancelled || !(demand > 0 && !buffer.isEmpty() || ended && buffer
+                    .isEmpty() && !completed)) {
+                return;
+            }
+            delivering = true;
+        }
+        DELIVERY.execute(this::drain);
+    }
+
+    /**
+     * Deliver the requested lines, and the end of the process once every line was delivered.
+     */
+    private void drain() {
+        while (true) {
+            OutputLine line = null;
+            synchronized (this) {
+                if (cancelled) {
+                    delivering = false;
+                    return;
+                }
+                if (demand > 0 && !buffer.isEmpty()) {
+                    line = buffer.poll();
+                    if (demand != Long.MAX_VALUE) {
+                        demand--;
+                    }
+                    notifyAll();
+                } else if (ended && buffer.isEmpty() && !completed) {
+                    completed = true;
+                } else {
+                    delivering = false;
+                    return;
+                }
+            }
+            try {
+                if (line != null) {
+                    subscriber.onLine(line);
+                } else {
+                    subscriber.onComplete(exitValue);
+                }
+            } catch (RuntimeException e) {
+                logger.warn("Line subscriber failed, cancelling its subscription.", e);
+                cancel();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,87 @@
+package com.logmein.aws.executor;
+
+/**
+ * A line of the output or error stream of a process, as delivered to a {@link LineSubscriber}.
+ */
+public class OutputLine {
+
+    /**
+     * The line.
+     */
+    private final String text;
+
+    /**
+     * Whether the line was read from the error stream.
+     */
+    private final boolean error;
+
+    /**
+     * Number of the line in its stream, from 1.
+     */
+    private final int number;
+
+    /**
+     * Time the line was read, in milliseconds since the epoch.
+     */
+    private final long timestamp;
+
+    /**
+     * Constructor.
+     * @param line the line.
+     * @param fromError whether the line was read from the error stream.
+     * @param lineNumber number of the line in its stream, from 1.
+     * @param readAt time the line was read, in milliseconds since the epoch.
+     */
+    OutputLine(final String line, final boolean fromError, final int lineNumber,
+            final long readAt) {
+        text = line;
+        error = fromError;
+        number = lineNumber;
+        timestamp = readAt;
+    }
+
+    /**
+     * @return the line.
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return true if the line was read from the error stream, false if from the output stream.
+     */
+    public boolean isError() {
+        return error;
+    }
+
+    /**
+     * @return number of the line in its stream, from 1.
+     */
+    public int getNumber() {
+        return number;
+    }
+
+    /**
+     * @return time the line was read, in milliseconds since the epoch.
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("{");
+        str.append("Text: ");
+        str.append(text);
+        str.append(", Error: ");
+        str.append(error);
+        str.append(", Number: ");
+        str.append(number);
+        str.append(", Timestamp: ");
+        str.append(timestamp);
+        str.append("}");
+        return str.toString();
+    }
+
+}
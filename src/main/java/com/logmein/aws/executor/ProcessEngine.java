@@ -0,0 +1,431 @@
+package com.logmein.aws.executor;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.exec.CommandLine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.logmein.aws.utils.DaemonThreadFactory;
+
+/**
+ * Runs processes for {@link Executor}s on two shared threads, instead of the pump, watchdog and
+ * result handler threads commons-exec starts for each process. A reader thread reads what is
+ * available on the pipes of every process without blocking, and a reaper thread notices the
+ * processes that exited and stops the ones that timed out. The number of threads stays the same
+ * however many processes are running.
+ * <p>
+ * The output of a process is read within {@value #READ_INTERVAL_IN_MILLISECONDS} milliseconds of
+ * being written, and its end noticed within {@value #REAP_INTERVAL_IN_MILLISECONDS} milliseconds.
+ * The callers' callbacks, on a matched line or the end of a process, run on
+ * {@value #CALLBACK_THREADS} separate callback threads, so they never hold up the reader.
+ */
+public class ProcessEngine implements AutoCloseable {
+
+    /**
+     * Delay between two reads of the pipes when no output was available.
+     */
+    public static final long READ_INTERVAL_IN_MILLISECONDS = 10;
+
+    /**
+     * Delay between two checks of the processes.
+     */
+    public static final long REAP_INTERVAL_IN_MILLISECONDS = 100;
+
+    /**
+     * Max time {@link #close()} waits for the threads and the stopped processes.
+     */
+    public static final long CLOSE_TIMEOUT_IN_MILLISECONDS = 1000;
+
+    /**
+     * Number of threads running the callbacks of the processes.
+     */
+    public static final int CALLBACK_THREADS = 2;
+
+    /**
+     * Max number of reads of the pipes in a row while output is available, before giving the
+     * other tasks a chance.
+     */
+    private static final int MAX_READS_IN_A_ROW = 64;
+
+    /**
+     * Size of the read buffer.
+     */
+    private static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * The engine shared by default, created on first use.
+     */
+    private static ProcessEngine shared;
+
+    /**
+     * @return the engine shared by the {@link Executor}s of the JVM, a new one if it was closed.
+     */
+    public static synchronized ProcessEngine getShared() {
+        if (shared == null || shared.isClosed()) {
+            shared = new ProcessEngine();
+        }
+        return shared;
+    }
+
+    /**
+     * A process run by the engine.
+     */
+    static final class Handle {
+
+        /**
+         * The process.
+         */
+        private final Process process;
+
+        /**
+         * Output stream of the process.
+         */
+        private final InputStream stdOut;
+
+        /**
+         * Error stream of the process.
+         */
+        private final InputStream stdErr;
+
+        /**
+         * Receives the output stream.
+         */
+        private final OutputStream outCollector;
+
+        /**
+         * Receives the error stream.
+         */
+        private final OutputStream errCollector;
+
+        /**
+         * Time the process is stopped at, in nanoseconds of {@link System#nanoTime()}, 0 for
+         * never.
+         */
+        private final long deadline;
+
+        /**
+         * Whether the reaper noticed the process exited.
+         */
+        private volatile boolean exited;
+
+        /**
+         * Whether the process was stopped because it timed out.
+         */
+        private volatile boolean timedOut;
+
+        /**
+         * Exit value, valid once the process exited.
+         */
+        private volatile int exitValue = -1;
+
+        /**
+         * Completed with the exit value once the process exited and its output was read.
+         */
+        private final CompletableFuture<Integer> ended = new CompletableFuture<>();
+
+        /**
+         * @param started the process.
+         * @param out receives the output stream.
+         * @param err receives the error stream.
+         * @param timeoutInMilliseconds max run time, 0 for none.
+         */
+        Handle(final Process started, final OutputStream out, final OutputStream err,
+                final long timeoutInMilliseconds) {
+            process = started;
+            stdOut = started.getInputStream();
+            stdErr = started.getErrorStream();
+            outCollector = out;
+            errCollector = err;
+            deadline = timeoutInMilliseconds > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS
+                    .toNanos(timeoutInMilliseconds) : 0;
+        }
+
+        /**
+         * @return future completed with the exit value once the process exited and all its output
+         *         was read.
+         */
+        CompletableFuture<Integer> whenEnded() {
+            return ended;
+        }
+
+        /**
+         * @return exit value, -1 while the process is running.
+         */
+        int getExitValue() {
+            return exitValue;
+        }
+
+        /**
+         * @return {@link ExecuteException} if the process timed out or exited with an error, else
+         *         null.
+         */
+        ExecuteException getFailure() {
+            if (!ended.isDone()) {
+                return null;
+            }
+            if (timedOut) {
+                return new ExecuteException("Process timed out and was stopped, exit value: "
+                        + exitValue, null);
+            }
+            if (exitValue != 0) {
+                return new ExecuteException("Process exited with an error: " + exitValue, null);
+            }
+            return null;
+        }
+
+        /**
+         * Stop the process, its end is reported by the reaper.
+         */
+        void destroy() {
+            process.destroy();
+        }
+    }
+
+    /**
+     * Logger.
+     */
+    private Logger logger = LoggerFactory.getLogger(ProcessEngine.class);
+
+    /**
+     * Runs the reader and the reaper.
+     */
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Runs the callbacks of the processes.
+     */
+    private final ExecutorService callbacks = Executors.newFixedThreadPool(CALLBACK_THREADS,
+            new DaemonThreadFactory("process-engine-callback"));
+
+    /**
+     * Processes not ended yet.
+     */
+    private final Set<Handle> handles = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Buffer of the reader thread.
+     */
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    /**
+     * Whether the shutdown hook is registered.
+     */
+    private boolean shutdownHookAdded;
+
+    /**
+     * Constructor, starts the reader and reaper threads.
+     */
+    public ProcessEngine() {
+        ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(2,
+                new DaemonThreadFactory("process-engine"));
+        pool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        scheduler = pool;
+        scheduler.scheduleWithFixedDelay(this::read, READ_INTERVAL_IN_MILLISECONDS,
+                READ_INTERVAL_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+        scheduler.scheduleWithFixedDelay(this::reap, REAP_INTERVAL_IN_MILLISECONDS,
+                REAP_INTERVAL_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Start a process.
+     * @param commandLine the command.
+     * @param out receives the output stream.
+     * @param err receives the error stream.
+     * @param timeoutInMilliseconds max run time, 0 for none.
+     * @return {@link Handle} of the process.
+     * @throws IOException if the process cannot be started.
+     */
+    Handle start(final CommandLine commandLine, final OutputStream out, final OutputStream err,
+            final long timeoutInMilliseconds) throws IOException {
+        if (scheduler.isShutdown()) {
+            throw new IllegalStateException("The process engine is closed.");
+        }
+        addShutdownHook();
+        Process process = new ProcessBuilder(commandLine.toStrings()).start();
+        // nothing is written to the process, like with commons-exec.
+        process.getOutputStream().close();
+        Handle handle = new Handle(process, out, err, timeoutInMilliseconds);
+        handles.add(handle);
+        return handle;
+    }
+
+    /**
+     * @return executor running the callbacks of the processes.
+     */
+    ExecutorService getCallbackExecutor() {
+        return callbacks;
+    }
+
+    /**
+     * @return number of processes not ended yet.
+     */
+    public int getProcessCount() {
+        return handles.size();
+    }
+
+    /**
+     * @return true once the engine is closed, it cannot start processes any more.
+     */
+    public boolean isClosed() {
+        return scheduler.isShutdown();
+    }
+
+    /**
+     * Stop the threads of the engine and the processes still running. The processes are reported
+     * as ended, with the exit value they had within {@value #CLOSE_TIMEOUT_IN_MILLISECONDS}
+     * milliseconds or -1, so that nobody waits for them.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdownNow();
+        destroyAll();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(
+                CLOSE_TIMEOUT_IN_MILLISECONDS);
+        try {
+            scheduler.awaitTermination(CLOSE_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+            // nothing reads or reaps any more, end the remaining processes here.
+            for (Handle handle : new ArrayList<>(handles)) {
+                if (handle.process.waitFor(Math.max(0, deadline - System.nanoTime()),
+                        TimeUnit.NANOSECONDS)) {
+                    handle.exitValue = handle.process.exitValue();
+                }
+                handle.exited = true;
+                end(handle);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Handle handle : new ArrayList<>(handles)) {
+                handle.exited = true;
+                end(handle);
+            }
+            callbacks.shutdown();
+        }
+    }
+
+    /**
+     * Read the available output of every process, then report the processes that exited and have
+     * no more output.
+     */
+    private void read() {
+        try {
+            boolean progress = true;
+            for (int i = 0; progress && i < MAX_READS_IN_A_ROW; i++) {
+                progress = false;
+                for (Handle handle : handles) {
+                    // read before the pipes, the output is all available once the process exited.
+                    boolean exited = handle.exited;
+                    int read = read(handle.stdOut, handle.outCollector) + read(handle.stdErr,
+                            handle.errCollector);
+                    if (read > 0) {
+                        progress = true;
+                    } else if (exited) {
+                        end(handle);
+                    }
+                }
+            }
+        } catch (RuntimeException e) {
+            // an exception would cancel the task.
+            logger.warn("Failed to read the output of the processes.", e);
+        }
+    }
+
+    /**
+     * @param in pipe of the process.
+     * @param collector receives the output.
+     * @return number of bytes read.
+     */
+    private int read(final InputStream in, final OutputStream collector) {
+        try {
+            int available = in.available();
+            if (available <= 0) {
+                return 0;
+            }
+            int read = in.read(buffer, 0, Math.min(available, buffer.length));
+            if (read > 0) {
+                collector.write(buffer, 0, read);
+            }
+            return Math.max(read, 0);
+        } catch (IOException e) {
+            logger.debug("Failed to read the output of a process.", e);
+            return 0;
+        }
+    }
+
+    /**
+     * @param handle process that exited and has no more output.
+     */
+    private void end(final Handle handle) {
+        if (!handles.remove(handle)) {
+            return;
+        }
+        for (Closeable stream : new Closeable[] {handle.outCollector, handle.errCollector,
+                handle.stdOut, handle.stdErr}) {
+            try {
+                // flushes the last line if it has no line separator.
+                stream.close();
+            } catch (IOException e) {
+                logger.debug("Failed to close a stream of a process.", e);
+            }
+        }
+        handle.ended.complete(handle.exitValue);
+    }
+
+    /**
+     * Notice the processes that exited, and stop the ones that timed out.
+     */
+    private void reap() {
+        try {
+            long now = System.nanoTime();
+            for (Handle handle : handles) {
+                if (handle.exited) {
+                    continue;
+                }
+                if (!handle.process.isAlive()) {
+                    handle.exitValue = handle.process.exitValue();
+                    handle.exited = true;
+                } else if (handle.deadline != 0 && now - handle.deadline > 0 && !handle.timedOut) {
+                    logger.debug("Process timed out, stopping it.");
+                    handle.timedOut = true;
+                    handle.destroy();
+                }
+            }
+        } catch (RuntimeException e) {
+            logger.warn("Failed to check the processes.", e);
+        }
+    }
+
+    /**
+     * Stop the processes still running.
+     */
+    private void destroyAll() {
+        for (Handle handle : new ArrayList<>(handles)) {
+            handle.destroy();
+        }
+    }
+
+    /**
+     * Register the shutdown hook stopping the processes still running, once.
+     */
+    private synchronized void addShutdownHook() {
+        if (!shutdownHookAdded) {
+            Runtime.getRuntime().addShutdownHook(new Thread(this::destroyAll,
+                    "process-engine-shutdown"));
+            shutdownHookAdded = true;
+        }
+    }
+
+}
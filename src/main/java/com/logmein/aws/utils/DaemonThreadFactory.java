@@ -0,0 +1,37 @@
+package com.logmein.aws.utils;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link ThreadFactory} creating named daemon threads, so background work started by the library
+ * never keeps the JVM alive.
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+    /**
+     * Prefix used for the thread names.
+     */
+    private final String namePrefix;
+
+    /**
+     * Counter used for numbering the threads.
+     */
+    private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+    /**
+     * Constructor.
+     * @param prefix prefix of the names of the threads created by this factory.
+     */
+    public DaemonThreadFactory(final String prefix) {
+        namePrefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(final Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + "-" + threadNumber.getAndIncrement());
+        thread.setDaemon(true);
+        return thread;
+    }
+
+}
@@ -0,0 +1,239 @@
+package com.logmein.aws.utils;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * How often a condition is checked while waiting for it. The first checks are made quickly, the
+ * delay between checks then grows by a multiplier up to a cap, and every delay is randomised by a
+ * jitter so that many waiters started together do not all call the service at the same moment.
+ * <p>
+ * A strategy only holds the configuration and can be shared, every wait starts its own
+ * {@link Poll}:
+ * <pre>
+ * PollingStrategy.Poll poll = strategy.start(Duration.ofSeconds(30));
+ * while (poll.hasTimeLeft()) {
+ *     if (isDone()) {
+ *         return;
+ *     }
+ *     poll.sleep();
+ * }
+ * </pre>
+ */
+public class PollingStrategy {
+
+    /**
+     * State of a single wait.
+     */
+    public static class Poll {
+
+        /**
+         * Configuration of the wait.
+         */
+        private final PollingStrategy strategy;
+
+        /**
+         * Time after which the wait is over, null for no deadline.
+         */
+        private final Instant deadline;
+
+        /**
+         * Delay before the next check, without jitter.
+         */
+        private double delay;
+
+        /**
+         * Number of completed sleeps.
+         */
+        private int attempts;
+
+        /**
+         * Set once the waiting thread has been interrupted.
+         */
+        private boolean interrupted;
+
+        /**
+         * Constructor.
+         * @param pollingStrategy configuration of the wait.
+         * @param timeout max time to wait, null for no deadline.
+         */
+        Poll(final PollingStrategy pollingStrategy, final Duration timeout) {
+            strategy = pollingStrategy;
+            deadline = timeout == null ? null : Instant.now().plus(timeout);
+            delay = pollingStrategy.initialDelay;
+        }
+
+        /**
+         * @return true while the deadline has not passed and the thread was not interrupted.
+         */
+        public boolean hasTimeLeft() {
+            return !interrupted && (deadline == null || deadline.isAfter(Instant.now()));
+        }
+
+        /**
+         * @return time left until the deadline, or null if there is no deadline.
+         */
+        public Duration getTimeLeft() {
+            if (deadline == null) {
+                return null;
+            }
+            Duration left = Duration.between(Instant.now(), deadline);
+            return left.isNegative() ? Duration.ZERO : left;
+        }
+
+        /**
+         * @return number of times the poll has slept so far.
+         */
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /**
+         * Compute the delay before the next check and advance the backoff. The delay never goes
+         * past the deadline.
+         * @return delay in milliseconds.
+         */
+        public long nextDelayInMilliseconds() {
+            double jitter = strategy.jitter;
+            double randomised = delay;
+            if (jitter > 0) {
+                randomised = delay * (1 - jitter + 2 * jitter * ThreadLocalRandom.current()
+                        .nextDouble());
+            }
+            delay = Math.min(delay * strategy.multiplier, strategy.maxDelay);
+            attempts++;
+            long millis = Math.max(0, Math.round(randomised));
+            Duration left = getTimeLeft();
+            if (left != null) {
+                // rounded up, so a poll sleeping until the deadline is past it when it wakes up.
+                millis = Math.min(millis, (left.toNanos() + 999999) / 1000000);
+            }
+            return millis;
+        }
+
+        /**
+         * Sleep until the next check.
+         * @return false if the thread was interrupted, in which case the interrupt flag is
+         *         restored and {@link #hasTimeLeft()} returns false from then on.
+         */
+        public boolean sleep() {
+            long millis = nextDelayInMilliseconds();
+            try {
+                Thread.sleep(millis);
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                interrupted = true;
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Delay before the second check in milliseconds.
+     */
+    private long initialDelay;
+
+    /**
+     * Factor the delay is multiplied by after every check.
+     */
+    private double multiplier = 1;
+
+    /**
+     * Cap of the delay in milliseconds.
+     */
+    private long maxDelay;
+
+    /**
+     * Fraction of the delay it is randomly shortened or lengthened by.
+     */
+    private double jitter;
+
+    /**
+     * Constructor.
+     * @param initialDelayInMilliseconds delay before the second check.
+     */
+    public PollingStrategy(final long initialDelayInMilliseconds) {
+        initialDelay = initialDelayInMilliseconds;
+        maxDelay = initialDelayInMilliseconds;
+    }
+
+    /**
+     * @param delayInMilliseconds delay between checks.
+     * @return {@link PollingStrategy} checking at a fixed interval, without jitter.
+     */
+    public static PollingStrategy fixed(long delayInMilliseconds) {
+        return new PollingStrategy(delayInMilliseconds);
+    }
+
+    /**
+     * @param initialDelayInMilliseconds delay before the second check.
+     * @param maxDelayInMilliseconds cap of the delay.
+     * @return {@link PollingStrategy} doubling the delay after every check, with 20% jitter.
+     */
+    public static PollingStrategy exponential(long initialDelayInMilliseconds,
+            long maxDelayInMilliseconds) {
+        return new PollingStrategy(initialDelayInMilliseconds).multiplier(2)
+                .maxDelayInMilliseconds(maxDelayInMilliseconds).jitter(0.2);
+    }
+
+    /**
+     * @param factor factor the delay is multiplied by after every check, at least 1.
+     * @return {@link PollingStrategy}.
+     */
+    public PollingStrategy multiplier(double factor) {
+        if (factor < 1) {
+            throw new IllegalArgumentException("Multiplier must be at least 1: " + factor);
+        }
+        multiplier = factor;
+        return this;
+    }
+
+    /**
+     * @param delayInMilliseconds cap of the delay, at least the initial delay.
+     * @return {@link PollingStrategy}.
+     */
+    public PollingStrategy maxDelayInMilliseconds(long delayInMilliseconds) {
+        maxDelay = Math.max(delayInMilliseconds, initialDelay);
+        return this;
+    }
+
+    /**
+     * @param fraction fraction of the delay it is randomly shortened or lengthened by, between 0
+     *            and 1. By default there is no jitter.
+     * @return {@link PollingStrategy}.
+     */
+    public PollingStrategy jitter(double fraction) {
+        if (fraction < 0 || fraction > 1) {
+            throw new IllegalArgumentException("Jitter must be between 0 and 1: " + fraction);
+        }
+        jitter = fraction;
+        return this;
+    }
+
+    /**
+     * @param timeout max time to wait, null for no deadline.
+     * @return a new {@link Poll}.
+     */
+    public Poll start(Duration timeout) {
+        return new Poll(this, timeout);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("{");
+        str.append("InitialDelay: ");
+        str.append(initialDelay);
+        str.append(", Multiplier: ");
+        str.append(multiplier);
+        str.append(", MaxDelay: ");
+        str.append(maxDelay);
+        str.append(", Jitter: ");
+        str.append(jitter);
+        str.append("}");
+        return str.toString();
+    }
+
+}
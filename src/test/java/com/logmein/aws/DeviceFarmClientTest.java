@@ -0,0 +1,262 @@
+package com.logmein.aws;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.devicefarm.AWSDeviceFarm;
+import com.amazonaws.services.devicefarm.model.CreateRemoteAccessSessionRequest;
+import com.amazonaws.services.devicefarm.model.CreateRemoteAccessSessionResult;
+import com.amazonaws.services.devicefarm.model.DeviceInstance;
+import com.amazonaws.services.devicefarm.model.GetRemoteAccessSessionRequest;
+import com.amazonaws.services.devicefarm.model.GetRemoteAccessSessionResult;
+import com.amazonaws.services.devicefarm.model.ListRemoteAccessSessionsRequest;
+import com.amazonaws.services.devicefarm.model.ListRemoteAccessSessionsResult;
+import com.amazonaws.services.devicefarm.model.RemoteAccessSession;
+import com.amazonaws.services.devicefarm.model.StopRemoteAccessSessionRequest;
+import com.amazonaws.services.devicefarm.model.StopRemoteAccessSessionResult;
+import com.logmein.aws.utils.PollingStrategy;
+
+/**
+ * Test for {@link DeviceFarmClient}.
+ */
+public class DeviceFarmClientTest {
+
+    private static final String AWS_FOLDER_PATH = "src/test/resources/aws";
+
+    private AWSDeviceFarm farm;
+
+    private DeviceFarmClient client;
+
+    @Before
+    public void setup() {
+        farm = mock(AWSDeviceFarm.class);
+        when(farm.createRemoteAccessSession(any(CreateRemoteAccessSessionRequest.class)))
+                .thenAnswer(invocation -> {
+                    CreateRemoteAccessSessionRequest request = invocation.getArgument(0);
+                    if (request.getDeviceArn().startsWith("bad")) {
+                        throw new IllegalStateException("No such device");
+                    }
+                    return new CreateRemoteAccessSessionResult().withRemoteAccessSession(
+                            new RemoteAccessSession().withArn("session-" + request.getDeviceArn())
+                                    .withStatus("PENDING"));
+                });
+        when(farm.getRemoteAccessSession(any(GetRemoteAccessSessionRequest.class))).thenAnswer(
+                invocation -> {
+                    GetRemoteAccessSessionRequest request = invocation.getArgument(0);
+                    return new GetRemoteAccessSessionResult().withRemoteAccessSession(
+                            new RemoteAccessSession().withArn(request.getArn()).withStatus(
+                                    "RUNNING").withHostAddress("127.0.0.1"));
+                });
+
+        // sessions are never listed, the tracker falls back to getting them one by one.
+        when(farm.listRemoteAccessSessions(any(ListRemoteAccessSessionsRequest.class)))
+                .thenReturn(new ListRemoteAccessSessionsResult());
+
+        client = new DeviceFarmClient(farm, new AWSDirectory(new File(AWS_FOLDER_PATH))) {
+            @Override
+            protected DeviceFarmTunnel prepareTunnel() {
+                return mock(DeviceFarmTunnel.class);
+            }
+
+            @Override
+            protected DeviceFarmTunnel startTunnel(DeviceFarmTunnel tunnel,
+                    RemoteAccessSession remoteAccessSession) {
+                return tunnel;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        client.close();
+    }
+
+    /**
+     * Test {@link DeviceFarmClient#createDirectDeviceAccessSessions(List, int)} reports partial
+     * failures without affecting the successful sessions.
+     */
+    @Test
+    public void createDirectDeviceAccessSessions() {
+        List<DirectDeviceAccessCapabilities> caps = Arrays.asList(capabilities("device-1"),
+                capabilities("bad-device"), capabilities("device-2"));
+
+        DirectDeviceSessionBatch batch = client.createDirectDeviceAccessSessions(caps, 2);
+
+        int received = 0;
+        while (batch.hasNext()) {
+            assertThat(batch.next(), notNullValue());
+            received++;
+        }
+        assertThat(received, is(3));
+        assertThat(batch.isDone(), is(true));
+
+        List<DirectDeviceSessionResult> results = batch.awaitAll();
+        assertThat(results.size(), is(3));
+        assertThat(results.get(0).getSession().getRemoteAccessSession().getArn(), is(
+                "session-device-1"));
+        assertThat(results.get(1).isSuccessful(), is(false));
+        assertThat(results.get(2).getSession().getRemoteAccessSession().getArn(), is(
+                "session-device-2"));
+        assertThat(batch.getSessions().size(), is(2));
+        assertThat(batch.getFailures().size(), is(1));
+        assertThat(batch.getFailures().get(0).getIndex(), is(1));
+    }
+
+    /**
+     * Test {@link DeviceFarmClient#createDirectDeviceAccessSessionAsync} polls until the session is
+     * RUNNING.
+     */
+    @Test
+    public void createDirectDeviceAccessSessionAsync() throws Exception {
+        AtomicInteger polls = new AtomicInteger();
+        when(farm.getRemoteAccessSession(any(GetRemoteAccessSessionRequest.class))).thenAnswer(
+                invocation -> {
+                    GetRemoteAccessSessionRequest request = invocation.getArgument(0);
+                    String status = polls.incrementAndGet() < 3 ? "PENDING" : "RUNNING";
+                    return new GetRemoteAccessSessionResult().withRemoteAccessSession(
+                            new RemoteAccessSession().withArn(request.getArn()).withStatus(
+                                    status));
+                });
+        client.sessionPollingStrategy(PollingStrategy.fixed(10));
+
+        CompletableFuture<DirectDeviceSession> future = client
+                .createDirectDeviceAccessSessionAsync(capabilities("device-1"));
+
+        DirectDeviceSession session = future.get(5, TimeUnit.SECONDS);
+        assertThat(session.getRemoteAccessSession().getArn(), is("session-device-1"));
+        assertThat(polls.get(), is(3));
+    }
+
+    /**
+     * Cancelling {@link DeviceFarmClient#createDirectDeviceAccessSessionAsync} stops the remote
+     * access session.
+     */
+    @Test
+    public void cancelCreateDirectDeviceAccessSessionAsync() throws Exception {
+        CompletableFuture<String> stopped = new CompletableFuture<>();
+        when(farm.getRemoteAccessSession(any(GetRemoteAccessSessionRequest.class))).thenAnswer(
+                invocation -> {
+                    GetRemoteAccessSessionRequest request = invocation.getArgument(0);
+                    return new GetRemoteAccessSessionResult().withRemoteAccessSession(
+                            new RemoteAccessSession().withArn(request.getArn()).withStatus(
+                                    "PENDING"));
+                });
+        when(farm.stopRemoteAccessSession(any(StopRemoteAccessSessionRequest.class))).thenAnswer(
+                invocation -> {
+                    StopRemoteAccessSessionRequest request = invocation.getArgument(0);
+                    stopped.complete(request.getArn());
+                    return new StopRemoteAccessSessionResult();
+                });
+        client.sessionPollingStrategy(PollingStrategy.fixed(10));
+
+        CompletableFuture<DirectDeviceSession> future = client
+                .createDirectDeviceAccessSessionAsync(capabilities("device-1"));
+        verify(farm, timeout(5000).atLeastOnce()).getRemoteAccessSession(any(
+                GetRemoteAccessSessionRequest.class));
+        future.cancel(false);
+
+        assertThat(stopped.get(5, TimeUnit.SECONDS), is("session-device-1"));
+    }
+
+    /**
+     * A session not RUNNING in time is stopped by
+     * {@link DeviceFarmClient#createDirectDeviceAccessSessionAsync}.
+     */
+    @Test
+    public void timedOutCreateDirectDeviceAccessSessionAsync() throws Exception {
+        CompletableFuture<String> stopped = new CompletableFuture<>();
+        when(farm.getRemoteAccessSession(any(GetRemoteAccessSessionRequest.class))).thenAnswer(
+                invocation -> {
+                    GetRemoteAccessSessionRequest request = invocation.getArgument(0);
+                    return new GetRemoteAccessSessionResult().withRemoteAccessSession(
+                            new RemoteAccessSession().withArn(request.getArn()).withStatus(
+                                    "PENDING"));
+                });
+        when(farm.stopRemoteAccessSession(any(StopRemoteAccessSessionRequest.class))).thenAnswer(
+                invocation -> {
+                    StopRemoteAccessSessionRequest request = invocation.getArgument(0);
+                    stopped.complete(request.getArn());
+                    return new StopRemoteAccessSessionResult();
+                });
+        client.sessionPollingStrategy(PollingStrategy.fixed(10));
+
+        CompletableFuture<DirectDeviceSession> future = client
+                .createDirectDeviceAccessSessionAsync(capabilities("device-1").timeOutInSeconds(1));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail("Expected the session to time out.");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof DeviceFarmException, is(true));
+        }
+        assertThat(stopped.get(5, TimeUnit.SECONDS), is("session-device-1"));
+    }
+
+    /**
+     * The tunnel is prepared while the session is starting, not after it is RUNNING.
+     */
+    @Test
+    public void tunnelIsPreparedWhileSessionStarts() {
+        AtomicBoolean prepared = new AtomicBoolean();
+        when(farm.getRemoteAccessSession(any(GetRemoteAccessSessionRequest.class))).thenAnswer(
+                invocation -> {
+                    GetRemoteAccessSessionRequest request = invocation.getArgument(0);
+                    // only RUNNING once the tunnel is ready.
+                    String status = prepared.get() ? "RUNNING" : "PENDING";
+                    return new GetRemoteAccessSessionResult().withRemoteAccessSession(
+                            new RemoteAccessSession().withArn(request.getArn()).withStatus(
+                                    status));
+                });
+        DeviceFarmClient pipelined = new DeviceFarmClient(farm, new AWSDirectory(new File(
+                AWS_FOLDER_PATH))) {
+            @Override
+            protected DeviceFarmTunnel prepareTunnel() {
+                prepared.set(true);
+                return mock(DeviceFarmTunnel.class);
+            }
+
+            @Override
+            protected DeviceFarmTunnel startTunnel(DeviceFarmTunnel tunnel,
+                    RemoteAccessSession remoteAccessSession) {
+                return tunnel;
+            }
+        }.sessionPollingStrategy(PollingStrategy.fixed(10));
+
+        try {
+            DirectDeviceSession session = pipelined.createDirectDeviceAccessSession(capabilities(
+                    "device-1").timeOutInSeconds(5));
+            assertThat(session.getRemoteAccessSession().getStatus(), is("RUNNING"));
+        } finally {
+            pipelined.close();
+        }
+    }
+
+    private DirectDeviceAccessCapabilities capabilities(String deviceArn) {
+        //@formatter:off
+        return new DirectDeviceAccessCapabilities()
+                .deviceInstance(new DeviceInstance().withDeviceArn(deviceArn))
+                .projectArn("project")
+                .timeOutInSeconds(10);
+        //@formatter:on
+    }
+
+}
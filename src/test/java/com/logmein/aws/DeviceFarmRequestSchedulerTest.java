@@ -0,0 +1,152 @@
+package com.logmein.aws;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.retry.RetryPolicy;
+import com.logmein.aws.utils.PollingStrategy;
+
+/**
+ * Test for {@link DeviceFarmRequestScheduler}.
+ */
+public class DeviceFarmRequestSchedulerTest {
+
+    /**
+     * Calls past the burst wait for the bucket to refill.
+     */
+    @Test
+    public void burstIsSmoothed() {
+        DeviceFarmRequestScheduler scheduler = new DeviceFarmRequestScheduler().rate("Op", 20, 2);
+        long start = System.nanoTime();
+        for (int i = 0; i < 6; i++) {
+            scheduler.call("Op", () -> "ok");
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        // 2 calls right away, then one every 50 ms.
+        assertThat(elapsedMillis >= 180, is(true));
+
+        DeviceFarmRequestStats stats = scheduler.getStats("Op");
+        assertThat(stats.getCalls(), is(6L));
+        assertThat(stats.getQueueDepth(), is(0L));
+        assertThat(stats.getMaxWaitMillis() > 0, is(true));
+    }
+
+    /**
+     * Throttled calls are retried after a backoff.
+     */
+    @Test
+    public void throttledCallIsRetried() {
+        DeviceFarmRequestScheduler scheduler = new DeviceFarmRequestScheduler().backoff(
+                PollingStrategy.fixed(10));
+        AtomicInteger attempts = new AtomicInteger();
+        String result = scheduler.call("Op", () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw throttling();
+            }
+            return "ok";
+        });
+        assertThat(result, is("ok"));
+        assertThat(scheduler.getStats("Op").getThrottled(), is(2L));
+        assertThat(scheduler.getStats("Op").getCalls(), is(3L));
+    }
+
+    /**
+     * Other errors and calls throttled too many times are not retried.
+     */
+    @Test
+    public void givesUpAfterMaxRetries() {
+        DeviceFarmRequestScheduler scheduler = new DeviceFarmRequestScheduler().backoff(
+                PollingStrategy.fixed(10)).maxRetries(1);
+        AtomicInteger attempts = new AtomicInteger();
+        try {
+            scheduler.call("Op", () -> {
+                attempts.incrementAndGet();
+                throw throttling();
+            });
+            fail("Expected the throttling error.");
+        } catch (AmazonServiceException e) {
+            assertThat(attempts.get(), is(2));
+        }
+
+        AmazonServiceException notFound = new AmazonServiceException("Not found");
+        notFound.setErrorCode("NotFoundException");
+        notFound.setStatusCode(404);
+        try {
+            scheduler.call("Other", () -> {
+                throw notFound;
+            });
+            fail("Expected the not found error.");
+        } catch (AmazonServiceException e) {
+            assertThat(scheduler.getStats("Other").getCalls(), is(1L));
+        }
+    }
+
+    /**
+     * Asynchronous calls past the burst are scheduled for their permit, the caller never waits.
+     */
+    @Test
+    public void asyncCallsAreScheduled() throws Exception {
+        DeviceFarmRequestScheduler scheduler = new DeviceFarmRequestScheduler().rate("Op", 20, 2)
+                .backoff(PollingStrategy.fixed(10));
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        try {
+            AtomicInteger attempts = new AtomicInteger();
+            long start = System.nanoTime();
+            List<CompletableFuture<String>> calls = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                calls.add(scheduler.callAsync("Op", () -> {
+                    if (attempts.incrementAndGet() == 1) {
+                        throw throttling();
+                    }
+                    return "ok";
+                }, executor));
+            }
+            assertThat((System.nanoTime() - start) / 1000000 < 100, is(true));
+            for (CompletableFuture<String> call : calls) {
+                assertThat(call.get(5, TimeUnit.SECONDS), is("ok"));
+            }
+            // 2 calls right away, then one every 50 ms, plus the retry.
+            assertThat((System.nanoTime() - start) / 1000000 >= 180, is(true));
+            assertThat(scheduler.getStats("Op").getCalls(), is(7L));
+            assertThat(scheduler.getStats("Op").getThrottled(), is(1L));
+            assertThat(scheduler.getStats("Op").getQueueDepth(), is(0L));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * The SDK leaves throttled calls to the scheduler, and still retries server errors.
+     */
+    @Test
+    public void sdkDoesNotRetryThrottling() {
+        RetryPolicy.RetryCondition condition = DeviceFarmRequestScheduler.sdkRetryPolicy()
+                .getRetryCondition();
+        assertThat(condition.shouldRetry(null, throttling(), 0), is(false));
+
+        AmazonServiceException unavailable = new AmazonServiceException("Unavailable");
+        unavailable.setErrorCode("ServiceUnavailable");
+        unavailable.setStatusCode(503);
+        assertThat(condition.shouldRetry(null, unavailable, 0), is(true));
+    }
+
+    private static AmazonServiceException throttling() {
+        AmazonServiceException e = new AmazonServiceException("Rate exceeded");
+        e.setErrorCode("ThrottlingException");
+        e.setStatusCode(400);
+        return e;
+    }
+
+}
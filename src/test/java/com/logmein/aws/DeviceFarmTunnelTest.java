@@ -1,6 +1,7 @@
 package com.logmein.aws;
 
 import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.is;
 import static org.junit.Assert.assertThat;
 
 import java.io.File;
@@ -21,12 +22,13 @@ public void getTunnelTest() {
         DeviceFarmTunnel tunnel = new DeviceFarmTunnel("1.1.1.1");
         File f = tunnel.getTunnel();
         assertThat(f.getAbsolutePath(), containsString(DeviceFarmTunnel.TUNNEL_ROOT_DIR
-                + File.separator + "1.1.1.1" + File.separator + DeviceFarmTunnel.TUNNEL_FILE_NAME));
+                + File.separator + DeviceFarmTunnel.TUNNEL_CACHE_DIR + File.separator));
+        assertThat(f.getName(), is(DeviceFarmTunnel.TUNNEL_FILE_NAME));
 
+        // the executable is shared, not extracted again for every host.
         DeviceFarmTunnel tunnel2 = new DeviceFarmTunnel("2.2.2.2");
         File f2 = tunnel2.getTunnel();
-        assertThat(f2.getAbsolutePath(), containsString(DeviceFarmTunnel.TUNNEL_ROOT_DIR
-                + File.separator + "2.2.2.2" + File.separator + DeviceFarmTunnel.TUNNEL_FILE_NAME));
+        assertThat(f2, is(f));
     }
 
 }
@@ -0,0 +1,144 @@
+package com.logmein.aws;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.devicefarm.model.RemoteAccessSession;
+import com.logmein.aws.utils.DateTimeUtils;
+
+/**
+ * Test for {@link DirectDeviceSessionPool}.
+ */
+public class DirectDeviceSessionPoolTest {
+
+    private DeviceFarmClient client;
+
+    private DirectDeviceSessionPool pool;
+
+    private final AtomicInteger created = new AtomicInteger();
+
+    private volatile boolean blockValidation;
+
+    private final CountDownLatch validationReleased = new CountDownLatch(1);
+
+    @Before
+    public void setup() {
+        client = mock(DeviceFarmClient.class);
+        when(client.createDirectDeviceAccessSession(any())).thenAnswer(invocation -> {
+            DeviceFarmTunnel tunnel = mock(DeviceFarmTunnel.class);
+            when(tunnel.isRunning()).thenReturn(true);
+            return new DirectDeviceSession(new RemoteAccessSession().withArn("session-" + created
+                    .incrementAndGet()), tunnel);
+        });
+        when(client.getRemoteAccessSession(anyString())).thenAnswer(invocation -> {
+            if (blockValidation) {
+                validationReleased.await(10, TimeUnit.SECONDS);
+            }
+            return new RemoteAccessSession().withArn(invocation.getArgument(0)).withStatus(
+                    "RUNNING");
+        });
+
+        pool = new DirectDeviceSessionPool(client, DirectDeviceAccessCapabilities::new).minIdle(1)
+                .maxSize(2).start();
+    }
+
+    @After
+    public void tearDown() {
+        validationReleased.countDown();
+        pool.close();
+    }
+
+    /**
+     * A returned session is validated and handed out again.
+     */
+    @Test
+    public void leaseIsReused() {
+        DirectDeviceSession session;
+        try (DirectDeviceSessionLease lease = pool.lease(5)) {
+            session = lease.getSession();
+            assertThat(pool.getLeasedCount(), is(1));
+        }
+        assertThat(pool.getLeasedCount(), is(0));
+        waitForIdle(2);
+
+        try (DirectDeviceSessionLease lease = pool.lease(5)) {
+            // the most recently returned session is handed out first.
+            assertThat(lease.getSession(), sameInstance(session));
+        }
+    }
+
+    /**
+     * An invalidated session is stopped instead of reused.
+     */
+    @Test
+    public void invalidatedLeaseIsEvicted() {
+        DirectDeviceSession session;
+        try (DirectDeviceSessionLease lease = pool.lease(5)) {
+            session = lease.getSession();
+            lease.invalidate();
+        }
+        verify(client, timeout(5000)).stopDirectDeviceAccessSession(session);
+        waitForIdle(1);
+
+        try (DirectDeviceSessionLease lease = pool.lease(5)) {
+            assertThat(lease.getSession(), not(sameInstance(session)));
+        }
+    }
+
+    /**
+     * A session returned while the pool closes is stopped, not left running.
+     */
+    @Test
+    public void sessionValidatedOnCloseIsStopped() {
+        DirectDeviceSession session;
+        try (DirectDeviceSessionLease lease = pool.lease(5)) {
+            session = lease.getSession();
+            blockValidation = true;
+        }
+        pool.close();
+        verify(client, timeout(5000)).stopDirectDeviceAccessSession(session);
+        assertThat(pool.getIdleCount(), is(0));
+    }
+
+    /**
+     * A pool can only be started once.
+     */
+    @Test(expected = IllegalStateException.class)
+    public void startTwiceFails() {
+        pool.start();
+    }
+
+    /**
+     * Leasing fails if no session can be provisioned.
+     */
+    @Test(expected = DeviceFarmException.class)
+    public void leaseTimesOutWhenPoolIsExhausted() {
+        pool.lease(5);
+        pool.lease(5);
+        pool.lease(1);
+    }
+
+    private void waitForIdle(int count) {
+        for (int i = 0; i < 50 && pool.getIdleCount() < count; i++) {
+            DateTimeUtils.sleep(100);
+        }
+        assertThat(pool.getIdleCount() >= count, is(true));
+    }
+
+}
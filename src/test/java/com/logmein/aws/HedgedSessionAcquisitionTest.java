@@ -0,0 +1,141 @@
+package com.logmein.aws;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.mock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test for {@link HedgedSessionAcquisition}.
+ */
+public class HedgedSessionAcquisitionTest {
+
+    private final ScheduledExecutorService scheduler = Executors
+            .newSingleThreadScheduledExecutor();
+
+    private final List<CompletableFuture<DirectDeviceSession>> attempts = new ArrayList<>();
+
+    private final List<DirectDeviceSession> discarded = new ArrayList<>();
+
+    private final AtomicLong fired = new AtomicLong();
+
+    private final AtomicLong won = new AtomicLong();
+
+    @After
+    public void tearDown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * A slow attempt is hedged, the hedge wins and the slow attempt is cancelled.
+     */
+    @Test
+    public void hedgeWinsOverSlowAttempt() throws Exception {
+        CompletableFuture<DirectDeviceSession> result = acquisition().start(scheduler, 50);
+        waitForAttempts(2);
+
+        DirectDeviceSession session = mock(DirectDeviceSession.class);
+        attempts.get(1).complete(session);
+
+        assertThat(result.get(5, TimeUnit.SECONDS), sameInstance(session));
+        assertThat(attempts.get(0).isCancelled(), is(true));
+        assertThat(fired.get(), is(1L));
+        assertThat(won.get(), is(1L));
+    }
+
+    /**
+     * An attempt done before the delay is not hedged.
+     */
+    @Test
+    public void fastAttemptIsNotHedged() throws Exception {
+        CompletableFuture<DirectDeviceSession> result = acquisition().start(scheduler, 100);
+        DirectDeviceSession session = mock(DirectDeviceSession.class);
+        attempts.get(0).complete(session);
+
+        assertThat(result.get(5, TimeUnit.SECONDS), sameInstance(session));
+        Thread.sleep(200);
+        assertThat(attempts.size(), is(1));
+        assertThat(fired.get(), is(0L));
+    }
+
+    /**
+     * The acquisition only fails once every attempt failed.
+     */
+    @Test
+    public void failsOnceAllAttemptsFailed() throws Exception {
+        CompletableFuture<DirectDeviceSession> result = acquisition().start(scheduler, 50);
+        waitForAttempts(2);
+
+        attempts.get(0).completeExceptionally(new DeviceFarmException("first"));
+        assertThat(result.isDone(), is(false));
+        attempts.get(1).completeExceptionally(new DeviceFarmException("second"));
+        assertThat(result.isCompletedExceptionally(), is(true));
+    }
+
+    /**
+     * A session produced by the losing attempt is discarded.
+     */
+    @Test
+    public void loserSessionIsDiscarded() throws Exception {
+        HedgedSessionAcquisition acquisition = new HedgedSessionAcquisition(() -> {
+            // an attempt too far along to be cancelled.
+            CompletableFuture<DirectDeviceSession> attempt =
+                    new CompletableFuture<DirectDeviceSession>() {
+                        @Override
+                        public boolean cancel(boolean mayInterruptIfRunning) {
+                            return false;
+                        }
+                    };
+            synchronized (attempts) {
+                attempts.add(attempt);
+            }
+            return attempt;
+        }, discarded::add, fired, won);
+        CompletableFuture<DirectDeviceSession> result = acquisition.start(scheduler, 50);
+        waitForAttempts(2);
+
+        DirectDeviceSession first = mock(DirectDeviceSession.class);
+        DirectDeviceSession second = mock(DirectDeviceSession.class);
+        attempts.get(0).complete(first);
+        attempts.get(1).complete(second);
+
+        assertThat(result.get(), sameInstance(first));
+        assertThat(discarded.size(), is(1));
+        assertThat(discarded.get(0), sameInstance(second));
+        assertThat(won.get(), is(0L));
+    }
+
+    private HedgedSessionAcquisition acquisition() {
+        return new HedgedSessionAcquisition(() -> {
+            CompletableFuture<DirectDeviceSession> attempt = new CompletableFuture<>();
+            synchronized (attempts) {
+                attempts.add(attempt);
+            }
+            return attempt;
+        }, discarded::add, fired, won);
+    }
+
+    private void waitForAttempts(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (System.currentTimeMillis() < deadline) {
+            synchronized (attempts) {
+                if (attempts.size() >= count) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.logmein.aws;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.amazonaws.services.devicefarm.model.RemoteAccessSession;
+
+/**
+ * Test for {@link PortAllocator}.
+ */
+public class PortAllocatorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * Allocators sharing the lock directory, like the JVMs of a host, never hand out the same
+     * port.
+     */
+    @Test
+    public void portsAreNotShared() throws Exception {
+        int first = freeRangeStart();
+        PortAllocator allocator = new PortAllocator(folder.getRoot(), first, first + 49);
+        PortAllocator other = new PortAllocator(folder.getRoot(), first, first + 49);
+
+        Set<Integer> ports = new HashSet<>();
+        for (int i = 0; i < 5; i++) {
+            ports.add(allocator.allocate().getPort());
+            ports.add(other.allocate().getPort());
+        }
+        assertThat(ports.size(), is(10));
+    }
+
+    /**
+     * Allocating fails once every port of the range is taken.
+     */
+    @Test
+    public void failsWhenRangeIsExhausted() throws Exception {
+        int port = freeRangeStart();
+        new PortAllocator(folder.getRoot(), port, port).allocate();
+        try {
+            new PortAllocator(folder.getRoot(), port, port).allocate();
+            fail("Expected the range to be exhausted.");
+        } catch (DeviceFarmException e) {
+            assertThat(e.getMessage().contains(String.valueOf(port)), is(true));
+        }
+    }
+
+    /**
+     * A released port is handed out again when preferred.
+     */
+    @Test
+    public void releasedPortIsReused() throws Exception {
+        int first = freeRangeStart();
+        PortAllocator allocator = new PortAllocator(folder.getRoot(), first, first + 9);
+        PortAllocator.Lease lease = allocator.allocate();
+        int port = lease.getPort();
+        assertThat(allocator.allocate(port).getPort(), not(is(port)));
+
+        lease.close();
+        assertThat(allocator.allocate(port).getPort(), is(port));
+    }
+
+    /**
+     * Ports used by other programs are skipped.
+     */
+    @Test
+    public void busyPortIsSkipped() throws Exception {
+        int first = freeRangeStart();
+        PortAllocator allocator = new PortAllocator(folder.getRoot(), first, first + 9);
+        ServerSocket busy = new ServerSocket(first, 1, InetAddress.getLoopbackAddress());
+        try {
+            assertThat(allocator.allocate(first).getPort(), not(is(first)));
+        } finally {
+            busy.close();
+        }
+    }
+
+    /**
+     * A relay allocates the local ports of its sessions from the allocator.
+     */
+    @Test
+    public void relayUsesAllocatedPorts() throws Exception {
+        int first = freeRangeStart();
+        PortAllocator allocator = new PortAllocator(folder.getRoot(), first, first + 9);
+        try (TunnelRelay relay = new TunnelRelay().portAllocator(allocator)) {
+            DirectDeviceSession session = new DirectDeviceSession(new RemoteAccessSession()
+                    .withArn("arn"), null);
+            int port = relay.bind(session, null);
+            assertThat(port >= first && port <= first + 9, is(true));
+            assertThat(allocator.getLeasedCount(), is(1));
+
+            relay.unbind(session);
+            assertThat(allocator.getLeasedCount(), is(0));
+        }
+    }
+
+    private static int freeRangeStart() throws Exception {
+        // let the system pick a port, the ones right above it are very likely free too.
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return Math.min(socket.getLocalPort(), 65000);
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package com.logmein.aws;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.devicefarm.model.ListRemoteAccessSessionsRequest;
+import com.amazonaws.services.devicefarm.model.ListRemoteAccessSessionsResult;
+import com.amazonaws.services.devicefarm.model.RemoteAccessSession;
+import com.logmein.aws.utils.PollingStrategy;
+
+/**
+ * Test for {@link RemoteAccessSessionTracker}.
+ */
+public class RemoteAccessSessionTrackerTest {
+
+    private volatile String status = "PENDING";
+
+    private RemoteAccessSessionTracker tracker;
+
+    @Before
+    public void setup() {
+        tracker = new RemoteAccessSessionTracker(this::listSessions, this::getSession)
+                .pollingStrategy(PollingStrategy.fixed(20));
+    }
+
+    @After
+    public void tearDown() {
+        tracker.close();
+    }
+
+    /**
+     * All the sessions of a project are resolved by listing the project, not one by one.
+     */
+    @Test
+    public void sessionsOfProjectAreListedOnce() throws Exception {
+        List<CompletableFuture<RemoteAccessSession>> waiters = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            waiters.add(tracker.whenRunning("project", "session-" + i));
+        }
+        Thread.sleep(100);
+        status = "RUNNING";
+        for (CompletableFuture<RemoteAccessSession> waiter : waiters) {
+            assertThat(waiter.get(5, TimeUnit.SECONDS).getStatus(), is("RUNNING"));
+        }
+        assertThat(tracker.getGetCalls(), is(0L));
+        // one list per poll, whatever the number of sessions.
+        assertThat(tracker.getListCalls() < 20, is(true));
+        assertThat(tracker.getWaiterCount(), is(0));
+    }
+
+    /**
+     * Sessions missing from the listing are fetched on their own.
+     */
+    @Test
+    public void unlistedSessionFallsBackToGet() throws Exception {
+        status = "RUNNING";
+        RemoteAccessSession session = tracker.whenRunning("project", "unlisted").get(5,
+                TimeUnit.SECONDS);
+        assertThat(session.getArn(), is("unlisted"));
+        assertThat(tracker.getGetCalls() > 0, is(true));
+    }
+
+    /**
+     * A session ending before running fails its waiter.
+     */
+    @Test
+    public void endedSessionFailsWaiter() throws Exception {
+        status = "COMPLETED";
+        try {
+            tracker.whenRunning("project", "session-1").get(5, TimeUnit.SECONDS);
+            fail("Expected the session to fail.");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause() instanceof DeviceFarmException, is(true));
+        }
+    }
+
+    /**
+     * A new waiter does not push back a poll that is due sooner.
+     */
+    @Test
+    public void newWaiterDoesNotDelayPendingPoll() throws Exception {
+        tracker.close();
+        tracker = new RemoteAccessSessionTracker(this::listSessions, this::getSession)
+                .pollingStrategy(PollingStrategy.fixed(400));
+        status = "RUNNING";
+        CompletableFuture<RemoteAccessSession> first = tracker.whenRunning("project",
+                "session-1");
+        for (int i = 2; i < 10; i++) {
+            Thread.sleep(100);
+            tracker.whenRunning("project", "session-" + i);
+        }
+        // the first poll was due after 400 ms, a waiter every 100 ms must not keep delaying it.
+        assertThat(first.isDone(), is(true));
+    }
+
+    private ListRemoteAccessSessionsResult listSessions(ListRemoteAccessSessionsRequest request) {
+        List<RemoteAccessSession> sessions = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            sessions.add(new RemoteAccessSession().withArn("session-" + i).withStatus(status));
+        }
+        return new ListRemoteAccessSessionsResult().withRemoteAccessSessions(sessions);
+    }
+
+    private RemoteAccessSession getSession(String arn) {
+        return new RemoteAccessSession().withArn(arn).withStatus(status);
+    }
+
+}
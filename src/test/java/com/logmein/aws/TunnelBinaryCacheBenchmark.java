@@ -0,0 +1,177 @@
+package com.logmein.aws;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Enumeration;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Compares the old way of getting the tunnel, copying the bundled zip to disk then unzipping it,
+ * with the streaming extraction of {@link TunnelBinaryCache}. Reports the time and the bytes
+ * written by each, and by another cache finding the entry already extracted, like another JVM.
+ * The streaming time includes hashing the zip to key the cache entry.
+ * <p>
+ * Run with the zip as argument, else the bundled zip of this OS is used if it is on the classpath,
+ * else a generated zip of {@value #GENERATED_SIZE} random bytes:
+ * <pre>
+ * java -cp target/classes:target/test-classes:... com.logmein.aws.TunnelBinaryCacheBenchmark [zip]
+ * </pre>
+ */
+public final class TunnelBinaryCacheBenchmark {
+
+    /**
+     * Size of the executable of the generated zip.
+     */
+    private static final int GENERATED_SIZE = 8 * 1024 * 1024;
+
+    /**
+     * Number of runs of each way, after as many warm up runs.
+     */
+    private static final int RUNS = 20;
+
+    /**
+     * Name of the executable in the zip.
+     */
+    private static final String EXECUTABLE = "devicefarm-cli";
+
+    private TunnelBinaryCacheBenchmark() {
+    }
+
+    /**
+     * @param args optional path of the zip.
+     * @throws IOException if the zip cannot be read or extracted.
+     */
+    public static void main(String[] args) throws IOException {
+        byte[] zip = args.length > 0 ? Files.readAllBytes(new File(args[0]).toPath())
+                : bundledZip();
+        File work = Files.createTempDirectory("tunnel-benchmark").toFile();
+        try {
+            long[] copy = new long[2];
+            long[] stream = new long[2];
+            long[] cached = new long[2];
+            for (int i = 0; i < 2 * RUNS; i++) {
+                boolean measured = i >= RUNS;
+                File dir = new File(work, "run-" + i);
+                long start = System.nanoTime();
+                long written = copyThenUnzip(zip, new File(dir, "copy"));
+                if (measured) {
+                    copy[0] += System.nanoTime() - start;
+                    copy[1] = written;
+                }
+                start = System.nanoTime();
+                TunnelBinaryCache cache = new TunnelBinaryCache(new File(dir, "stream"));
+                cache.get("tunnel.zip", () -> new ByteArrayInputStream(zip), EXECUTABLE);
+                if (measured) {
+                    stream[0] += System.nanoTime() - start;
+                    stream[1] = cache.getBytesWritten();
+                }
+                start = System.nanoTime();
+                TunnelBinaryCache other = new TunnelBinaryCache(new File(dir, "stream"));
+                other.get("tunnel.zip", () -> new ByteArrayInputStream(zip), EXECUTABLE);
+                if (measured) {
+                    cached[0] += System.nanoTime() - start;
+                    cached[1] = other.getBytesWritten();
+                }
+                FileUtils.deleteQuietly(dir);
+            }
+            System.out.println("Zip size: " + zip.length + " bytes, " + RUNS + " runs each.");
+            report("Copy then unzip", copy);
+            report("Streaming", stream);
+            report("Already cached", cached);
+        } finally {
+            FileUtils.deleteQuietly(work);
+        }
+    }
+
+    /**
+     * The old getTunnel(): copy the zip to disk, then extract every entry next to it. zip4j is
+     * replaced by {@link ZipFile}, which reads the copy back from disk the same way.
+     * @param zip content of the zip.
+     * @param dir directory the zip is copied and extracted to.
+     * @return number of bytes written to disk.
+     * @throws IOException if the zip cannot be copied or extracted.
+     */
+    static long copyThenUnzip(byte[] zip, File dir) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Failed to create " + dir);
+        }
+        File copy = new File(dir, "tunnel.zip");
+        long written = Files.copy(new ByteArrayInputStream(zip), copy.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        try (ZipFile zipFile = new ZipFile(copy)) {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                File target = new File(dir, entry.getName());
+                if (entry.isDirectory()) {
+                    target.mkdirs();
+                    continue;
+                }
+                try (InputStream in = zipFile.getInputStream(entry)) {
+                    written += Files.copy(in, target.toPath(),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+        }
+        return written;
+    }
+
+    /**
+     * @param name name of the timed way.
+     * @param totals total nanoseconds and bytes written by a run.
+     */
+    private static void report(String name, long[] totals) {
+        System.out.println(String.format("%-16s %8.2f ms per run, %12d bytes written per run",
+                name, totals[0] / 1e6 / RUNS, totals[1]));
+    }
+
+    /**
+     * @return the bundled zip of this OS, or a generated one if it is not on the classpath.
+     * @throws IOException if the zip cannot be read.
+     */
+    private static byte[] bundledZip() throws IOException {
+        String name = System.getProperty("os.name").toLowerCase().contains("mac")
+                ? "aws-device-farm-tunnel-macos.zip" : "aws-device-farm-tunnel-linux.zip";
+        try (InputStream in = TunnelBinaryCacheBenchmark.class.getResourceAsStream("/" + name)) {
+            if (in != null) {
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    bytes.write(buffer, 0, read);
+                }
+                return bytes.toByteArray();
+            }
+        }
+        System.out.println(name + " is not on the classpath, using a generated zip.");
+        byte[] executable = new byte[GENERATED_SIZE];
+        new Random(0).nextBytes(executable);
+        return zip(executable);
+    }
+
+    /**
+     * @param executable content of the executable.
+     * @return zip holding the executable.
+     * @throws IOException never, the zip is written in memory.
+     */
+    static byte[] zip(byte[] executable) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+            out.putNextEntry(new ZipEntry(EXECUTABLE));
+            out.write(executable);
+            out.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+}
@@ -0,0 +1,142 @@
+package com.logmein.aws;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test for {@link TunnelBinaryCache}.
+ */
+public class TunnelBinaryCacheTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The zip is extracted once and the executable is reused.
+     */
+    @Test
+    public void extractsOnce() throws Exception {
+        TunnelBinaryCache cache = new TunnelBinaryCache(folder.getRoot());
+        byte[] zip = zip("tunnel", "v1");
+
+        File first = cache.get("tunnel.zip", () -> new ByteArrayInputStream(zip), "tunnel");
+        File second = cache.get("tunnel.zip", () -> new ByteArrayInputStream(zip), "tunnel");
+
+        assertThat(second, is(first));
+        assertThat(first.canExecute(), is(true));
+        assertThat(new String(Files.readAllBytes(first.toPath()), StandardCharsets.UTF_8),
+                is("v1"));
+        assertThat(cache.getExtractions(), is(1));
+    }
+
+    /**
+     * The zip is streamed, only the extracted files are written to disk.
+     */
+    @Test
+    public void writesOnlyTheExtractedFiles() throws Exception {
+        TunnelBinaryCache cache = new TunnelBinaryCache(folder.getRoot());
+        byte[] zip = zip("tunnel", "executable content");
+
+        File tunnel = cache.get("tunnel.zip", () -> new ByteArrayInputStream(zip), "tunnel");
+
+        assertThat(cache.getBytesWritten(), is((long) "executable content".length()));
+        // the entry and its lock file, no temporary zip or directory left behind.
+        assertThat(folder.getRoot().list().length, is(2));
+        assertThat(tunnel.getParentFile().list().length, is(1));
+    }
+
+    /**
+     * Streaming writes the executable only, copying then unzipping also writes the zip, see
+     * {@link TunnelBinaryCacheBenchmark} for the timings.
+     */
+    @Test
+    public void writesLessThanCopyThenUnzip() throws Exception {
+        byte[] executable = new byte[256 * 1024];
+        new Random(0).nextBytes(executable);
+        byte[] zip = TunnelBinaryCacheBenchmark.zip(executable);
+
+        long copied = TunnelBinaryCacheBenchmark.copyThenUnzip(zip, folder.newFolder("copy"));
+        TunnelBinaryCache cache = new TunnelBinaryCache(folder.newFolder("stream"));
+        cache.get("tunnel.zip", () -> new ByteArrayInputStream(zip), "devicefarm-cli");
+
+        assertThat(copied, is((long) zip.length + executable.length));
+        assertThat(cache.getBytesWritten(), is((long) executable.length));
+    }
+
+    /**
+     * Another cache over the same directory, like another JVM, reuses the extracted executable,
+     * and a different zip gets its own entry.
+     */
+    @Test
+    public void entriesAreKeyedByContent() throws Exception {
+        byte[] zip = zip("tunnel", "v1");
+        File first = new TunnelBinaryCache(folder.getRoot()).get("tunnel.zip",
+                () -> new ByteArrayInputStream(zip), "tunnel");
+
+        TunnelBinaryCache other = new TunnelBinaryCache(folder.getRoot());
+        assertThat(other.get("tunnel.zip", () -> new ByteArrayInputStream(zip), "tunnel"),
+                is(first));
+        assertThat(other.getExtractions(), is(0));
+
+        byte[] updated = zip("tunnel", "v2");
+        File second = new TunnelBinaryCache(folder.getRoot()).get("tunnel.zip",
+                () -> new ByteArrayInputStream(updated), "tunnel");
+        assertThat(second.equals(first), is(false));
+        assertThat(new String(Files.readAllBytes(second.toPath()), StandardCharsets.UTF_8),
+                is("v2"));
+    }
+
+    /**
+     * Concurrent callers share a single extraction.
+     */
+    @Test
+    public void concurrentCallersShareTheExtraction() throws Exception {
+        TunnelBinaryCache cache = new TunnelBinaryCache(folder.getRoot());
+        byte[] zip = zip("tunnel", "v1");
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<File>> files = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                files.add(pool.submit(() -> cache.get("tunnel.zip",
+                        () -> new ByteArrayInputStream(zip), "tunnel")));
+            }
+            File first = files.get(0).get();
+            for (Future<File> file : files) {
+                assertThat(file.get(), is(first));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        assertThat(cache.getExtractions(), is(1));
+    }
+
+    private static byte[] zip(String name, String content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ZipOutputStream out = new ZipOutputStream(bytes)) {
+            out.putNextEntry(new ZipEntry(name));
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+}
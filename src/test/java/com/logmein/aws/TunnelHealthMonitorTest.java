@@ -0,0 +1,140 @@
+package com.logmein.aws;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.junit.Assert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.devicefarm.model.RemoteAccessSession;
+import com.logmein.aws.utils.PollingStrategy;
+
+/**
+ * Test for {@link TunnelHealthMonitor}.
+ */
+public class TunnelHealthMonitorTest {
+
+    private final AWSDirectory directory = mock(AWSDirectory.class);
+
+    private final TunnelHealthListener listener = mock(TunnelHealthListener.class);
+
+    private final DeviceFarmTunnel tunnel = mock(DeviceFarmTunnel.class);
+
+    private final CompletableFuture<Void> down = new CompletableFuture<>();
+
+    private DirectDeviceSession session;
+
+    private TunnelHealthMonitor monitor;
+
+    @Before
+    public void setUp() {
+        session = new DirectDeviceSession(new RemoteAccessSession().withArn("arn"), tunnel);
+        when(tunnel.whenDown()).thenReturn(down).thenReturn(new CompletableFuture<>());
+        monitor = new TunnelHealthMonitor(directory).listener(listener).restartStrategy(
+                PollingStrategy.fixed(10)).maxRestartAttempts(3);
+    }
+
+    @After
+    public void tearDown() {
+        monitor.close();
+    }
+
+    /**
+     * A tunnel that went down is restarted with backoff, then watched again.
+     */
+    @Test
+    public void tunnelIsRestarted() {
+        doThrow(new DeviceFarmException("not yet")).doNothing().when(tunnel).start(directory);
+        when(tunnel.isRunning()).thenReturn(true);
+        monitor.watch(session);
+
+        down.complete(null);
+
+        verify(listener, timeout(5000)).onTunnelRestored(session, 2);
+        verify(listener).onTunnelDown(session);
+        verify(tunnel, times(2)).whenDown();
+        assertThat(monitor.getRestarts(), is(1L));
+        assertThat(monitor.getWatchedCount(), is(1));
+    }
+
+    /**
+     * The listener is called on the monitor's threads, not on the thread that ended the tunnel.
+     */
+    @Test
+    public void listenerIsCalledOnMonitorThread() throws Exception {
+        CompletableFuture<String> thread = new CompletableFuture<>();
+        doAnswer(invocation -> thread.complete(Thread.currentThread().getName())).when(listener)
+                .onTunnelDown(session);
+        monitor.watch(session);
+
+        down.complete(null);
+
+        assertThat(thread.get(5, TimeUnit.SECONDS), startsWith("tunnel-health-monitor"));
+    }
+
+    /**
+     * The session is given up once every attempt failed.
+     */
+    @Test
+    public void tunnelIsLostAfterMaxAttempts() {
+        doThrow(new DeviceFarmException("down")).when(tunnel).start(directory);
+        monitor.watch(session);
+
+        down.complete(null);
+
+        verify(listener, timeout(5000)).onTunnelLost(eq(session), any(DeviceFarmException.class));
+        verify(tunnel, times(3)).start(directory);
+        assertThat(monitor.getWatchedCount(), is(0));
+    }
+
+    /**
+     * A tunnel stopped by its owner is not restarted.
+     */
+    @Test
+    public void stoppedTunnelIsNotRestarted() throws Exception {
+        doNothing().when(tunnel).start(directory);
+        when(tunnel.isStopped()).thenReturn(true);
+        monitor.watch(session);
+
+        down.complete(null);
+
+        Thread.sleep(100);
+        verify(tunnel, never()).start(directory);
+        verify(listener, never()).onTunnelDown(session);
+        assertThat(monitor.getWatchedCount(), is(0));
+    }
+
+    /**
+     * A tunnel stopped by its owner while it was restarting does not keep the new process.
+     */
+    @Test
+    public void tunnelStoppedWhileRestartingIsStoppedAgain() {
+        when(tunnel.isStopped()).thenReturn(false, false, true);
+        when(tunnel.isRunning()).thenReturn(true);
+        monitor.watch(session);
+
+        down.complete(null);
+
+        verify(tunnel, timeout(5000)).stopTunnel();
+        verify(listener, never()).onTunnelRestored(eq(session), anyInt());
+        assertThat(monitor.getWatchedCount(), is(0));
+    }
+
+}
@@ -0,0 +1,81 @@
+package com.logmein.aws;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link TunnelRegistry}.
+ */
+public class TunnelRegistryTest {
+
+    /**
+     * Stopping all the tunnels stops them in parallel, even when one fails.
+     */
+    @Test
+    public void stopAllStopsTunnelsInParallel() {
+        TunnelRegistry registry = new TunnelRegistry();
+        // each stop waits for the other, so they only finish when run in parallel.
+        CountDownLatch stopping = new CountDownLatch(2);
+        DeviceFarmTunnel first = slowTunnel(stopping);
+        DeviceFarmTunnel second = slowTunnel(stopping);
+        DeviceFarmTunnel failing = mock(DeviceFarmTunnel.class);
+        doThrow(new DeviceFarmException("failed")).when(failing).stopTunnel();
+        registry.register(first);
+        registry.register(second);
+        registry.register(failing);
+        assertThat(registry.getLiveTunnelCount(), is(3));
+
+        registry.stopAll();
+
+        assertThat(stopping.getCount(), is(0L));
+        verify(failing).stopTunnel();
+    }
+
+    /**
+     * Deregistered tunnels are not stopped again.
+     */
+    @Test
+    public void deregisteredTunnelIsNotStopped() {
+        TunnelRegistry registry = new TunnelRegistry();
+        DeviceFarmTunnel tunnel = mock(DeviceFarmTunnel.class);
+        registry.register(tunnel);
+        registry.deregister(tunnel);
+        assertThat(registry.getLiveTunnelCount(), is(0));
+
+        registry.stopAll();
+        verify(tunnel, never()).stopTunnel();
+    }
+
+    /**
+     * A stopped tunnel leaves the registry of the JVM.
+     */
+    @Test
+    public void stoppedTunnelLeavesTheRegistry() {
+        int live = TunnelRegistry.getInstance().getLiveTunnelCount();
+        DeviceFarmTunnel tunnel = new DeviceFarmTunnel();
+        assertThat(TunnelRegistry.getInstance().getLiveTunnelCount(), is(live + 1));
+        tunnel.stopTunnel();
+        assertThat(TunnelRegistry.getInstance().getLiveTunnelCount(), is(live));
+    }
+
+    private static DeviceFarmTunnel slowTunnel(CountDownLatch stopping) {
+        DeviceFarmTunnel tunnel = mock(DeviceFarmTunnel.class);
+        doAnswer(invocation -> {
+            stopping.countDown();
+            stopping.await(5, TimeUnit.SECONDS);
+            return null;
+        }).when(tunnel).stopTunnel();
+        return tunnel;
+    }
+
+}
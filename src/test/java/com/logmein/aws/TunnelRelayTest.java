@@ -0,0 +1,165 @@
+package com.logmein.aws;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.devicefarm.model.RemoteAccessSession;
+
+/**
+ * Test for {@link TunnelRelay} against a local echo server.
+ */
+public class TunnelRelayTest {
+
+    private ServerSocket echoServer;
+
+    private ExecutorService pool = Executors.newCachedThreadPool();
+
+    private TunnelRelay relay;
+
+    @Before
+    public void setUp() throws IOException {
+        echoServer = new ServerSocket(0, 200, InetAddress.getLoopbackAddress());
+        pool.execute(() -> {
+            while (!echoServer.isClosed()) {
+                try {
+                    Socket socket = echoServer.accept();
+                    pool.execute(() -> echo(socket));
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        relay = new TunnelRelay();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        relay.close();
+        echoServer.close();
+        pool.shutdownNow();
+    }
+
+    /**
+     * Many concurrent connections of several sessions are relayed both ways.
+     */
+    @Test
+    public void connectionsAreRelayed() throws Exception {
+        int firstPort = relay.bind(session("first"), echoAddress());
+        int secondPort = relay.bind(session("second"), echoAddress());
+        assertThat(firstPort, not(is(secondPort)));
+
+        List<Future<byte[]>> echoes = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int port = i % 2 == 0 ? firstPort : secondPort;
+            byte[] payload = payload(i, 64 * 1024);
+            echoes.add(pool.submit(() -> roundTrip(port, payload)));
+        }
+        for (int i = 0; i < echoes.size(); i++) {
+            assertThat(Arrays.equals(echoes.get(i).get(10, TimeUnit.SECONDS), payload(i,
+                    64 * 1024)), is(true));
+        }
+    }
+
+    /**
+     * A session keeps its local port when bound again.
+     */
+    @Test
+    public void localPortIsStable() throws Exception {
+        DirectDeviceSession session = session("stable");
+        int port = relay.bind(session, echoAddress());
+        assertThat(relay.bind(session, echoAddress()), is(port));
+
+        relay.unbind(session);
+        assertThat(relay.getLocalPort(session), is(-1));
+        assertThat(relay.bind(session, echoAddress()), is(port));
+        assertThat(roundTrip(port, payload(1, 10)).length, is(10));
+    }
+
+    /**
+     * The traffic of a session is counted and its target is probed.
+     */
+    @Test
+    public void trafficIsMeasured() throws Exception {
+        BlockingQueue<TunnelStats> reports = new LinkedBlockingQueue<>();
+        relay.probeIntervalInMilliseconds(50).metricsReporter(reports::add);
+        DirectDeviceSession session = session("measured");
+        int port = relay.bind(session, echoAddress());
+
+        roundTrip(port, payload(1, 1000));
+        roundTrip(port, payload(2, 500));
+
+        TunnelStats stats = reports.poll(5, TimeUnit.SECONDS);
+        assertThat(stats.getSessionArn(), is("measured"));
+        assertThat(stats.getLocalConnectTimeMicros() >= 0, is(true));
+        TunnelStats current = session.getTunnelStats();
+        assertThat(current.getBytesToDevice(), is(1500L));
+        assertThat(current.getBytesFromDevice(), is(1500L));
+        assertThat(current.getTotalConnections(), is(2L));
+    }
+
+    private InetSocketAddress echoAddress() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), echoServer.getLocalPort());
+    }
+
+    private static DirectDeviceSession session(String arn) {
+        return new DirectDeviceSession(new RemoteAccessSession().withArn(arn), null);
+    }
+
+    private static byte[] payload(int seed, int size) {
+        byte[] payload = new byte[size];
+        for (int i = 0; i < size; i++) {
+            payload[i] = (byte) (seed + i);
+        }
+        return payload;
+    }
+
+    private static byte[] roundTrip(int port, byte[] payload) throws IOException {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            out.write(payload);
+            socket.shutdownOutput();
+            byte[] echoed = new byte[payload.length];
+            new DataInputStream(socket.getInputStream()).readFully(echoed);
+            return echoed;
+        }
+    }
+
+    private static void echo(Socket socket) {
+        try (Socket s = socket) {
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } catch (IOException e) {
+            // connection closed by the relay.
+        }
+    }
+
+}
@@ -0,0 +1,126 @@
+package com.logmein.aws.device;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.devicefarm.model.Device;
+import com.amazonaws.services.devicefarm.model.DeviceInstance;
+import com.amazonaws.services.devicefarm.model.ListDevicesRequest;
+import com.amazonaws.services.devicefarm.model.ListDevicesResult;
+
+/**
+ * Test for {@link DeviceAllocator}.
+ */
+public class DeviceAllocatorTest {
+
+    private volatile String status = "AVAILABLE";
+
+    private DeviceCatalog catalog;
+
+    private DeviceAvailabilityWatcher watcher;
+
+    private DeviceAllocator allocator;
+
+    @Before
+    public void setup() {
+        catalog = new DeviceCatalog(this::listDevices);
+        watcher = new DeviceAvailabilityWatcher(catalog).pollIntervalInSeconds(1);
+        allocator = new DeviceAllocator(catalog, watcher);
+    }
+
+    @After
+    public void tearDown() {
+        watcher.close();
+        catalog.close();
+    }
+
+    /**
+     * An available instance is reserved for one requester only.
+     */
+    @Test
+    public void instanceIsReservedForOneRequester() {
+        CompletableFuture<DeviceReservation> first = allocator.allocate(DeviceQuery.androidPhone(),
+                0);
+        CompletableFuture<DeviceReservation> second = allocator.allocate(DeviceQuery
+                .androidPhone(), 0);
+        assertThat(first.isDone(), is(true));
+        assertThat(first.join().getInstance().getArn(), is("instance-1"));
+        assertThat(second.isDone(), is(false));
+        assertThat(allocator.getQueueLength(), is(1));
+        assertThat(allocator.getReservationCount(), is(1));
+    }
+
+    /**
+     * A released instance goes to the highest priority request, then to the oldest one.
+     */
+    @Test
+    public void releasedInstanceGoesToHighestPriority() {
+        DeviceReservation reservation = allocator.allocate(DeviceQuery.androidPhone(), 0).join();
+        CompletableFuture<DeviceReservation> low = allocator.allocate(DeviceQuery.androidPhone(),
+                0);
+        CompletableFuture<DeviceReservation> high = allocator.allocate(DeviceQuery
+                .androidPhone(), 5);
+        CompletableFuture<DeviceReservation> lowLater = allocator.allocate(DeviceQuery
+                .androidPhone(), 0);
+
+        reservation.release();
+        assertThat(high.isDone(), is(true));
+        assertThat(low.isDone(), is(false));
+
+        high.join().release();
+        assertThat(low.isDone(), is(true));
+        assertThat(lowLater.isDone(), is(false));
+    }
+
+    /**
+     * A cancelled request leaves the queue and does not hold any instance.
+     */
+    @Test
+    public void cancelledRequestLeavesQueue() {
+        DeviceReservation reservation = allocator.allocate(DeviceQuery.androidPhone(), 0).join();
+        CompletableFuture<DeviceReservation> waiting = allocator.allocate(DeviceQuery
+                .androidPhone(), 0);
+        waiting.cancel(false);
+        assertThat(allocator.getQueueLength(), is(0));
+
+        reservation.release();
+        assertThat(allocator.getReservationCount(), is(0));
+        assertThat(watcher.getListenerCount(), is(0));
+    }
+
+    /**
+     * The reservation ends once the instance is busy, and the next request is served when it is
+     * available again.
+     */
+    @Test
+    public void reservationEndsWhenInstanceIsBusy() throws Exception {
+        allocator.allocate(DeviceQuery.androidPhone(), 0).join();
+        CompletableFuture<DeviceReservation> waiting = allocator.allocate(DeviceQuery
+                .androidPhone(), 0);
+
+        status = "IN_USE";
+        long deadline = System.currentTimeMillis() + 5000;
+        while (allocator.getReservationCount() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertThat(allocator.getReservationCount(), is(0));
+        assertThat(waiting.isDone(), is(false));
+
+        status = "AVAILABLE";
+        assertThat(waiting.get(5, TimeUnit.SECONDS).getInstance().getArn(), is("instance-1"));
+    }
+
+    private ListDevicesResult listDevices(ListDevicesRequest request) {
+        return new ListDevicesResult().withDevices(new Device().withArn("device-1").withPlatform(
+                "ANDROID").withFormFactor("PHONE").withFleetType("PRIVATE").withInstances(
+                        new DeviceInstance().withArn("instance-1").withStatus(status)));
+    }
+
+}
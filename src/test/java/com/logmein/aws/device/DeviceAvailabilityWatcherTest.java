@@ -0,0 +1,105 @@
+package com.logmein.aws.device;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.amazonaws.services.devicefarm.model.Device;
+import com.amazonaws.services.devicefarm.model.DeviceInstance;
+import com.amazonaws.services.devicefarm.model.ListDevicesRequest;
+import com.amazonaws.services.devicefarm.model.ListDevicesResult;
+
+/**
+ * Test for {@link DeviceAvailabilityWatcher}.
+ */
+public class DeviceAvailabilityWatcherTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private volatile String status = "IN_USE";
+
+    private DeviceCatalog catalog;
+
+    private DeviceAvailabilityWatcher watcher;
+
+    @Before
+    public void setup() {
+        catalog = new DeviceCatalog(this::listDevices);
+        watcher = new DeviceAvailabilityWatcher(catalog).pollIntervalInSeconds(1);
+    }
+
+    @After
+    public void tearDown() {
+        watcher.close();
+        catalog.close();
+    }
+
+    /**
+     * Every waiter is woken up by the same refresh once the instance becomes available.
+     */
+    @Test
+    public void waitersAreNotifiedOnTransition() throws Exception {
+        List<CompletableFuture<DeviceInstance>> waiters = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            waiters.add(watcher.whenAvailable(DeviceQuery.androidPhone()));
+        }
+        assertThat(waiters.get(0).isDone(), is(false));
+        assertThat(watcher.getListenerCount(), is(10));
+
+        status = "AVAILABLE";
+        for (CompletableFuture<DeviceInstance> waiter : waiters) {
+            assertThat(waiter.get(5, TimeUnit.SECONDS).getArn(), is("instance-1"));
+        }
+        assertThat(watcher.getListenerCount(), is(0));
+        // initial fetch and at most a couple of refreshes, whatever the number of waiters.
+        assertThat(calls.get() <= 3, is(true));
+    }
+
+    /**
+     * An instance already available is returned right away.
+     */
+    @Test
+    public void availableInstanceIsReturnedRightAway() {
+        status = "AVAILABLE";
+        CompletableFuture<DeviceInstance> waiter = watcher.whenAvailable(DeviceQuery
+                .androidPhone());
+        assertThat(waiter.isDone(), is(true));
+        assertThat(watcher.getListenerCount(), is(0));
+    }
+
+    /**
+     * Listeners get the transitions in both directions.
+     */
+    @Test
+    public void publishesTransitions() throws Exception {
+        CompletableFuture<DeviceAvailabilityEvent> busy = new CompletableFuture<>();
+        status = "AVAILABLE";
+        catalog.refresh();
+        watcher.addListener(event -> {
+            if (event.isBusy()) {
+                busy.complete(event);
+            }
+        });
+        status = "IN_USE";
+        DeviceAvailabilityEvent event = busy.get(5, TimeUnit.SECONDS);
+        assertThat(event.getPreviousStatus(), is("AVAILABLE"));
+        assertThat(event.getStatus(), is("IN_USE"));
+    }
+
+    private ListDevicesResult listDevices(ListDevicesRequest request) {
+        calls.incrementAndGet();
+        return new ListDevicesResult().withDevices(new Device().withArn("device-1").withPlatform(
+                "ANDROID").withFormFactor("PHONE").withFleetType("PRIVATE").withInstances(
+                        new DeviceInstance().withArn("instance-1").withStatus(status)));
+    }
+
+}
@@ -0,0 +1,73 @@
+package com.logmein.aws.device;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.amazonaws.services.devicefarm.model.Device;
+import com.amazonaws.services.devicefarm.model.ListDevicesRequest;
+import com.amazonaws.services.devicefarm.model.ListDevicesResult;
+
+/**
+ * Test for {@link DeviceCatalog}.
+ */
+public class DeviceCatalogTest {
+
+    private final AtomicInteger calls = new AtomicInteger();
+
+    /**
+     * Every page is fetched by following the next token.
+     */
+    @Test
+    public void fetchesAllPages() {
+        try (DeviceCatalog catalog = new DeviceCatalog(this::listDevices)) {
+            DeviceCatalogSnapshot snapshot = catalog.getSnapshot();
+            assertThat(snapshot.getDevices().size(), is(3));
+            assertThat(snapshot.getDevices().get(2).getArn(), is("device-3"));
+            assertThat(calls.get(), is(3));
+        }
+    }
+
+    /**
+     * Reads after the first one are served from the snapshot.
+     */
+    @Test
+    public void servesReadsFromSnapshot() {
+        try (DeviceCatalog catalog = new DeviceCatalog(this::listDevices)) {
+            DeviceCatalogSnapshot first = catalog.getSnapshot();
+            assertThat(catalog.getSnapshot(), sameInstance(first));
+            assertThat(catalog.getSnapshot(), sameInstance(first));
+            assertThat(calls.get(), is(3));
+
+            DeviceCatalogStats stats = catalog.getStats();
+            assertThat(stats.getMisses(), is(1L));
+            assertThat(stats.getHits(), is(2L));
+            assertThat(stats.getRefreshes(), is(1L));
+
+            catalog.refresh();
+            assertThat(catalog.getStats().getRefreshes(), is(2L));
+            assertThat(calls.get(), is(6));
+        }
+    }
+
+    private ListDevicesResult listDevices(ListDevicesRequest request) {
+        calls.incrementAndGet();
+        String token = request.getNextToken();
+        if (token == null) {
+            return new ListDevicesResult().withDevices(device("device-1")).withNextToken("page-2");
+        }
+        if ("page-2".equals(token)) {
+            return new ListDevicesResult().withDevices(device("device-2")).withNextToken("page-3");
+        }
+        return new ListDevicesResult().withDevices(device("device-3"));
+    }
+
+    private Device device(String arn) {
+        return new Device().withArn(arn);
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.logmein.aws.device;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.amazonaws.services.devicefarm.model.Device;
+import com.amazonaws.services.devicefarm.model.DeviceFormFactor;
+import com.amazonaws.services.devicefarm.model.DeviceInstance;
+import com.amazonaws.services.devicefarm.model.DevicePlatform;
+
+/**
+ * Test for {@link DeviceIndex}.
+ */
+public class DeviceIndexTest {
+
+    private static DeviceIndex index;
+
+    @BeforeClass
+    public static void setup() {
+        //@formatter:off
+        index = new DeviceIndex(Arrays.asList(
+                device("ANDROID", "PHONE", "PRIVATE", "Google", "Pixel 2", "8.1.0",
+                        instance("pixel-1", "AVAILABLE", "ci"),
+                        instance("pixel-2", "IN_USE", "ci", "manual")),
+                device("ANDROID", "TABLET", "PRIVATE", "Samsung", "Galaxy Tab", "7.0",
+                        instance("tab-1", "AVAILABLE")),
+                device("IOS", "PHONE", "PRIVATE", "Apple", "iPhone X", "11.4",
+                        instance("iphone-1", "AVAILABLE", "ci")),
+                device("ANDROID", "PHONE", "PUBLIC", "Google", "Pixel", "10",
+                        instance("public-1", "AVAILABLE"))));
+        //@formatter:on
+    }
+
+    /**
+     * The predefined Android phone query.
+     */
+    @Test
+    public void androidPhone() {
+        assertThat(arns(index.find(DeviceQuery.androidPhone())), is(Arrays.asList("pixel-1",
+                "pixel-2")));
+        assertThat(arns(index.findAvailable(DeviceQuery.androidPhone())), is(Arrays.asList(
+                "pixel-1")));
+    }
+
+    /**
+     * Platform, form factor and text criteria.
+     */
+    @Test
+    public void attributes() {
+        assertThat(arns(index.find(new DeviceQuery().platform(DevicePlatform.IOS))), is(Arrays
+                .asList("iphone-1")));
+        assertThat(arns(index.find(new DeviceQuery().formFactor(DeviceFormFactor.TABLET))), is(
+                Arrays.asList("tab-1")));
+        assertThat(arns(index.find(new DeviceQuery().manufacturer("google").fleetType(
+                "public"))), is(Arrays.asList("public-1")));
+        assertThat(arns(index.find(new DeviceQuery().model("Unknown"))).isEmpty(), is(true));
+    }
+
+    /**
+     * OS versions are compared numerically.
+     */
+    @Test
+    public void osVersionRange() {
+        assertThat(arns(index.find(new DeviceQuery().platform(DevicePlatform.ANDROID)
+                .minOsVersion("8"))), is(Arrays.asList("pixel-1", "pixel-2", "public-1")));
+        assertThat(arns(index.find(new DeviceQuery().minOsVersion("7.0").maxOsVersion("9"))), is(
+                Arrays.asList("pixel-1", "pixel-2", "tab-1")));
+        assertThat(arns(index.find(new DeviceQuery().maxOsVersion("7.0"))), is(Arrays.asList(
+                "tab-1")));
+    }
+
+    /**
+     * Numeric version parts are lower than text parts, whichever way they are compared.
+     */
+    @Test
+    public void versionOrderIsTotal() {
+        List<String> versions = Arrays.asList("2", "10", "1a", "9.beta", "9.1",
+                "18446744073709551616");
+        for (String first : versions) {
+            for (String second : versions) {
+                assertThat(Integer.signum(DeviceQuery.compareVersions(first, second)), is(-Integer
+                        .signum(DeviceQuery.compareVersions(second, first))));
+            }
+        }
+        assertThat(DeviceQuery.compareVersions("10", "1a") < 0, is(true));
+        assertThat(DeviceQuery.compareVersions("2", "1a") < 0, is(true));
+        assertThat(DeviceQuery.compareVersions("9.1", "9.beta") < 0, is(true));
+        assertThat(DeviceQuery.compareVersions("18446744073709551616", "10") > 0, is(true));
+    }
+
+    /**
+     * Every label of the query is required.
+     */
+    @Test
+    public void labels() {
+        assertThat(arns(index.find(new DeviceQuery().label("ci"))), is(Arrays.asList("pixel-1",
+                "pixel-2", "iphone-1")));
+        assertThat(arns(index.find(new DeviceQuery().label("ci").label("manual"))), is(Arrays
+                .asList("pixel-2")));
+    }
+
+    /**
+     * The index and the single instance evaluation agree.
+     */
+    @Test
+    public void matchesAgreesWithIndex() {
+        DeviceQuery query = new DeviceQuery().platform(DevicePlatform.ANDROID).minOsVersion("8")
+                .label("ci");
+        List<String> matching = index.getInstances().stream().filter(instance -> query.matches(
+                index.getDevice(instance.getArn()), instance)).map(DeviceInstance::getArn).collect(
+                        Collectors.toList());
+        assertThat(arns(index.find(query)), is(matching));
+    }
+
+    private static List<String> arns(List<DeviceInstance> instances) {
+        return instances.stream().map(DeviceInstance::getArn).collect(Collectors.toList());
+    }
+
+    private static Device device(String platform, String formFactor, String fleetType,
+            String manufacturer, String model, String os, DeviceInstance... instances) {
+        return new Device().withPlatform(platform).withFormFactor(formFactor).withFleetType(
+                fleetType).withManufacturer(manufacturer).withModel(model).withOs(os)
+                .withInstances(instances);
+    }
+
+    private static DeviceInstance instance(String arn, String status, String... labels) {
+        return new DeviceInstance().withArn(arn).withStatus(status).withLabels(labels);
+    }
+
+}
@@ -0,0 +1,137 @@
+package com.logmein.aws.executor;
+
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.apache.commons.exec.CommandLine;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Test for {@link Executor}.
+ */
+public class ExecutorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * The matcher completes as soon as the line is printed, while the process keeps running.
+     */
+    @Test
+    public void lineIsMatchedWhileRunning() throws Exception {
+        Executor executor = new Executor(shell("echo starting; echo ready; sleep 30"))
+                .runInBackground(true).timeout(0);
+        CompletableFuture<String> ready = executor.whenLine(line -> line.startsWith("ready"));
+        executor.execute();
+        try {
+            assertThat(ready.get(10, TimeUnit.SECONDS), is("ready"));
+            assertThat(executor.isRunning(), is(true));
+        } finally {
+            executor.stopSilently();
+        }
+    }
+
+    /**
+     * Lines printed before the matcher was added are matched too.
+     */
+    @Test
+    public void earlierLinesAreMatched() throws Exception {
+        Executor executor = new Executor(shell("echo done >&2")).timeout(0);
+        executor.execute();
+        assertThat(executor.whenLine(line -> line.equals("done")).get(10, TimeUnit.SECONDS),
+                is("done"));
+    }
+
+    /**
+     * The matcher fails once the process ended without printing the line.
+     */
+    @Test
+    public void failsWhenProcessEndsWithoutTheLine() throws Exception {
+        Executor executor = new Executor(shell("echo other")).runInBackground(true).timeout(0);
+        CompletableFuture<String> ready = executor.whenLine(line -> line.equals("ready"));
+        executor.execute();
+        try {
+            ready.get(10, TimeUnit.SECONDS);
+            fail("Expected the matcher to fail.");
+        } catch (ExecutionException e) {
+            assertThat(e.getCause(), instanceOf(ExecuteException.class));
+        }
+    }
+
+    /**
+     * Only the recent lines are kept in memory, the older ones are moved to rotated spill files.
+     */
+    @Test
+    public void olderLinesAreSpilled() throws Exception {
+        File dir = folder.getRoot();
+        Executor executor = new Executor(shell("seq 1 1000")).timeout(0).captureLimit(10)
+                .spillTo(dir, 1000);
+        executor.execute();
+
+        List<String> lines = executor.getResult().getOutputStream();
+        assertThat(lines.size(), is(10));
+        assertThat(lines.get(0), is("991"));
+        assertThat(lines.get(9), is("1000"));
+
+        List<String> spilled = Files.readAllLines(new File(dir, Executor.OUTPUT_SPILL_FILE)
+                .toPath());
+        assertThat(spilled.get(spilled.size() - 1), is("990"));
+        File rotated = new File(dir, Executor.OUTPUT_SPILL_FILE + ".1");
+        assertThat(rotated.exists(), is(true));
+        assertThat(rotated.length() < 1100, is(true));
+    }
+
+    /**
+     * Without a spill directory the older lines are dropped.
+     */
+    @Test
+    public void olderLinesAreDropped() throws Exception {
+        Executor executor = new Executor(shell("seq 1 100 >&2")).timeout(0).captureLimit(5);
+        executor.execute();
+        assertThat(executor.getResult().getErrorStream(), is(Arrays.asList("96", "97", "98",
+                "99", "100")));
+        assertThat(executor.whenLine(line -> line.equals("98")).get(10, TimeUnit.SECONDS),
+                is("98"));
+    }
+
+    /**
+     * The result is inspected without building the output as a string.
+     */
+    @Test
+    public void resultIsInspected() throws Exception {
+        Executor executor = new Executor(shell("echo; echo hello; seq 1 500")).timeout(0);
+        executor.execute();
+        ExecutorResult result = executor.getResult();
+
+        assertThat(result.getOutputLineCount(), is(502));
+        assertThat(result.getOutputByteCount(), is(5L + 9 + 90 * 2 + 401 * 3));
+        assertThat(result.isOutputStreamEmpty(), is(false));
+        assertThat(result.isErrorStreamEmpty(), is(true));
+        assertThat(result.outputContains(Pattern.compile("^hel+o$")), is(true));
+        assertThat(result.errorContains(Pattern.compile(".")), is(false));
+        assertThat(result.getOutputTail(2), is(Arrays.asList("499", "500")));
+        assertThat(executor.getCommandAndResultForLogging().contains("(last "
+                + Executor.LOGGED_LINES + " of 502 lines) [401, "), is(true));
+    }
+
+    private static CommandLine shell(String script) {
+        CommandLine command = new CommandLine("sh");
+        command.addArgument("-c");
+        command.addArgument(script, false);
+        return command;
+    }
+
+}
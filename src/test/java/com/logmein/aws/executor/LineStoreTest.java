@@ -0,0 +1,65 @@
+package com.logmein.aws.executor;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link LineStore}.
+ */
+public class LineStoreTest {
+
+    /**
+     * A view keeps the lines it was taken with while more lines are appended.
+     */
+    @Test
+    public void viewIsImmutable() {
+        LineStore store = new LineStore();
+        store.add("a");
+        store.add("b");
+        List<String> view = store.view();
+        for (int i = 0; i < 3 * LineStore.CHUNK_SIZE; i++) {
+            store.add(String.valueOf(i));
+        }
+        assertThat(view, is(Arrays.asList("a", "b")));
+        assertThat(store.size(), is(3 * LineStore.CHUNK_SIZE + 2));
+        assertThat(store.view(LineStore.CHUNK_SIZE, LineStore.CHUNK_SIZE + 2), is(Arrays.asList(
+                String.valueOf(LineStore.CHUNK_SIZE - 2), String.valueOf(LineStore.CHUNK_SIZE
+                        - 1))));
+        assertThat(store.view().subList(1, 3), is(Arrays.asList("b", "0")));
+    }
+
+    /**
+     * Readers see every line in order while the writer appends.
+     */
+    @Test
+    public void readersSeeConsistentViews() throws Exception {
+        LineStore store = new LineStore();
+        int count = 100 * LineStore.CHUNK_SIZE;
+        AtomicBoolean consistent = new AtomicBoolean(true);
+        Thread reader = new Thread(() -> {
+            while (store.size() < count) {
+                List<String> view = store.view();
+                for (int i = 0; i < view.size(); i++) {
+                    if (!String.valueOf(i).equals(view.get(i))) {
+                        consistent.set(false);
+                        return;
+                    }
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < count; i++) {
+            store.add(String.valueOf(i));
+        }
+        reader.join(10000);
+        assertThat(consistent.get(), is(true));
+        assertThat(store.view().size(), is(count));
+    }
+
+}
@@ -0,0 +1,129 @@
+package com.logmein.aws.executor;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.exec.CommandLine;
+import org.junit.Test;
+
+/**
+ * Test for {@link LineSubscription}.
+ */
+public class LineSubscriptionTest {
+
+    /**
+     * Lines are only delivered once requested, then the end of the process.
+     */
+    @Test
+    public void linesAreDeliveredOnDemand() throws Exception {
+        Collector collector = new Collector();
+        Executor executor = new Executor(shell("echo one; echo two >&2; echo three")).timeout(0);
+        LineSubscription subscription = executor.subscribe(collector);
+        executor.execute();
+
+        assertThat(collector.lines.poll(200, TimeUnit.MILLISECONDS) == null, is(true));
+        subscription.request(2);
+        OutputLine first = collector.lines.poll(5, TimeUnit.SECONDS);
+        OutputLine second = collector.lines.poll(5, TimeUnit.SECONDS);
+        List<OutputLine> lines = Arrays.asList(first, second);
+        assertThat(collector.lines.poll(200, TimeUnit.MILLISECONDS) == null, is(true));
+        assertThat(collector.exitValue.isDone(), is(false));
+
+        subscription.request(1);
+        List<OutputLine> all = new ArrayList<>(lines);
+        all.add(collector.lines.poll(5, TimeUnit.SECONDS));
+        assertThat(collector.exitValue.get(5, TimeUnit.SECONDS), is(0));
+        assertThat(texts(all).containsAll(Arrays.asList("one", "two", "three")), is(true));
+        for (OutputLine line : all) {
+            assertThat(line.isError(), is(line.getText().equals("two")));
+            assertThat(line.getTimestamp() > 0, is(true));
+        }
+    }
+
+    /**
+     * The oldest lines are dropped when the buffer is full.
+     */
+    @Test
+    public void oldestLinesAreDropped() throws Exception {
+        Collector collector = new Collector();
+        Executor executor = new Executor(shell("seq 1 10")).timeout(0);
+        LineSubscription subscription = executor.subscribe(collector, 3,
+                LineSubscription.OverflowPolicy.DROP_OLDEST);
+        executor.execute();
+
+        subscription.request(Long.MAX_VALUE);
+        assertThat(collector.exitValue.get(5, TimeUnit.SECONDS), is(0));
+        List<OutputLine> lines = new ArrayList<>();
+        collector.lines.drainTo(lines);
+        assertThat(texts(lines), is(Arrays.asList("8", "9", "10")));
+        assertThat(lines.get(0).getNumber(), is(8));
+        assertThat(subscription.getDroppedCount(), is(7L));
+    }
+
+    /**
+     * With the block policy no line is lost, however slow the subscriber.
+     */
+    @Test
+    public void blockingKeepsEveryLine() throws Exception {
+        Collector collector = new Collector();
+        Executor executor = new Executor(shell("seq 1 100")).runInBackground(true).timeout(0);
+        LineSubscription subscription = executor.subscribe(collector, 2,
+                LineSubscription.OverflowPolicy.BLOCK);
+        executor.execute();
+
+        List<String> texts = new ArrayList<>();
+        for (int i = 1; i <= 100; i++) {
+            subscription.request(1);
+            texts.add(collector.lines.poll(5, TimeUnit.SECONDS).getText());
+        }
+        assertThat(texts.get(0), is("1"));
+        assertThat(texts.get(99), is("100"));
+        assertThat(collector.exitValue.get(5, TimeUnit.SECONDS), is(0));
+        assertThat(subscription.getDroppedCount(), is(0L));
+    }
+
+    private static List<String> texts(List<OutputLine> lines) {
+        List<String> texts = new ArrayList<>();
+        for (OutputLine line : lines) {
+            texts.add(line.getText());
+        }
+        return texts;
+    }
+
+    private static CommandLine shell(String script) {
+        CommandLine command = new CommandLine("sh");
+        command.addArgument("-c");
+        command.addArgument(script, false);
+        return command;
+    }
+
+    private static class Collector implements LineSubscriber {
+
+        private final BlockingQueue<OutputLine> lines = new LinkedBlockingQueue<>();
+
+        private final CompletableFuture<Integer> exitValue = new CompletableFuture<>();
+
+        @Override
+        public void onSubscribe(LineSubscription subscription) {
+        }
+
+        @Override
+        public void onLine(OutputLine line) {
+            lines.add(line);
+        }
+
+        @Override
+        public void onComplete(int value) {
+            exitValue.complete(value);
+        }
+    }
+
+}
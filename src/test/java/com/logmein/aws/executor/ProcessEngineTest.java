@@ -0,0 +1,150 @@
+package com.logmein.aws.executor;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.exec.CommandLine;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Test for {@link ProcessEngine}.
+ */
+public class ProcessEngineTest {
+
+    private ProcessEngine engine = new ProcessEngine();
+
+    @After
+    public void tearDown() {
+        engine.close();
+    }
+
+    /**
+     * A blocking execution returns once the whole output was read.
+     */
+    @Test
+    public void outputIsRead() throws Exception {
+        Executor executor = new Executor(shell("seq 1 20000; printf last; echo error >&2"))
+                .engine(engine).timeout(0);
+        executor.execute();
+
+        ExecutorResult result = executor.getResult();
+        assertThat(result.getExitCode(), is(0));
+        assertThat(result.getOutputLineCount(), is(20001));
+        assertThat(result.getOutputTail(2), is(Arrays.asList("20000", "last")));
+        assertThat(result.getErrorStream(), is(Arrays.asList("error")));
+        assertThat(engine.getProcessCount(), is(0));
+    }
+
+    /**
+     * Many background processes run without adding threads, and are stopped.
+     */
+    @Test
+    public void threadCountIsFlat() throws Exception {
+        int threads = Thread.activeCount();
+        List<Executor> executors = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            Executor executor = new Executor(shell("echo ready; sleep 30")).engine(engine)
+                    .runInBackground(true).timeout(0);
+            executor.execute();
+            executors.add(executor);
+        }
+        for (Executor executor : executors) {
+            assertThat(executor.whenLine(line -> line.equals("ready")).get(10, TimeUnit.SECONDS),
+                    is("ready"));
+        }
+        assertThat(engine.getProcessCount(), is(50));
+        // the JDK waits for each child on a small thread of its own, commons-exec would add 4.
+        assertThat(Thread.activeCount() - threads <= 50 + 2, is(true));
+
+        for (Executor executor : executors) {
+            executor.stop();
+        }
+        for (Executor executor : executors) {
+            executor.whenEnded().get(10, TimeUnit.SECONDS);
+            assertThat(executor.isRunning(), is(false));
+        }
+        assertThat(engine.getProcessCount(), is(0));
+    }
+
+    /**
+     * A process running past its timeout is stopped and reported as failed.
+     */
+    @Test
+    public void timedOutProcessIsStopped() throws Exception {
+        Executor executor = new Executor(shell("sleep 30")).engine(engine).runInBackground(true)
+                .timeout(200);
+        executor.execute();
+        try {
+            executor.waitFor(10000);
+            fail("Expected the process to time out.");
+        } catch (ExecuteException e) {
+            assertThat(e.getMessage().contains("timed out"), is(true));
+        }
+        assertThat(executor.isRunning(), is(false));
+    }
+
+    /**
+     * Closing the engine ends its processes, and the shared engine is replaced once closed.
+     */
+    @Test
+    public void closeEndsProcesses() throws Exception {
+        Executor executor = new Executor(shell("sleep 30")).engine(engine).runInBackground(true)
+                .timeout(0);
+        executor.execute();
+        engine.close();
+
+        executor.whenEnded().get(5, TimeUnit.SECONDS);
+        assertThat(executor.isRunning(), is(false));
+        assertThat(engine.getProcessCount(), is(0));
+
+        ProcessEngine shared = ProcessEngine.getShared();
+        shared.close();
+        assertThat(shared.isClosed(), is(true));
+        assertThat(ProcessEngine.getShared() != shared, is(true));
+        assertThat(ProcessEngine.getShared().isClosed(), is(false));
+    }
+
+    /**
+     * A slow callback does not hold up the output of the other processes.
+     */
+    @Test
+    public void slowCallbackDoesNotStallReading() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        Executor slow = new Executor(shell("echo slow")).engine(engine).runInBackground(true)
+                .timeout(0);
+        slow.whenLine(line -> line.equals("slow")).thenRun(() -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        slow.execute();
+
+        Executor other = new Executor(shell("sleep 0.2; seq 1 1000")).engine(engine)
+                .runInBackground(true).timeout(0);
+        other.execute();
+        try {
+            other.whenEnded().get(5, TimeUnit.SECONDS);
+            assertThat(other.getResult().getOutputLineCount(), is(1000));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    private static CommandLine shell(String script) {
+        CommandLine command = new CommandLine("sh");
+        command.addArgument("-c");
+        command.addArgument(script, false);
+        return command;
+    }
+
+}
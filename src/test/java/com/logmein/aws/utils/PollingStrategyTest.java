@@ -0,0 +1,66 @@
+package com.logmein.aws.utils;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+
+import java.time.Duration;
+
+import org.junit.Test;
+
+/**
+ * Test for {@link PollingStrategy}.
+ */
+public class PollingStrategyTest {
+
+    /**
+     * Without jitter the delay grows by the multiplier up to the cap.
+     */
+    @Test
+    public void delayGrowsUpToCap() {
+        PollingStrategy.Poll poll = new PollingStrategy(100).multiplier(2).maxDelayInMilliseconds(
+                500).start(null);
+        assertThat(poll.nextDelayInMilliseconds(), is(100L));
+        assertThat(poll.nextDelayInMilliseconds(), is(200L));
+        assertThat(poll.nextDelayInMilliseconds(), is(400L));
+        assertThat(poll.nextDelayInMilliseconds(), is(500L));
+        assertThat(poll.nextDelayInMilliseconds(), is(500L));
+        assertThat(poll.getAttempts(), is(5));
+    }
+
+    /**
+     * Jitter keeps every delay within the configured fraction.
+     */
+    @Test
+    public void jitterStaysWithinBounds() {
+        PollingStrategy strategy = PollingStrategy.fixed(1000).jitter(0.2);
+        for (int i = 0; i < 100; i++) {
+            long delay = strategy.start(null).nextDelayInMilliseconds();
+            assertThat(delay >= 800 && delay <= 1200, is(true));
+        }
+    }
+
+    /**
+     * The delay never goes past the deadline, and the poll ends with it.
+     */
+    @Test
+    public void deadlineCapsDelay() {
+        PollingStrategy.Poll poll = PollingStrategy.fixed(10000).start(Duration.ofMillis(200));
+        assertThat(poll.hasTimeLeft(), is(true));
+        assertThat(poll.nextDelayInMilliseconds() <= 200, is(true));
+        poll.sleep();
+        assertThat(poll.hasTimeLeft(), is(false));
+    }
+
+    /**
+     * An interrupted poll stops waiting and keeps the interrupt flag.
+     */
+    @Test
+    public void interruptEndsPoll() {
+        PollingStrategy.Poll poll = PollingStrategy.fixed(1000).start(null);
+        Thread.currentThread().interrupt();
+        assertThat(poll.sleep(), is(false));
+        assertThat(Thread.interrupted(), is(true));
+        assertThat(poll.hasTimeLeft(), is(false));
+    }
+
+}